@@ -0,0 +1,741 @@
+package org.mule.tools.maven.rest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoFailureException;
+import org.mule.tools.maven.rest.DeploymentTracker.TrackedDeployment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parameters and operations shared by the goals talking to the MMC.
+ *
+ * @author Nicholas A. Stuart
+ * @author Mohamed EL HABIB
+ */
+public abstract class AbstractMuleMojo extends AbstractMojo {
+	public static final long DEFAULT_DEPLOYMENT_TIMEOUT = 300000;
+	public static final String PERFORMANCE_REPORT = "mmc-performance";
+	/**
+	 * Format of the default versions, the time of the build.
+	 */
+	public static final String VERSION_FORMAT = "MM-dd-yyyy-HH:mm:ss";
+
+	/**
+	 * The username of the MMC API. Required unless the deploy goal deploys to
+	 * endpoints that all set their own.
+	 *
+	 * @parameter expression="${username}"
+	 */
+	protected String username;
+
+	/**
+	 * The password of the MMC API. Required unless the deploy goal deploys to
+	 * endpoints that all set their own.
+	 *
+	 * @parameter expression="${password}"
+	 */
+	protected String password;
+
+	/**
+	 * The URL of the MMC API. Required unless the deploy goal deploys to
+	 * endpoints.
+	 *
+	 * @parameter expression="muleApiUrl"
+	 */
+	protected URL muleApiUrl;
+
+	/**
+	 * Maximum number of idle keep-alive connections kept open to the MMC. It
+	 * sets the http.maxConnections system property, which sizes the pool of
+	 * the whole JVM, other plugins of the build included, once: by the first
+	 * goal given it, unless the property is given on the command line. Left
+	 * unset, the property is not touched and the JDK keeps 5 connections.
+	 * Set it to at least the parallelism of deploy-all or prune to keep all
+	 * their connections alive. Idle connections are closed after the JDK
+	 * keep-alive timeout, which is not configurable here.
+	 *
+	 * @parameter expression="${maxConnections}"
+	 */
+	protected Integer maxConnections;
+
+	/**
+	 * Timeout in milliseconds for establishing a connection to the MMC.
+	 *
+	 * @parameter expression="${connectionTimeout}" default-value="30000"
+	 */
+	protected long connectionTimeout = MuleRest.DEFAULT_CONNECTION_TIMEOUT;
+
+	/**
+	 * Timeout in milliseconds for waiting on a response from the MMC.
+	 *
+	 * @parameter expression="${receiveTimeout}" default-value="60000"
+	 */
+	protected long receiveTimeout = MuleRest.DEFAULT_RECEIVE_TIMEOUT;
+
+	/**
+	 * Number of times a failed upload of the archive, or another MMC call
+	 * failing on a transport error or a server error, is retried.
+	 *
+	 * @parameter expression="${retries}" default-value="2"
+	 */
+	protected int retries = MuleRest.DEFAULT_RETRIES;
+
+	/**
+	 * Delay in milliseconds before the first retry, doubled on every further
+	 * retry up to {@link #maxRetryBackoff}.
+	 *
+	 * @parameter expression="${retryBackoff}" default-value="2000"
+	 */
+	protected long retryBackoff = MuleRest.DEFAULT_RETRY_BACKOFF;
+
+	/**
+	 * Former name of {@link #retries}, which it overrides when set.
+	 *
+	 * @parameter expression="${uploadRetries}"
+	 * @deprecated use retries
+	 */
+	@Deprecated
+	protected Integer uploadRetries;
+
+	/**
+	 * Former name of {@link #retryBackoff}, which it overrides when set.
+	 *
+	 * @parameter expression="${uploadRetryBackoff}"
+	 * @deprecated use retryBackoff
+	 */
+	@Deprecated
+	protected Long uploadRetryBackoff;
+
+	/**
+	 * Maximum delay in milliseconds before a retry.
+	 *
+	 * @parameter expression="${maxRetryBackoff}" default-value="30000"
+	 */
+	protected long maxRetryBackoff = RetryPolicy.DEFAULT_MAX_BACKOFF;
+
+	/**
+	 * Largest part of the retry delay, between 0 and 1, randomly taken off it
+	 * so that parallel builds do not retry in step.
+	 *
+	 * @parameter expression="${retryJitter}" default-value="0.5"
+	 */
+	protected double retryJitter = RetryPolicy.DEFAULT_JITTER;
+
+	/**
+	 * Number of retries allowed over all the MMC calls of the build,
+	 * unbounded when negative.
+	 *
+	 * @parameter expression="${retryBudget}" default-value="20"
+	 */
+	protected int retryBudget = RetryPolicy.DEFAULT_RETRY_BUDGET;
+
+	/**
+	 * Number of consecutive failed MMC calls after which the calls fail at
+	 * once for {@link #circuitBreakerOpenTime}, never when 0.
+	 *
+	 * @parameter expression="${circuitBreakerThreshold}" default-value="5"
+	 */
+	protected int circuitBreakerThreshold = RetryPolicy.DEFAULT_FAILURE_THRESHOLD;
+
+	/**
+	 * Time in milliseconds the MMC calls fail at once after
+	 * {@link #circuitBreakerThreshold} consecutive failures.
+	 *
+	 * @parameter expression="${circuitBreakerOpenTime}" default-value="30000"
+	 */
+	protected long circuitBreakerOpenTime = RetryPolicy.DEFAULT_OPEN_TIME;
+
+	/**
+	 * When true, the deployment status polls are sent with non-blocking
+	 * sockets driven by a couple of threads, so that the polls of many
+	 * deployments can be in flight at once. Only the status polls are
+	 * asynchronous, every other call to the MMC blocks.
+	 *
+	 * @parameter expression="${asyncStatusPolls}" default-value="false"
+	 */
+	protected boolean asyncStatusPolls;
+
+	/**
+	 * Maximum number of connections to the MMC open at once for the
+	 * asynchronous status polls.
+	 *
+	 * @parameter expression="${maxAsyncConnections}" default-value="100"
+	 */
+	protected int maxAsyncConnections = AsyncStatusPoller.DEFAULT_MAX_CONNECTIONS;
+
+	/**
+	 * Interval in milliseconds between two upload progress messages.
+	 *
+	 * @parameter expression="${progressInterval}" default-value="5000"
+	 */
+	protected long progressInterval = MuleRest.DEFAULT_PROGRESS_INTERVAL;
+
+	/**
+	 * When true, the SHA-256 digest of the archive is appended to the version
+	 * and an archive already present in the repository with the same digest is
+	 * deployed as is instead of being uploaded again.
+	 *
+	 * @parameter expression="${skipIdenticalUpload}" default-value="false"
+	 */
+	protected boolean skipIdenticalUpload;
+
+	/**
+	 * When true, an index of the archive entries is kept after each upload and
+	 * a rebuilt archive whose entries did not change since is not uploaded
+	 * again, the version already in the repository is deployed instead.
+	 *
+	 * @parameter expression="${deltaUpload}" default-value="false"
+	 */
+	protected boolean deltaUpload;
+
+	/**
+	 * Directory holding the archive indexes used by {@link #deltaUpload}.
+	 *
+	 * @parameter expression="${deltaIndexDirectory}" default-value="${user.home}/.mule-mmc-rest"
+	 */
+	protected File deltaIndexDirectory;
+
+	/**
+	 * When true, the archive is rewritten before its upload: entries
+	 * recompressed at {@link #compressionLevel}, identical jars of lib kept
+	 * once and a reproducible layout, so that the same content always gives
+	 * the same archive.
+	 *
+	 * @parameter expression="${optimizeArchive}" default-value="false"
+	 */
+	protected boolean optimizeArchive;
+
+	/**
+	 * Deflate level, 0 to 9, of the entries of the optimized archive.
+	 *
+	 * @parameter expression="${compressionLevel}" default-value="9"
+	 */
+	protected int compressionLevel = ArchiveOptimizer.DEFAULT_COMPRESSION_LEVEL;
+
+	/**
+	 * Number of entries compressed at the same time when optimizing the
+	 * archive, the number of processors when 0.
+	 *
+	 * @parameter expression="${compressionThreads}" default-value="0"
+	 */
+	protected int compressionThreads;
+
+	/**
+	 * When true, the build waits until the MMC reports the deployments
+	 * DEPLOYED, and fails if they are reported FAILED or do not complete
+	 * within {@link #deploymentTimeout}.
+	 *
+	 * @parameter expression="${waitForDeployment}" default-value="false"
+	 */
+	protected boolean waitForDeployment;
+
+	/**
+	 * Maximum time in milliseconds to wait for the deployments to complete.
+	 *
+	 * @parameter expression="${deploymentTimeout}" default-value="300000"
+	 */
+	protected long deploymentTimeout = DEFAULT_DEPLOYMENT_TIMEOUT;
+
+	/**
+	 * Delay in milliseconds before the first poll of the deployment status,
+	 * growing on every further poll up to {@link #maxPollInterval}.
+	 *
+	 * @parameter expression="${pollInterval}" default-value="500"
+	 */
+	protected long pollInterval = DeploymentTracker.DEFAULT_INITIAL_INTERVAL;
+
+	/**
+	 * Maximum delay in milliseconds between two polls of the deployment
+	 * status.
+	 *
+	 * @parameter expression="${maxPollInterval}" default-value="10000"
+	 */
+	protected long maxPollInterval = DeploymentTracker.DEFAULT_MAX_INTERVAL;
+
+	/**
+	 * When true, the servers, clusters and deployments are looked up by name
+	 * with query parameters, so that the MMC returns only the matching
+	 * entries instead of the whole collections.
+	 *
+	 * @parameter expression="${serverSideFiltering}" default-value="false"
+	 */
+	protected boolean serverSideFiltering;
+
+	/**
+	 * When true, a deployment that already exists is updated in place with
+	 * the new applications and targets, then redeployed, rather than deleted
+	 * and created again, which would undeploy the application from all its
+	 * servers in between. Falls back to delete and create with an MMC unable
+	 * to update deployments.
+	 *
+	 * @parameter expression="${updateDeployments}" default-value="true"
+	 */
+	protected boolean updateDeployments = true;
+
+	/**
+	 * Number of entries requested per page when reading an MMC collection,
+	 * the whole collection in one request when 0.
+	 *
+	 * @parameter expression="${pageSize}" default-value="0"
+	 */
+	protected int pageSize;
+
+	/**
+	 * When true, the ids of the servers, clusters and server groups resolved
+	 * from the MMC are kept on disk and reused by the next builds, for
+	 * {@link #persistentCacheTtl} before being revalidated.
+	 *
+	 * @parameter expression="${persistentCache}" default-value="false"
+	 */
+	protected boolean persistentCache;
+
+	/**
+	 * Time in milliseconds the ids of the persistent cache are used without
+	 * asking the MMC, after which they are revalidated with their ETag.
+	 *
+	 * @parameter expression="${persistentCacheTtl}" default-value="3600000"
+	 */
+	protected long persistentCacheTtl = MetadataCache.DEFAULT_TTL;
+
+	/**
+	 * Directory holding the persistent cache, one file per MMC.
+	 *
+	 * @parameter expression="${persistentCacheDirectory}" default-value="${user.home}/.mule-mmc-rest"
+	 */
+	protected File persistentCacheDirectory;
+
+	/**
+	 * When true, the MMC lookups ask for gzipped responses.
+	 *
+	 * @parameter expression="${acceptGzip}" default-value="true"
+	 */
+	protected boolean acceptGzip = true;
+
+	/**
+	 * Maximum number of bytes of the MMC responses kept in memory during the
+	 * build to make the repeated lookups conditional on their ETag or
+	 * Last-Modified date, disabled when 0. The lookups are already answered
+	 * from the inventory cache until a change invalidates it, so the bodies
+	 * are only worth keeping for MMCs changed by others during the build.
+	 *
+	 * @parameter expression="${responseCacheSize}" default-value="0"
+	 */
+	protected long responseCacheSize;
+
+	/**
+	 * When true, the requests, bytes and latencies of the MMC calls are
+	 * measured per endpoint, summarized in the build log and written to
+	 * mmc-performance.json and mmc-performance.csv in
+	 * {@link #reportDirectory}.
+	 *
+	 * @parameter expression="${performanceReport}" default-value="false"
+	 */
+	protected boolean performanceReport;
+
+	/**
+	 * Directory the performance report is written to.
+	 *
+	 * @parameter expression="${reportDirectory}"
+	 *            default-value="${project.build.directory}"
+	 */
+	protected File reportDirectory;
+
+	protected MuleRest muleRest;
+
+	private ExecutorService prefetchExecutor;
+
+	private final List<MetadataCache> metadataCaches = new ArrayList<MetadataCache>();
+	private MmcMetrics metrics;
+
+	protected void validateCredentials() throws MojoFailureException {
+		if (username == null || password == null) {
+			throw new MojoFailureException((username == null ? "Username" : "Password") + " not set.");
+		}
+	}
+
+	protected void validateMuleApiUrl() throws MojoFailureException {
+		if (muleApiUrl == null) {
+			throw new MojoFailureException("muleApiUrl not set.");
+		}
+	}
+
+	protected static String defaultVersion() {
+		return new SimpleDateFormat(VERSION_FORMAT).format(Calendar.getInstance().getTime());
+	}
+
+	/**
+	 * Uploads the archive to the repository, or returns the version already in
+	 * the repository when {@link #deltaUpload} is set and the archive entries
+	 * did not change, or when {@link #skipIdenticalUpload} is set and an
+	 * identical archive was uploaded before.
+	 *
+	 * @return the id of the version in the repository
+	 */
+	protected String uploadArchive(String name, String version, File archive) throws IOException {
+		if (!optimizeArchive) {
+			return uploadArchiveAs(name, version, archive);
+		}
+
+		File optimized = optimize(archive);
+		try {
+			return uploadArchiveAs(name, version, optimized);
+		} finally {
+			deleteOptimized(archive, optimized);
+		}
+	}
+
+	/**
+	 * @return a recompressed copy of the archive in a temporary directory, or
+	 *         the archive itself when recompressing it does not pay off
+	 */
+	protected File optimize(File archive) throws IOException {
+		// same file name as the original one, it is the name shown by the MMC
+		File directory = File.createTempFile("optimized", "");
+		directory.delete();
+		directory.mkdirs();
+		File optimized = new File(directory, archive.getName());
+		boolean done = false;
+		try {
+			ArchiveOptimizer optimizer = new ArchiveOptimizer(compressionLevel, compressionThreads);
+			done = optimizer.optimize(archive, optimized);
+		} finally {
+			if (!done) {
+				deleteOptimized(archive, optimized);
+			}
+		}
+		return done ? optimized : archive;
+	}
+
+	/**
+	 * Deletes the copy made by {@link #optimize(File)}, if any.
+	 */
+	protected static void deleteOptimized(File archive, File optimized) {
+		if (optimized != archive) {
+			optimized.delete();
+			optimized.getParentFile().delete();
+		}
+	}
+
+	private String uploadArchiveAs(String name, String version, File archive) throws IOException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		ArchiveIndex index = null;
+		File indexFile = null;
+		if (deltaUpload) {
+			index = ArchiveIndex.read(archive);
+			indexFile = getIndexFile(name);
+			String versionId = findUnchangedVersion(name, index, ArchiveIndex.load(indexFile), archive);
+			if (versionId != null) {
+				return versionId;
+			}
+		}
+
+		if (skipIdenticalUpload) {
+			String digest = computeArchiveDigest(archive);
+			String versionId = muleRest.restfullyGetApplicationIdByDigest(name, digest);
+			if (versionId != null) {
+				logger.info("Archive {} is already in the repository, skipping upload", digest);
+				return versionId;
+			}
+			version = MuleRest.tagVersion(version, digest);
+		}
+		String versionId = muleRest.restfullyUploadRepository(name, version, archive);
+
+		if (index != null) {
+			index.setUrl(muleApiUrl.toString());
+			index.setVersion(version);
+			index.setVersionId(versionId);
+			index.store(indexFile);
+		}
+		return versionId;
+	}
+
+	/**
+	 * @return the id of the version uploaded last if the entries of the
+	 *         archive did not change since and it is still in the repository,
+	 *         null otherwise
+	 */
+	private String findUnchangedVersion(String name, ArchiveIndex index, ArchiveIndex previous, File archive) throws IOException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		if (previous == null || !muleApiUrl.toString().equals(previous.getUrl())) {
+			logger.info("No previous upload of {} indexed, uploading the whole archive", name);
+			return null;
+		}
+
+		ArchiveIndex.Delta delta = index.diff(previous);
+		if (delta.isEmpty()) {
+			if (previous.getVersionId() != null && previous.getVersionId().equals(muleRest.restfullyGetApplicationId(name, previous.getVersion()))) {
+				logger.info("Entries of {} unchanged since version {}, skipping upload, {} bytes saved", new Object[] { name, previous.getVersion(), archive.length() });
+				return previous.getVersionId();
+			}
+			logger.info("Version {} of {} is no longer in the repository, uploading the whole archive", previous.getVersion(), name);
+			return null;
+		}
+
+		// the MMC repository only accepts whole archives
+		logger.info("{} of {} entries of {} changed since version {} ({} added, {} removed), {} of {} bytes, uploading the whole archive, 0 bytes saved", new Object[] { delta.getChanged().size() + delta.getAdded().size(), index.size(), name, previous.getVersion(), delta.getAdded().size(), delta.getRemoved().size(), delta.getBytes(), archive.length() });
+		return null;
+	}
+
+	private File getIndexFile(String name) {
+		return new File(deltaIndexDirectory, name.replaceAll("[^A-Za-z0-9._-]", "_") + ".index");
+	}
+
+	/**
+	 * @return the hex encoded SHA-256 digest of the archive
+	 */
+	protected String computeArchiveDigest(File file) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			FileChannel channel = inputStream.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				messageDigest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			inputStream.close();
+		}
+
+		StringBuilder digest = new StringBuilder();
+		for (byte b : messageDigest.digest()) {
+			digest.append(String.format("%02x", b));
+		}
+		return digest.toString();
+	}
+
+	/**
+	 * Deploys the deployment. When the build waits for the deployments, its
+	 * status is read first: an existing deployment updated in place keeps its
+	 * id, and may report the outcome of the previous deploy for a while.
+	 *
+	 * @return the status before the deploy, to give to
+	 *         {@link #awaitDeployments(MuleRest, Map)}, null when not waiting
+	 */
+	protected String deployDeployment(MuleRest muleRest, String deploymentId) throws IOException {
+		String previousStatus = waitForDeployment ? muleRest.restfullyGetDeploymentStatus(deploymentId) : null;
+		muleRest.restfullyDeployDeploymentById(deploymentId);
+		return previousStatus;
+	}
+
+	/**
+	 * Waits until all the deployments of the given MMC are DEPLOYED, logging
+	 * how long each one took to get ready. The status a deployment had before
+	 * being deployed is ignored until it changes, a deployment whose status
+	 * never changes does not complete in time.
+	 *
+	 * @param previousStatuses
+	 *            status of each deployment read before deploying it, null for
+	 *            none
+	 * @throws MojoFailureException
+	 *             if a deployment FAILED or did not complete in time
+	 */
+	protected void awaitDeployments(MuleRest muleRest, Map<String, String> previousStatuses) throws MojoFailureException, InterruptedException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		AsyncStatusPoller poller = null;
+		if (asyncStatusPolls) {
+			poller = new AsyncStatusPoller(muleRest);
+			poller.setMaxConnections(maxAsyncConnections);
+		}
+		DeploymentTracker tracker = new DeploymentTracker(muleRest, poller, pollInterval, maxPollInterval);
+		try {
+			List<TrackedDeployment> deployments = new ArrayList<TrackedDeployment>();
+			for (Map.Entry<String, String> deployment : previousStatuses.entrySet()) {
+				deployments.add(tracker.track(deployment.getKey(), deployment.getValue()));
+			}
+
+			long deadline = System.currentTimeMillis() + deploymentTimeout;
+			List<String> failed = new ArrayList<String>();
+			for (TrackedDeployment deployment : deployments) {
+				long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+				if (!deployment.await(remaining, TimeUnit.MILLISECONDS)) {
+					if (deployment.isStatusUnchanged()) {
+						logger.error("Deployment {} did not complete within {} ms, its status is still {} as before the deploy", new Object[] { deployment.getDeploymentId(), deploymentTimeout, deployment.getStatus() });
+					} else {
+						logger.error("Deployment {} did not complete within {} ms, last status: {}", new Object[] { deployment.getDeploymentId(), deploymentTimeout, deployment.getStatus() });
+					}
+					failed.add(deployment.getDeploymentId());
+				} else if (!deployment.isDeployed()) {
+					logger.error("Deployment {} {} after {} ms", new Object[] { deployment.getDeploymentId(), deployment.getStatus(), deployment.getTimeToReady() });
+					failed.add(deployment.getDeploymentId());
+				} else {
+					logger.info("Deployment {} ready after {} ms", deployment.getDeploymentId(), deployment.getTimeToReady());
+				}
+			}
+
+			if (!failed.isEmpty()) {
+				throw new MojoFailureException("Deployments did not complete: " + failed);
+			}
+		} finally {
+			tracker.close();
+			if (poller != null) {
+				poller.close();
+			}
+		}
+	}
+
+	/**
+	 * Starts fetching the MMC collections needed later on in the background,
+	 * overlapping these reads with the upload of the archive.
+	 *
+	 * @param collections
+	 *            names of the collections, see {@link MmcInventory}
+	 */
+	protected void prefetchInventory(Collection<String> collections) {
+		if (serverSideFiltering) {
+			// the filtered lookups read only the entries they need, fetching
+			// the whole collections ahead would defeat them
+			collections = new ArrayList<String>(collections);
+			collections.removeAll(Arrays.asList(MmcInventory.SERVERS, MmcInventory.CLUSTERS, MmcInventory.DEPLOYMENTS));
+		}
+		if (persistentCache) {
+			// most likely in the persistent cache already
+			collections = new ArrayList<String>(collections);
+			collections.removeAll(Arrays.asList(MmcInventory.SERVERS, MmcInventory.CLUSTERS));
+		}
+		if (collections.isEmpty()) {
+			return;
+		}
+		prefetchExecutor = Executors.newFixedThreadPool(collections.size(), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "mmc-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		muleRest.prefetch(prefetchExecutor, collections.toArray(new String[collections.size()]));
+	}
+
+	/**
+	 * @return whether deploying the version looks the repository up before the
+	 *         upload
+	 */
+	protected boolean needsRepository(String version) {
+		return skipIdenticalUpload || deltaUpload || muleRest.isSnapshotVersion(version);
+	}
+
+	protected MuleRest buildMuleRest() {
+		return buildMuleRest(muleApiUrl, username, password);
+	}
+
+	/**
+	 * Builds a client of the given MMC with the options of the goal.
+	 */
+	protected MuleRest buildMuleRest(URL muleApiUrl, String username, String password) {
+		MuleRest rest = new MuleRest(muleApiUrl, username, password);
+		if (maxConnections != null) {
+			rest.setMaxConnections(maxConnections);
+		}
+		rest.setConnectionTimeout(connectionTimeout);
+		rest.setReceiveTimeout(receiveTimeout);
+		RetryPolicy retryPolicy = new RetryPolicy();
+		retryPolicy.setMaxRetries(uploadRetries != null ? uploadRetries : retries);
+		retryPolicy.setInitialBackoff(uploadRetryBackoff != null ? uploadRetryBackoff : retryBackoff);
+		retryPolicy.setMaxBackoff(maxRetryBackoff);
+		retryPolicy.setJitter(retryJitter);
+		retryPolicy.setRetryBudget(retryBudget);
+		retryPolicy.setFailureThreshold(circuitBreakerThreshold);
+		retryPolicy.setOpenTime(circuitBreakerOpenTime);
+		rest.setRetryPolicy(retryPolicy);
+		rest.setProgressInterval(progressInterval);
+		rest.setCacheInventory(true);
+		rest.setServerSideFiltering(serverSideFiltering);
+		rest.setUpdateDeployments(updateDeployments);
+		rest.setPageSize(pageSize);
+		rest.setAcceptGzip(acceptGzip);
+		rest.setResponseCacheSize(responseCacheSize);
+		if (persistentCache) {
+			MetadataCache metadataCache = MetadataCache.open(persistentCacheDirectory, muleApiUrl, persistentCacheTtl);
+			synchronized (metadataCaches) {
+				metadataCaches.add(metadataCache);
+			}
+			rest.setMetadataCache(metadataCache);
+		}
+		if (performanceReport) {
+			if (metrics == null) {
+				metrics = new MmcMetrics();
+			}
+			rest.setMetrics(metrics);
+		}
+		return rest;
+	}
+
+	/**
+	 * Logs the inventory statistics, saves the persistent cache and releases
+	 * the connections to the MMC.
+	 */
+	protected void closeMuleRest() {
+		if (prefetchExecutor != null) {
+			prefetchExecutor.shutdownNow();
+			prefetchExecutor = null;
+		}
+		synchronized (metadataCaches) {
+			for (MetadataCache metadataCache : metadataCaches) {
+				try {
+					metadataCache.store();
+				} catch (IOException e) {
+					LoggerFactory.getLogger(getClass()).warn("Could not save the MMC metadata cache: {}", e.getMessage());
+				}
+			}
+			metadataCaches.clear();
+		}
+		if (metrics != null) {
+			writePerformanceReport(metrics);
+			metrics = null;
+		}
+		if (muleRest != null) {
+			MmcInventory inventory = muleRest.getInventory();
+			if (inventory != null) {
+				LoggerFactory.getLogger(getClass()).debug("MMC inventory hits: {}, misses: {}", inventory.getHits(), inventory.getMisses());
+			}
+			muleRest.close();
+		}
+	}
+
+	private void writePerformanceReport(MmcMetrics metrics) {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		logger.info("MMC calls:");
+		for (String line : metrics.formatSummary()) {
+			logger.info(line);
+		}
+		if (reportDirectory == null) {
+			return;
+		}
+		try {
+			if (!reportDirectory.isDirectory() && !reportDirectory.mkdirs()) {
+				throw new IOException("Could not create " + reportDirectory);
+			}
+			metrics.writeJson(new File(reportDirectory, PERFORMANCE_REPORT + ".json"));
+			metrics.writeCsv(new File(reportDirectory, PERFORMANCE_REPORT + ".csv"));
+		} catch (IOException e) {
+			logger.warn("Could not write the performance report: {}", e.getMessage());
+		}
+	}
+}
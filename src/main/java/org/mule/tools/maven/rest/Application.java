@@ -0,0 +1,87 @@
+package org.mule.tools.maven.rest;
+
+import java.io.File;
+
+/**
+ * An application deployed by the deploy-all goal. Unset values default to the
+ * ones of the goal.
+ */
+public class Application {
+	/**
+	 * The name that the application will be uploaded as.
+	 */
+	private String name;
+
+	/**
+	 * The application archive.
+	 */
+	private File archive;
+
+	/**
+	 * The name of the deployment, same as the name when not set.
+	 */
+	private String deploymentName;
+
+	/**
+	 * The version that the application will be uploaded as.
+	 */
+	private String version;
+
+	/**
+	 * The name of the target Mule server group.
+	 */
+	private String serverGroup;
+
+	/**
+	 * The name of the target Mule cluster, used instead of the server group.
+	 */
+	private String clusterName;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public File getArchive() {
+		return archive;
+	}
+
+	public void setArchive(File archive) {
+		this.archive = archive;
+	}
+
+	public String getDeploymentName() {
+		return deploymentName;
+	}
+
+	public void setDeploymentName(String deploymentName) {
+		this.deploymentName = deploymentName;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	public String getServerGroup() {
+		return serverGroup;
+	}
+
+	public void setServerGroup(String serverGroup) {
+		this.serverGroup = serverGroup;
+	}
+
+	public String getClusterName() {
+		return clusterName;
+	}
+
+	public void setClusterName(String clusterName) {
+		this.clusterName = clusterName;
+	}
+}
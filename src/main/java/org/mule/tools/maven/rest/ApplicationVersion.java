@@ -0,0 +1,39 @@
+package org.mule.tools.maven.rest;
+
+/**
+ * A version of an application stored in the MMC repository.
+ */
+public class ApplicationVersion {
+	private final String name;
+	private final String version;
+	private final String id;
+
+	public ApplicationVersion(String name, String version, String id) {
+		this.name = name;
+		this.version = version;
+		this.id = id;
+	}
+
+	/**
+	 * @return the name of the application
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the id of the version in the repository
+	 */
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return name + " " + version;
+	}
+}
@@ -0,0 +1,220 @@
+package org.mule.tools.maven.rest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * CRC and sizes of the entries of an application archive, read from the
+ * central directory of the zip without inflating the entries. Stored after
+ * each upload, it tells whether a rebuilt archive has the same content as the
+ * version already in the repository even though the zip itself differs, for
+ * instance by the entry timestamps.
+ */
+public class ArchiveIndex {
+	private static final String URL = "url";
+	private static final String VERSION = "version";
+	private static final String VERSION_ID = "versionId";
+	private static final String ENTRY_PREFIX = "entry.";
+
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+	private String url;
+	private String version;
+	private String versionId;
+
+	/**
+	 * Indexes the entries of the archive.
+	 */
+	public static ArchiveIndex read(File archive) throws IOException {
+		ArchiveIndex index = new ArchiveIndex();
+		ZipFile zipFile = new ZipFile(archive);
+		try {
+			Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+			while (zipEntries.hasMoreElements()) {
+				ZipEntry zipEntry = zipEntries.nextElement();
+				if (!zipEntry.isDirectory()) {
+					index.entries.put(zipEntry.getName(), new Entry(zipEntry.getCrc(), zipEntry.getSize(), zipEntry.getCompressedSize()));
+				}
+			}
+		} finally {
+			zipFile.close();
+		}
+		return index;
+	}
+
+	/**
+	 * @return the index stored in the file, or null if there is none
+	 */
+	public static ArchiveIndex load(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		Properties properties = new Properties();
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			properties.load(inputStream);
+		} finally {
+			inputStream.close();
+		}
+
+		ArchiveIndex index = new ArchiveIndex();
+		index.url = properties.getProperty(URL);
+		index.version = properties.getProperty(VERSION);
+		index.versionId = properties.getProperty(VERSION_ID);
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(ENTRY_PREFIX)) {
+				String[] values = properties.getProperty(key).split(",");
+				index.entries.put(key.substring(ENTRY_PREFIX.length()), new Entry(Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2])));
+			}
+		}
+		return index;
+	}
+
+	public void store(File file) throws IOException {
+		Properties properties = new Properties();
+		setProperty(properties, URL, url);
+		setProperty(properties, VERSION, version);
+		setProperty(properties, VERSION_ID, versionId);
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			Entry value = entry.getValue();
+			properties.setProperty(ENTRY_PREFIX + entry.getKey(), value.crc + "," + value.size + "," + value.compressedSize);
+		}
+
+		file.getParentFile().mkdirs();
+		OutputStream outputStream = new FileOutputStream(file);
+		try {
+			properties.store(outputStream, "Archive index of version " + version);
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	private static void setProperty(Properties properties, String key, String value) {
+		if (value != null) {
+			properties.setProperty(key, value);
+		}
+	}
+
+	/**
+	 * @return the entries added, changed and removed since the previous index
+	 */
+	public Delta diff(ArchiveIndex previous) {
+		Delta delta = new Delta();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			Entry previousEntry = previous.entries.get(entry.getKey());
+			if (previousEntry == null) {
+				delta.added.add(entry.getKey());
+				delta.bytes += entry.getValue().compressedSize;
+			} else if (!previousEntry.equals(entry.getValue())) {
+				delta.changed.add(entry.getKey());
+				delta.bytes += entry.getValue().compressedSize;
+			}
+		}
+		for (String name : previous.entries.keySet()) {
+			if (!entries.containsKey(name)) {
+				delta.removed.add(name);
+			}
+		}
+		return delta;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	public String getVersionId() {
+		return versionId;
+	}
+
+	public void setVersionId(String versionId) {
+		this.versionId = versionId;
+	}
+
+	private static class Entry {
+		private final long crc;
+		private final long size;
+		private final long compressedSize;
+
+		Entry(long crc, long size, long compressedSize) {
+			this.crc = crc;
+			this.size = size;
+			this.compressedSize = compressedSize;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Entry)) {
+				return false;
+			}
+			// the compressed size depends on the compression level, not on the
+			// content
+			Entry other = (Entry) obj;
+			return crc == other.crc && size == other.size;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (crc ^ size);
+		}
+	}
+
+	/**
+	 * Difference between two indexes.
+	 */
+	public static class Delta {
+		private final List<String> added = new ArrayList<String>();
+		private final List<String> changed = new ArrayList<String>();
+		private final List<String> removed = new ArrayList<String>();
+		private long bytes;
+
+		public List<String> getAdded() {
+			return added;
+		}
+
+		public List<String> getChanged() {
+			return changed;
+		}
+
+		public List<String> getRemoved() {
+			return removed;
+		}
+
+		/**
+		 * @return the compressed size of the added and changed entries
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public boolean isEmpty() {
+			return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package org.mule.tools.maven.rest;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.cxf.helpers.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites an application archive before its upload: the entries are
+ * recompressed at the given level on several threads, identical jars of the
+ * lib directory are kept only once, and the zip is written deterministically
+ * (sorted entries, fixed timestamps, no extra fields) so that the same content
+ * always gives the same bytes. Entries larger than {@link #MAX_BUFFERED_SIZE}
+ * are compressed twice, once ahead to learn their size and once while
+ * written, rather than held in memory.
+ */
+public class ArchiveOptimizer {
+	public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_COMPRESSION;
+	public static final int MAX_BUFFERED_SIZE = 1024 * 1024;
+
+	private static final Logger logger = LoggerFactory.getLogger(ArchiveOptimizer.class);
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int VERSION = 20;
+	private static final int UTF8_FLAG = 1 << 11;
+	// 1980-01-01 00:00:00, the first date a zip can hold
+	private static final int DOS_TIME = (1 << 21) | (1 << 16);
+	private static final int MAX_ENTRIES = 0xffff;
+	private static final long MAX_SIZE = 0xffffffffL;
+	private static final String LIB = "lib/";
+
+	private final int level;
+	private final int threads;
+
+	/**
+	 * @param level
+	 *            deflate level, 0 to 9
+	 * @param threads
+	 *            number of entries compressed at the same time, the number of
+	 *            processors if not positive
+	 */
+	public ArchiveOptimizer(int level, int threads) {
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level : " + level);
+		}
+		this.level = level;
+		this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Writes the optimized archive to the target file.
+	 *
+	 * @return false if the archive cannot be rewritten, too large for a zip
+	 *         without the zip64 extensions, in which case it must be used as is
+	 */
+	public boolean optimize(File archive, File target) throws IOException {
+		final ZipFile zipFile = new ZipFile(archive);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<ZipEntry> entries = new ArrayList<ZipEntry>();
+			long totalSize = 0;
+			Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+			while (zipEntries.hasMoreElements()) {
+				ZipEntry entry = zipEntries.nextElement();
+				entries.add(entry);
+				totalSize += Math.max(entry.getSize(), 0);
+			}
+			if (entries.size() > MAX_ENTRIES || totalSize > MAX_SIZE) {
+				logger.warn("Archive {} is too large to be optimized, uploading it as is", archive.getName());
+				return false;
+			}
+			Collections.sort(entries, new Comparator<ZipEntry>() {
+				public int compare(ZipEntry first, ZipEntry second) {
+					return first.getName().compareTo(second.getName());
+				}
+			});
+
+			OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+			try {
+				ZipWriter writer = new ZipWriter(outputStream, zipFile);
+				Map<String, String> jarsByDigest = new HashMap<String, String>();
+				int duplicates = 0;
+
+				// at most a few entries compressed ahead of the one being written,
+				// held in memory until written when not larger than
+				// MAX_BUFFERED_SIZE
+				LinkedList<Future<CompressedEntry>> pending = new LinkedList<Future<CompressedEntry>>();
+				int next = 0;
+				while (next < entries.size() || !pending.isEmpty()) {
+					while (next < entries.size() && pending.size() < threads * 2) {
+						final ZipEntry entry = entries.get(next++);
+						pending.add(executor.submit(new Callable<CompressedEntry>() {
+							public CompressedEntry call() throws IOException {
+								return compress(zipFile, entry);
+							}
+						}));
+					}
+
+					CompressedEntry entry = pending.removeFirst().get();
+					// only the lib directory is on the classpath, a jar anywhere
+					// else is application data
+					if (entry.name.startsWith(LIB) && entry.name.endsWith(".jar")) {
+						String original = jarsByDigest.get(entry.digest);
+						if (original != null) {
+							logger.debug("Skipping {}, identical to {}", entry.name, original);
+							duplicates++;
+							continue;
+						}
+						jarsByDigest.put(entry.digest, entry.name);
+					}
+					writer.write(entry);
+				}
+				writer.finish();
+				logger.info("Optimized {}: {} bytes to {} bytes, {} duplicate jars removed", new Object[] { archive.getName(), archive.length(), writer.getOffset(), duplicates });
+			} finally {
+				outputStream.close();
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while optimizing " + archive.getName());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+			zipFile.close();
+		}
+	}
+
+	private CompressedEntry compress(ZipFile zipFile, ZipEntry entry) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		CRC32 crc = new CRC32();
+		boolean buffered = entry.isDirectory() || (entry.getSize() >= 0 && entry.getSize() <= MAX_BUFFERED_SIZE);
+		ByteArrayOutputStream data = buffered ? new ByteArrayOutputStream() : null;
+		CountingOutputStream deflated = new CountingOutputStream(data);
+		long size = entry.isDirectory() ? 0 : deflate(zipFile, entry, deflated, crc, messageDigest);
+
+		CompressedEntry compressed = new CompressedEntry();
+		compressed.source = entry;
+		compressed.name = entry.getName();
+		compressed.crc = crc.getValue();
+		compressed.size = size;
+		compressed.digest = toHex(messageDigest.digest());
+		if (entry.isDirectory() || deflated.getCount() >= size) {
+			// not worth deflating, already compressed jars mostly
+			compressed.method = ZipEntry.STORED;
+			compressed.compressedSize = size;
+			if (buffered) {
+				compressed.data = entry.isDirectory() ? new byte[0] : readFully(zipFile, entry, (int) size);
+			}
+		} else {
+			compressed.method = ZipEntry.DEFLATED;
+			compressed.compressedSize = deflated.getCount();
+			if (buffered) {
+				compressed.data = data.toByteArray();
+			}
+		}
+		return compressed;
+	}
+
+	/**
+	 * Deflates the content of the entry to the output.
+	 *
+	 * @param crc
+	 *            updated with the content if not null
+	 * @param messageDigest
+	 *            updated with the content if not null
+	 * @return the size of the content
+	 */
+	private long deflate(ZipFile zipFile, ZipEntry entry, OutputStream outputStream, CRC32 crc, MessageDigest messageDigest) throws IOException {
+		Deflater deflater = new Deflater(level, true);
+		byte[] buffer = new byte[64 * 1024];
+		byte[] deflated = new byte[64 * 1024];
+		long size = 0;
+		try {
+			InputStream inputStream = zipFile.getInputStream(entry);
+			try {
+				int read;
+				while ((read = inputStream.read(buffer)) != -1) {
+					if (crc != null) {
+						crc.update(buffer, 0, read);
+					}
+					if (messageDigest != null) {
+						messageDigest.update(buffer, 0, read);
+					}
+					size += read;
+					deflater.setInput(buffer, 0, read);
+					while (!deflater.needsInput()) {
+						outputStream.write(deflated, 0, deflater.deflate(deflated));
+					}
+				}
+			} finally {
+				inputStream.close();
+			}
+			deflater.finish();
+			while (!deflater.finished()) {
+				outputStream.write(deflated, 0, deflater.deflate(deflated));
+			}
+		} finally {
+			deflater.end();
+		}
+		return size;
+	}
+
+	private static byte[] readFully(ZipFile zipFile, ZipEntry entry, int size) throws IOException {
+		byte[] data = new byte[size];
+		InputStream inputStream = zipFile.getInputStream(entry);
+		try {
+			int offset = 0;
+			int read;
+			while (offset < size && (read = inputStream.read(data, offset, size - offset)) != -1) {
+				offset += read;
+			}
+		} finally {
+			inputStream.close();
+		}
+		return data;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static class CompressedEntry {
+		private ZipEntry source;
+		private String name;
+		private int method;
+		private long crc;
+		private long size;
+		private long compressedSize;
+		private String digest;
+		// null when the entry is too large to be held, it is then compressed
+		// again while written
+		private byte[] data;
+	}
+
+	/**
+	 * Counts the bytes written, passing them on to the output if any.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream outputStream;
+		private long count;
+
+		CountingOutputStream(OutputStream outputStream) {
+			this.outputStream = outputStream;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (outputStream != null) {
+				outputStream.write(b);
+			}
+			count++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (outputStream != null) {
+				outputStream.write(bytes, offset, length);
+			}
+			count += length;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Writes already compressed entries, which ZipOutputStream cannot do.
+	 */
+	private class ZipWriter {
+		private final OutputStream outputStream;
+		private final ZipFile zipFile;
+		private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+		private long offset;
+		private int entries;
+
+		ZipWriter(OutputStream outputStream, ZipFile zipFile) {
+			this.outputStream = outputStream;
+			this.zipFile = zipFile;
+		}
+
+		void write(CompressedEntry entry) throws IOException {
+			byte[] name = entry.name.getBytes("UTF-8");
+
+			writeInt(centralDirectory, CENTRAL_HEADER_SIGNATURE);
+			writeShort(centralDirectory, VERSION); // version made by
+			writeHeader(centralDirectory, entry, name);
+			writeShort(centralDirectory, 0); // comment length
+			writeShort(centralDirectory, 0); // disk number
+			writeShort(centralDirectory, 0); // internal attributes
+			writeInt(centralDirectory, 0); // external attributes
+			writeInt(centralDirectory, (int) offset);
+			centralDirectory.write(name);
+
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			writeInt(header, LOCAL_HEADER_SIGNATURE);
+			writeHeader(header, entry, name);
+			header.write(name);
+			header.writeTo(outputStream);
+			if (entry.data != null) {
+				outputStream.write(entry.data);
+			} else {
+				writeStreamed(entry);
+			}
+
+			offset += header.size() + entry.compressedSize;
+			entries++;
+			if (offset > MAX_SIZE) {
+				throw new IOException("Optimized archive too large for a zip without zip64 extensions");
+			}
+		}
+
+		/**
+		 * Compresses the entry again straight to the output, deflate giving
+		 * the same bytes for the same content and level.
+		 */
+		private void writeStreamed(CompressedEntry entry) throws IOException {
+			CountingOutputStream counting = new CountingOutputStream(outputStream);
+			if (entry.method == ZipEntry.STORED) {
+				InputStream inputStream = zipFile.getInputStream(entry.source);
+				try {
+					IOUtils.copy(inputStream, counting);
+				} finally {
+					inputStream.close();
+				}
+			} else {
+				deflate(zipFile, entry.source, counting, null, null);
+			}
+			if (counting.getCount() != entry.compressedSize) {
+				throw new IOException("Entry " + entry.name + " changed while optimized");
+			}
+		}
+
+		private void writeHeader(ByteArrayOutputStream out, CompressedEntry entry, byte[] name) {
+			writeShort(out, VERSION); // version needed
+			writeShort(out, UTF8_FLAG);
+			writeShort(out, entry.method);
+			writeInt(out, DOS_TIME);
+			writeInt(out, (int) entry.crc);
+			writeInt(out, (int) entry.compressedSize);
+			writeInt(out, (int) entry.size);
+			writeShort(out, name.length);
+			writeShort(out, 0); // extra field length
+		}
+
+		void finish() throws IOException {
+			centralDirectory.writeTo(outputStream);
+
+			ByteArrayOutputStream end = new ByteArrayOutputStream();
+			writeInt(end, END_SIGNATURE);
+			writeShort(end, 0); // disk number
+			writeShort(end, 0); // disk with the central directory
+			writeShort(end, entries);
+			writeShort(end, entries);
+			writeInt(end, centralDirectory.size());
+			writeInt(end, (int) offset);
+			writeShort(end, 0); // comment length
+			end.writeTo(outputStream);
+			offset += centralDirectory.size() + end.size();
+		}
+
+		long getOffset() {
+			return offset;
+		}
+
+		private void writeShort(ByteArrayOutputStream out, int value) {
+			out.write(value & 0xff);
+			out.write((value >>> 8) & 0xff);
+		}
+
+		private void writeInt(ByteArrayOutputStream out, int value) {
+			writeShort(out, value & 0xffff);
+			writeShort(out, (value >>> 16) & 0xffff);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package org.mule.tools.maven.rest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+
+import javax.ws.rs.core.HttpHeaders;
+
+import org.apache.cxf.common.util.Base64Utility;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Polls the status of deployments asynchronously, for the
+ * {@link DeploymentTracker}. The polls are sent with non-blocking sockets
+ * driven by a couple of I/O threads, whatever the number in flight, and each
+ * returns a {@link MmcFuture} completed on an I/O thread. They go to the MMC
+ * of the given client, through its circuit breaker and metrics, without retry
+ * like its blocking poll. Every other MMC call goes through the blocking
+ * {@link MuleRest}.
+ */
+public class AsyncStatusPoller {
+	public static final int DEFAULT_MAX_CONNECTIONS = 100;
+	public static final int DEFAULT_IO_THREADS = 2;
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private static final String STATUS_ENDPOINT = "GET /deployments/{id}";
+
+	private final MuleRest muleRest;
+	private final String authorization;
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int ioThreads = DEFAULT_IO_THREADS;
+	private CloseableHttpAsyncClient asyncClient;
+	private final Set<MmcFuture<?>> inFlight = Collections.newSetFromMap(new IdentityHashMap<MmcFuture<?>, Boolean>());
+
+	public AsyncStatusPoller(MuleRest muleRest) {
+		this.muleRest = muleRest;
+		try {
+			this.authorization = "Basic " + Base64Utility.encode((muleRest.getUsername() + ":" + muleRest.getPassword()).getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param maxConnections
+	 *            number of connections to the MMC open at once for the polls,
+	 *            the polls beyond wait for one
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @param ioThreads
+	 *            number of threads driving the sockets of the asynchronous
+	 *            polls and running their callbacks
+	 */
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+
+	private synchronized CloseableHttpAsyncClient getAsyncClient() {
+		if (asyncClient == null) {
+			RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout((int) muleRest.getConnectionTimeout()).setSocketTimeout((int) muleRest.getReceiveTimeout()).build();
+			asyncClient = HttpAsyncClients.custom().useSystemProperties().setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(ioThreads).build()).setDefaultRequestConfig(requestConfig).setMaxConnTotal(maxConnections).setMaxConnPerRoute(maxConnections).setThreadFactory(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "mmc-async");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}).build();
+			asyncClient.start();
+		}
+		return asyncClient;
+	}
+
+	/**
+	 * Closes the connections of the poller, failing the polls still in
+	 * flight. The client polled through is left open.
+	 */
+	public synchronized void close() {
+		if (asyncClient != null) {
+			try {
+				asyncClient.close();
+			} catch (IOException e) {
+				// the client is dropped anyway
+			}
+			asyncClient = null;
+		}
+		List<MmcFuture<?>> pending;
+		synchronized (inFlight) {
+			pending = new ArrayList<MmcFuture<?>>(inFlight);
+			inFlight.clear();
+		}
+		for (MmcFuture<?> future : pending) {
+			future.fail(new InterruptedIOException("The MMC client was closed"));
+		}
+	}
+
+	/**
+	 * @return the status of the deployment, polled once without retry
+	 */
+	public MmcFuture<String> getDeploymentStatus(String deploymentId) {
+		final MmcFuture<String> result = new MmcFuture<String>();
+		final RetryPolicy retryPolicy = muleRest.getRetryPolicy();
+		try {
+			retryPolicy.beforeCall(STATUS_ENDPOINT);
+		} catch (CircuitOpenException e) {
+			result.fail(e);
+			return result;
+		}
+		HttpGet request = new HttpGet(muleRest.getMmcUrl().toString().replaceAll("/+$", "") + "/deployments/" + deploymentId);
+		request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+		request.setHeader(HttpHeaders.ACCEPT, "application/json");
+		final long start = System.currentTimeMillis();
+		synchronized (inFlight) {
+			inFlight.add(result);
+		}
+		getAsyncClient().execute(request, new FutureCallback<HttpResponse>() {
+			public void completed(HttpResponse response) {
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (statusCode < 500) {
+					retryPolicy.onSuccess();
+				} else {
+					retryPolicy.onFailure();
+				}
+				try {
+					byte[] body = response.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+					record(start, body.length, statusCode >= 400);
+					MuleRest.checkStatus(statusCode, muleRest.getMmcUrl());
+					finish(result).complete(OBJECT_MAPPER.readTree(body).path("status").getTextValue());
+				} catch (Exception e) {
+					finish(result).fail(e);
+				}
+			}
+
+			public void failed(Exception error) {
+				retryPolicy.onFailure();
+				record(start, 0, true);
+				finish(result).fail(error);
+			}
+
+			public void cancelled() {
+				retryPolicy.onAbort();
+				finish(result).fail(new InterruptedIOException("The MMC call was cancelled"));
+			}
+		});
+		return result;
+	}
+
+	private <T> MmcFuture<T> finish(MmcFuture<T> future) {
+		synchronized (inFlight) {
+			inFlight.remove(future);
+		}
+		return future;
+	}
+
+	private void record(long start, long bytesReceived, boolean failed) {
+		MmcMetrics metrics = muleRest.getMetrics();
+		if (metrics != null) {
+			metrics.record(STATUS_ENDPOINT, System.currentTimeMillis() - start, 0, bytesReceived, failed);
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package org.mule.tools.maven.rest;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of calling the MMC while the circuit of the
+ * {@link RetryPolicy} is open.
+ */
+public class CircuitOpenException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String message) {
+		super(message);
+	}
+}
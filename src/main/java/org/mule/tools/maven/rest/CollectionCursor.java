@@ -0,0 +1,229 @@
+package org.mule.tools.maven.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Lazy iterator over the entries of the "data" array of an MMC collection,
+ * read page after page as the entries are consumed. The current page is
+ * streamed and, when paging, the next one is fetched in the background while
+ * the current one is read, so at most one page is held in memory. Closing the
+ * cursor before the end stops fetching pages.
+ */
+public class CollectionCursor implements Closeable {
+	private final PageLoader loader;
+	private final JsonFactory jsonFactory;
+	private final int pageSize;
+	private final ExecutorService executor;
+
+	private JsonParser parser;
+	private boolean inData;
+	private boolean finished;
+	private int offset;
+	private int entries;
+	private long total = -1;
+	private Future<byte[]> nextPage;
+
+	/**
+	 * Opens the responses of a collection.
+	 */
+	public interface PageLoader {
+		/**
+		 * @param offset
+		 *            index of the first entry of the page
+		 * @param limit
+		 *            number of entries of the page, 0 for the whole collection
+		 * @return the response body, closing it releases the response
+		 */
+		InputStream load(int offset, int limit) throws IOException;
+	}
+
+	/**
+	 * @param pageSize
+	 *            number of entries per page, 0 to read the collection in a
+	 *            single response
+	 * @param executor
+	 *            fetches the next page while the current one is read, pages
+	 *            are fetched when needed if null
+	 */
+	public CollectionCursor(PageLoader loader, JsonFactory jsonFactory, int pageSize, ExecutorService executor) {
+		this.loader = loader;
+		this.jsonFactory = jsonFactory;
+		this.pageSize = pageSize;
+		this.executor = executor;
+	}
+
+	/**
+	 * Moves to the next entry, fetching the next page if needed. The entry
+	 * object must be read up to its end before moving on.
+	 *
+	 * @return false when there are no more entries
+	 */
+	public boolean next() throws IOException {
+		while (!finished) {
+			if (parser == null) {
+				openPage();
+			} else if (inData) {
+				JsonToken token = parser.nextToken();
+				if (token == JsonToken.START_OBJECT) {
+					entries++;
+					return true;
+				} else if (token == JsonToken.END_ARRAY || token == null) {
+					inData = false;
+				} else {
+					parser.skipChildren();
+				}
+			} else if (!findData()) {
+				closePage();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the parser, positioned on the start of the current entry
+	 */
+	public JsonParser getParser() {
+		return parser;
+	}
+
+	/**
+	 * @return the number of entries of the collection announced by the MMC,
+	 *         or -1 if it is not known yet
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	public void close() throws IOException {
+		finished = true;
+		cancelNextPage();
+		if (parser != null) {
+			JsonParser current = parser;
+			parser = null;
+			current.close();
+		}
+	}
+
+	private void openPage() throws IOException {
+		InputStream inputStream;
+		if (nextPage != null) {
+			inputStream = new ByteArrayInputStream(getNextPage());
+		} else {
+			inputStream = loader.load(offset, Math.max(pageSize, 0));
+		}
+		parser = jsonFactory.createJsonParser(inputStream);
+		entries = 0;
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			closePage();
+			finished = true;
+		}
+	}
+
+	/**
+	 * Reads the fields of the page object up to the "data" array, keeping the
+	 * total on the way.
+	 *
+	 * @return false at the end of the page
+	 */
+	private boolean findData() throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_ARRAY && "data".equals(field)) {
+				inData = true;
+				prefetchNextPage();
+				return true;
+			} else if (token == JsonToken.VALUE_NUMBER_INT && "total".equals(field)) {
+				total = parser.getLongValue();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		// reads the response to its end, so that the connection can be reused
+		// and the body cached
+		parser.nextToken();
+		return false;
+	}
+
+	/**
+	 * Starts fetching the page following the current one, unless the total
+	 * read so far says there is none.
+	 */
+	private void prefetchNextPage() {
+		final int nextOffset = offset + pageSize;
+		if (pageSize <= 0 || executor == null || (total >= 0 && nextOffset >= total)) {
+			return;
+		}
+		nextPage = executor.submit(new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				InputStream inputStream = loader.load(nextOffset, pageSize);
+				try {
+					ByteArrayOutputStream page = new ByteArrayOutputStream();
+					byte[] buffer = new byte[8 * 1024];
+					int read;
+					while ((read = inputStream.read(buffer)) != -1) {
+						page.write(buffer, 0, read);
+					}
+					return page.toByteArray();
+				} finally {
+					inputStream.close();
+				}
+			}
+		});
+	}
+
+	private byte[] getNextPage() throws IOException {
+		try {
+			return nextPage.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while fetching the page at " + offset);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			nextPage = null;
+		}
+	}
+
+	private void cancelNextPage() {
+		if (nextPage != null) {
+			nextPage.cancel(true);
+			nextPage = null;
+		}
+	}
+
+	/**
+	 * Closes the current page and decides whether another one follows: a
+	 * page shorter or longer than asked for, the latter from an MMC ignoring
+	 * the paging, or reaching the total ends the collection.
+	 */
+	private void closePage() throws IOException {
+		JsonParser current = parser;
+		parser = null;
+		inData = false;
+		current.close();
+
+		if (pageSize <= 0 || entries != pageSize || (total >= 0 && offset + entries >= total)) {
+			finished = true;
+			cancelNextPage();
+		} else {
+			offset += entries;
+		}
+	}
+}
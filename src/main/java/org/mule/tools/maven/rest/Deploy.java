@@ -1,11 +1,21 @@
 package org.mule.tools.maven.rest;
 
 import java.io.File;
-import java.net.URL;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.slf4j.Logger;
@@ -21,8 +31,11 @@ import org.slf4j.impl.StaticLoggerBinder;
  * @author Nicholas A. Stuart
  * @author Mohamed EL HABIB
  */
-public class Deploy extends AbstractMojo {
+public class Deploy extends AbstractMuleMojo {
 	public static final String DEFAULT_NAME = "MuleApplication";
+	public static final int DEFAULT_CANARY_SERVERS = 1;
+	public static final int DEFAULT_WAVE_PERCENT = 25;
+	public static final int DEFAULT_MIN_AVAILABLE_PERCENT = 75;
 
 	/**
 	 * Directory containing the generated Mule App.
@@ -65,45 +78,83 @@ public class Deploy extends AbstractMojo {
 	protected String version;
 
 	/**
-	 * The username that has
+	 * Directory containing the app resources.
 	 * 
-	 * @parameter expression="${username}"
+	 * @parameter expression="${basedir}/src/main/app"
 	 * @required
 	 */
-	protected String username;
+	protected File appDirectory;
 
 	/**
-	 * @parameter expression="${password}"
-	 * @required
+	 * Server group deployed to, unless clusterName is set. Not needed when
+	 * every endpoint sets its own server group or cluster.
+	 *
+	 * @parameter expression="${serverGroup}"
 	 */
-	protected String password;
+	protected String serverGroup;
 
 	/**
-	 * Directory containing the app resources.
-	 * 
-	 * @parameter expression="${basedir}/src/main/app"
-	 * @required
+	 * @parameter expression="${clusterName}"
 	 */
-	protected File appDirectory;
+	protected String clusterName;
 
 	/**
-	 * @parameter expression="muleApiUrl"
-	 * @required
+	 * When true, the servers of the group are deployed to in waves, one
+	 * deployment named after {@link #deploymentName} and the wave number per
+	 * wave, waiting for each wave to be DEPLOYED before starting the next one.
+	 * The servers of a wave are first taken out of the deployments carrying
+	 * the application, updated in place, so that the other servers keep
+	 * running it. A failed wave stops the rollout and the waves already
+	 * deployed are rolled back to the versions deployed before.
+	 *
+	 * @parameter expression="${rollingDeployment}" default-value="false"
 	 */
-	protected URL muleApiUrl;
+	protected boolean rollingDeployment;
 
 	/**
-	 * @parameter expression="${serverGroup}"
-	 * @required
+	 * Number of servers of the first wave of a rolling deployment, none when
+	 * 0.
+	 *
+	 * @parameter expression="${canaryServers}" default-value="1"
 	 */
-	protected String serverGroup;
+	protected int canaryServers = DEFAULT_CANARY_SERVERS;
 
 	/**
-	 * @parameter expression="${clusterName}"
+	 * Size of the waves following the canary, in percent of the servers of
+	 * the group.
+	 *
+	 * @parameter expression="${wavePercent}" default-value="25"
 	 */
-	protected String clusterName;
+	protected int wavePercent = DEFAULT_WAVE_PERCENT;
 
-	protected MuleRest muleRest;
+	/**
+	 * Percentage of the servers of the group left running the deployed
+	 * version while a wave is deployed, bounding the size of the waves.
+	 *
+	 * @parameter expression="${minAvailablePercent}" default-value="75"
+	 */
+	protected int minAvailablePercent = DEFAULT_MIN_AVAILABLE_PERCENT;
+
+	/**
+	 * MMCs to deploy to instead of muleApiUrl, which is then not needed. The
+	 * archive is read once and uploaded to all of them at the same time, then
+	 * deployed on each of them at the same time. The values an endpoint does
+	 * not set are the ones of the goal. Not supported with deltaUpload nor
+	 * rollingDeployment.
+	 *
+	 * @parameter
+	 */
+	protected List<MmcEndpoint> endpoints;
+
+	/**
+	 * When false, the application is deployed to the endpoints only once it
+	 * has been uploaded to all of them, and the goal fails if any endpoint
+	 * failed. When true, the application is deployed to every endpoint it has
+	 * been uploaded to, and the goal fails only if all the endpoints failed.
+	 *
+	 * @parameter expression="${bestEffort}" default-value="false"
+	 */
+	protected boolean bestEffort;
 
 	@Override
 	public void execute() throws MojoExecutionException, MojoFailureException {
@@ -119,33 +170,510 @@ public class Deploy extends AbstractMojo {
 			deploymentName = name;
 		}
 		if (version == null) {
-			version = new SimpleDateFormat("MM-dd-yyyy-HH:mm:ss").format(Calendar.getInstance().getTime());
+			version = defaultVersion();
 			logger.info("Version is not set, using a default of the timestamp: {}", version);
 		}
-		if (username == null || password == null) {
-			throw new MojoFailureException((username == null ? "Username" : "Password") + " not set.");
-		}
 		if (outputDirectory == null) {
 			throw new MojoFailureException("outputDirectory not set.");
 		}
 		if (finalName == null) {
 			throw new MojoFailureException("finalName not set.");
 		}
-		if (serverGroup == null) {
-			throw new MojoFailureException("serverGroup not set.");
+		if (rollingDeployment) {
+			if (clusterName != null) {
+				throw new MojoFailureException("rollingDeployment deploys to the servers of a group, not to a cluster.");
+			}
+			if (serverGroup == null) {
+				throw new MojoFailureException("serverGroup not set.");
+			}
+			if (wavePercent < 1 || wavePercent > 100) {
+				throw new MojoFailureException("wavePercent must be between 1 and 100.");
+			}
+			if (minAvailablePercent < 0 || minAvailablePercent > 99) {
+				throw new MojoFailureException("minAvailablePercent must be between 0 and 99.");
+			}
+		}
+		if (endpoints != null && !endpoints.isEmpty()) {
+			if (rollingDeployment) {
+				throw new MojoFailureException("rollingDeployment deploys to a single MMC, not to endpoints.");
+			}
+			if (deltaUpload) {
+				throw new MojoFailureException("deltaUpload indexes the uploads to a single MMC, not to endpoints.");
+			}
+			validateEndpoints();
+		} else {
+			validateCredentials();
+			validateMuleApiUrl();
+			if (serverGroup == null && clusterName == null) {
+				throw new MojoFailureException("serverGroup not set.");
+			}
 		}
 
 		try {
 			validateProject(appDirectory);
+			if (endpoints != null && !endpoints.isEmpty()) {
+				deployToEndpoints(getMuleZipFile(outputDirectory, finalName));
+				return;
+			}
 			muleRest = buildMuleRest();
-			String versionId = muleRest.restfullyUploadRepository(name, version, getMuleZipFile(outputDirectory, finalName));
+
+			List<String> collections = new ArrayList<String>();
+			collections.add(clusterName == null ? MmcInventory.SERVERS : MmcInventory.CLUSTERS);
+			collections.add(MmcInventory.DEPLOYMENTS);
+			if (needsRepository(version)) {
+				collections.add(MmcInventory.REPOSITORY);
+			}
+			prefetchInventory(collections);
+
+			String versionId = uploadArchive(name, version, getMuleZipFile(outputDirectory, finalName));
+			if (rollingDeployment) {
+				deployInWaves(versionId);
+				return;
+			}
+			if (clusterName == null) {
+				warnAboutWaves(muleRest);
+			}
 			String deploymentId = muleRest.restfullyCreateDeployment(serverGroup, deploymentName, clusterName, versionId);
-			muleRest.restfullyDeployDeploymentById(deploymentId);
+			String previousStatus = deployDeployment(muleRest, deploymentId);
+			if (waitForDeployment) {
+				awaitDeployments(muleRest, Collections.singletonMap(deploymentId, previousStatus));
+			}
+		} catch (MojoFailureException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new MojoFailureException("Error in attempting to deploy archive: " + e.toString(), e);
+		} finally {
+			closeMuleRest();
 		}
 	}
 
+	private void validateEndpoints() throws MojoFailureException {
+		for (MmcEndpoint endpoint : endpoints) {
+			if (endpoint.getMuleApiUrl() == null) {
+				throw new MojoFailureException("muleApiUrl not set for an endpoint.");
+			}
+			if (endpoint.getUsername() == null) {
+				endpoint.setUsername(username);
+			}
+			if (endpoint.getPassword() == null) {
+				endpoint.setPassword(password);
+			}
+			if (endpoint.getUsername() == null || endpoint.getPassword() == null) {
+				throw new MojoFailureException((endpoint.getUsername() == null ? "username" : "password") + " not set for endpoint " + endpoint + " nor for the goal.");
+			}
+			if (endpoint.getServerGroup() == null && endpoint.getClusterName() == null) {
+				if (serverGroup == null && clusterName == null) {
+					throw new MojoFailureException("serverGroup not set for endpoint " + endpoint + " nor for the goal.");
+				}
+				endpoint.setServerGroup(serverGroup);
+				endpoint.setClusterName(clusterName);
+			}
+		}
+	}
+
+	/**
+	 * Uploads the archive to all the endpoints concurrently, then deploys it
+	 * concurrently on the endpoints it was uploaded to, unless the policy is
+	 * all-or-nothing and an upload failed. The archive is optimized and its
+	 * digest computed once for all the endpoints.
+	 */
+	protected void deployToEndpoints(File archiveFile) throws IOException, InterruptedException, MojoFailureException {
+		File optimized = optimizeArchive ? optimize(archiveFile) : archiveFile;
+		try {
+			deployToEndpoints(SharedArchive.map(optimized), skipIdenticalUpload ? computeArchiveDigest(optimized) : null);
+		} finally {
+			deleteOptimized(archiveFile, optimized);
+		}
+	}
+
+	private void deployToEndpoints(final SharedArchive archive, final String digest) throws InterruptedException, MojoFailureException {
+		final Logger logger = LoggerFactory.getLogger(getClass());
+		List<EndpointResult> results = new ArrayList<EndpointResult>();
+		for (MmcEndpoint endpoint : endpoints) {
+			results.add(new EndpointResult(endpoint));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(results.size());
+		try {
+			runOnEndpoints(executor, results, new EndpointTask() {
+				public void run(EndpointResult result) throws Exception {
+					MmcEndpoint endpoint = result.getEndpoint();
+					result.rest = buildMuleRest(endpoint.getMuleApiUrl(), endpoint.getUsername(), endpoint.getPassword());
+					String uploadVersion = version;
+					if (digest != null) {
+						result.versionId = result.rest.restfullyGetApplicationIdByDigest(name, digest);
+						if (result.versionId != null) {
+							logger.info("Archive {} is already in the repository of {}, skipping upload", digest, endpoint);
+							return;
+						}
+						uploadVersion = MuleRest.tagVersion(version, digest);
+					}
+					result.versionId = result.rest.restfullyUploadSharedArchive(name, uploadVersion, archive);
+				}
+			});
+
+			List<EndpointResult> uploaded = new ArrayList<EndpointResult>();
+			for (EndpointResult result : results) {
+				if (result.isSuccess()) {
+					uploaded.add(result);
+				}
+			}
+			if (!bestEffort && uploaded.size() < results.size()) {
+				logger.error("The archive could not be uploaded to every endpoint, deploying it nowhere");
+				for (EndpointResult result : uploaded) {
+					result.skipped = true;
+				}
+			} else {
+				runOnEndpoints(executor, uploaded, new EndpointTask() {
+					public void run(EndpointResult result) throws Exception {
+						MmcEndpoint endpoint = result.getEndpoint();
+						if (endpoint.getClusterName() == null) {
+							warnAboutWaves(result.rest);
+						}
+						result.deploymentId = result.rest.restfullyCreateDeployment(endpoint.getServerGroup(), deploymentName, endpoint.getClusterName(), result.versionId);
+						String previousStatus = deployDeployment(result.rest, result.deploymentId);
+						if (waitForDeployment) {
+							awaitDeployments(result.rest, Collections.singletonMap(result.deploymentId, previousStatus));
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdownNow();
+			for (EndpointResult result : results) {
+				if (result.rest != null) {
+					result.rest.close();
+				}
+			}
+		}
+		report(results);
+	}
+
+	private void runOnEndpoints(ExecutorService executor, List<EndpointResult> results, final EndpointTask task) throws InterruptedException {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final EndpointResult result : results) {
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					long start = System.currentTimeMillis();
+					try {
+						task.run(result);
+					} finally {
+						result.elapsed += System.currentTimeMillis() - start;
+					}
+					return null;
+				}
+			}));
+		}
+		for (int index = 0; index < results.size(); index++) {
+			try {
+				futures.get(index).get();
+			} catch (ExecutionException e) {
+				results.get(index).error = e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Logs the outcome of every endpoint.
+	 *
+	 * @throws MojoFailureException
+	 *             if any endpoint failed, or with the best-effort policy if all
+	 *             of them failed
+	 */
+	protected void report(List<EndpointResult> results) throws MojoFailureException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		List<String> failed = new ArrayList<String>();
+
+		logger.info("Deployment report:");
+		logger.info(String.format("  %-40s %-8s %10s  %s", "Endpoint", "Status", "Time (ms)", "Details"));
+		for (EndpointResult result : results) {
+			if (result.isSuccess()) {
+				String status = result.skipped ? "SKIPPED" : "SUCCESS";
+				String details = result.skipped ? "uploaded as " + result.versionId + ", not deployed" : result.deploymentId;
+				logger.info(String.format("  %-40s %-8s %10d  %s", result.getEndpoint(), status, result.getElapsed(), details));
+			} else {
+				logger.info(String.format("  %-40s %-8s %10d  %s", result.getEndpoint(), "FAILED", result.getElapsed(), result.getError()));
+				failed.add(String.valueOf(result.getEndpoint()));
+			}
+		}
+
+		if (failed.isEmpty()) {
+			return;
+		}
+		if (!bestEffort || failed.size() == results.size()) {
+			throw new MojoFailureException(failed.size() + " of " + results.size() + " endpoints failed: " + failed);
+		}
+		logger.warn("{} of {} endpoints failed: {}", new Object[] { failed.size(), results.size(), failed });
+	}
+
+	private interface EndpointTask {
+		void run(EndpointResult result) throws Exception;
+	}
+
+	/**
+	 * Outcome of the deployment to one endpoint.
+	 */
+	public static class EndpointResult {
+		private final MmcEndpoint endpoint;
+		private MuleRest rest;
+		private String versionId;
+		private String deploymentId;
+		private boolean skipped;
+		private long elapsed;
+		private Throwable error;
+
+		public EndpointResult(MmcEndpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		public MmcEndpoint getEndpoint() {
+			return endpoint;
+		}
+
+		public String getVersionId() {
+			return versionId;
+		}
+
+		public String getDeploymentId() {
+			return deploymentId;
+		}
+
+		/**
+		 * @return true if the archive was uploaded but not deployed, because
+		 *         another endpoint failed
+		 */
+		public boolean isSkipped() {
+			return skipped;
+		}
+
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+
+	/**
+	 * Deploys the version to the servers of the group wave after wave, rolling
+	 * the deployed waves back if one of them fails. Before a wave is deployed,
+	 * its servers are taken out of the deployments already carrying the
+	 * application, the one replaced and the waves of a previous rollout, by
+	 * updating them in place; one is deleted only once it targets nothing but
+	 * servers of the wave. The application is left in one deployment per
+	 * wave, which the next rollout updates in place.
+	 */
+	protected void deployInWaves(String versionId) throws IOException, MojoFailureException, InterruptedException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		List<String> serverIds = new ArrayList<String>(muleRest.restfullyGetServers(serverGroup));
+		if (serverIds.isEmpty()) {
+			throw new IllegalArgumentException("No server found into group : " + serverGroup);
+		}
+		List<List<String>> waves = planWaves(serverIds, canaryServers, wavePercent, minAvailablePercent);
+		Map<String, CurrentDeployment> current = getCurrentDeployments();
+		List<String> previousVersionIds = current.isEmpty() ? Collections.<String> emptyList() : current.values().iterator().next().versionIds;
+
+		Set<String> rolled = new HashSet<String>();
+		List<List<String>> deployed = new ArrayList<List<String>>();
+		for (int wave = 0; wave < waves.size(); wave++) {
+			String name = waveName(deployed.size());
+			List<String> waveServers = new ArrayList<String>(waves.get(wave));
+			waveServers.removeAll(rolled);
+			CurrentDeployment own = current.remove(name);
+			if (own != null) {
+				// updating it takes these servers out of it, they are
+				// redeployed with this wave rather than left without the
+				// application
+				for (String serverId : own.serverIds) {
+					if (!rolled.contains(serverId) && !waveServers.contains(serverId)) {
+						logger.warn("Server {} of deployment {} joins wave {}", new Object[] { serverId, name, wave + 1 });
+						waveServers.add(serverId);
+					}
+				}
+			}
+			if (waveServers.isEmpty()) {
+				continue;
+			}
+			logger.info("Deploying wave {}/{} to servers {}", new Object[] { wave + 1, waves.size(), waveServers });
+			boolean started = false;
+			try {
+				releaseServers(current, waveServers);
+				started = true;
+				deployAndAwait(name, waveServers, Collections.singletonList(versionId));
+			} catch (Exception e) {
+				logger.error("Wave {} failed, rolling back", wave + 1);
+				if (started) {
+					deployed.add(waveServers);
+				}
+				rollBack(deployed, previousVersionIds);
+				throw new MojoFailureException("Rolling deployment stopped at wave " + (wave + 1) + "/" + waves.size() + ": " + e.getMessage(), e);
+			}
+			rolled.addAll(waveServers);
+			deployed.add(waveServers);
+		}
+		for (String name : current.keySet()) {
+			logger.warn("Deployment {} still targets servers out of the group, it is left in place", name);
+		}
+	}
+
+	/**
+	 * A deployment carrying the application before the rollout.
+	 */
+	private static class CurrentDeployment {
+		private final String deploymentId;
+		private final List<String> versionIds;
+		private List<String> serverIds;
+
+		CurrentDeployment(String deploymentId, List<String> serverIds, List<String> versionIds) {
+			this.deploymentId = deploymentId;
+			this.serverIds = serverIds;
+			this.versionIds = versionIds;
+		}
+	}
+
+	/**
+	 * @return the deployment named after {@link #deploymentName} and the waves
+	 *         of a previous rollout, by name in this order
+	 */
+	private Map<String, CurrentDeployment> getCurrentDeployments() throws IOException {
+		Map<String, CurrentDeployment> current = new LinkedHashMap<String, CurrentDeployment>();
+		addCurrentDeployment(current, deploymentName);
+		for (int wave = 0; addCurrentDeployment(current, waveName(wave)); wave++) {
+			// until the first missing wave
+		}
+		return current;
+	}
+
+	private boolean addCurrentDeployment(Map<String, CurrentDeployment> current, String name) throws IOException {
+		String deploymentId = muleRest.restfullyGetDeploymentIdByName(name);
+		if (deploymentId == null) {
+			return false;
+		}
+		current.put(name, new CurrentDeployment(deploymentId, muleRest.restfullyGetDeploymentServers(deploymentId), muleRest.restfullyGetDeploymentApplications(deploymentId)));
+		return true;
+	}
+
+	/**
+	 * Takes the servers out of the current deployments targeting them. A
+	 * deployment keeping other servers is only updated in place, not deployed,
+	 * so that its version keeps running on them without a restart; the
+	 * deployment of the wave then replaces the application on the servers
+	 * taken out. One left with none of its servers is deleted.
+	 *
+	 * @throws MojoFailureException
+	 *             if the MMC cannot update a deployment in place, replacing it
+	 *             would undeploy the application from all its servers
+	 */
+	private void releaseServers(Map<String, CurrentDeployment> current, List<String> serverIds) throws IOException, MojoFailureException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		for (Iterator<Map.Entry<String, CurrentDeployment>> iterator = current.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<String, CurrentDeployment> entry = iterator.next();
+			CurrentDeployment deployment = entry.getValue();
+			List<String> remaining = new ArrayList<String>(deployment.serverIds);
+			remaining.removeAll(serverIds);
+			if (remaining.size() == deployment.serverIds.size()) {
+				continue;
+			}
+			if (remaining.isEmpty()) {
+				logger.info("Removing deployment {}, all its servers are in the wave", entry.getKey());
+				muleRest.restfullyDeleteDeploymentById(deployment.deploymentId);
+				iterator.remove();
+				continue;
+			}
+			logger.info("Taking the servers of the wave out of deployment {}", entry.getKey());
+			if (!muleRest.restfullyUpdateDeploymentOnServers(deployment.deploymentId, entry.getKey(), remaining, deployment.versionIds)) {
+				throw new MojoFailureException("The MMC cannot update deployment " + entry.getKey() + " in place, replacing it would undeploy the application from all its servers");
+			}
+			deployment.serverIds = remaining;
+		}
+	}
+
+	/**
+	 * Creates or updates the deployment, deploys it and waits for it to be
+	 * DEPLOYED, whatever {@link #waitForDeployment}. An existing deployment
+	 * may still report the outcome of its previous deploy, the status read
+	 * before deploying it never counts: the wave fails unless the status
+	 * changes within the deployment timeout.
+	 */
+	private void deployAndAwait(String name, List<String> serverIds, List<String> versionIds) throws IOException, MojoFailureException, InterruptedException {
+		String deploymentId = muleRest.restfullyCreateDeploymentOnServers(name, serverIds, versionIds);
+		String previousStatus = muleRest.restfullyGetDeploymentStatus(deploymentId);
+		muleRest.restfullyDeployDeploymentById(deploymentId);
+		awaitDeployments(muleRest, Collections.singletonMap(deploymentId, previousStatus));
+	}
+
+	private void rollBack(List<List<String>> waves, List<String> previousVersionIds) throws InterruptedException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		for (int wave = 0; wave < waves.size(); wave++) {
+			try {
+				if (previousVersionIds.isEmpty()) {
+					logger.warn("No previous version to roll back to, removing deployment {}", waveName(wave));
+					muleRest.restfullyDeleteDeployment(waveName(wave));
+				} else {
+					deployAndAwait(waveName(wave), waves.get(wave), previousVersionIds);
+				}
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				logger.error("Could not roll back wave " + (wave + 1), e);
+			}
+		}
+	}
+
+	/**
+	 * Warns when a rolling deployment left waves behind. They are not removed:
+	 * deleting a deployment undeploys the application from all its servers,
+	 * the ones this deploy targets included. The next rolling deployment
+	 * updates them in place. Looked up before the deployment is created, while
+	 * the deployments are still cached.
+	 */
+	private void warnAboutWaves(MuleRest muleRest) throws IOException {
+		if (muleRest.restfullyGetDeploymentIdByName(waveName(0)) != null) {
+			LoggerFactory.getLogger(getClass()).warn("The waves of a rolling deployment of {} still carry the application, a rolling deployment takes them over", deploymentName);
+		}
+	}
+
+	private String waveName(int wave) {
+		return deploymentName + "-wave-" + (wave + 1);
+	}
+
+	/**
+	 * Splits the servers into a canary wave followed by waves of the given
+	 * percentage of the servers, none of them larger than leaving the minimum
+	 * percentage of the servers out of it allows. A wave always holds at least
+	 * one server.
+	 */
+	static List<List<String>> planWaves(List<String> serverIds, int canaryServers, int wavePercent, int minAvailablePercent) {
+		int total = serverIds.size();
+		int maxWaveSize = Math.max(total - percentOf(total, minAvailablePercent), 1);
+		int waveSize = Math.min(Math.max(percentOf(total, wavePercent), 1), maxWaveSize);
+
+		List<List<String>> waves = new ArrayList<List<String>>();
+		int start = 0;
+		if (canaryServers > 0) {
+			start = Math.min(Math.min(canaryServers, maxWaveSize), total);
+			waves.add(new ArrayList<String>(serverIds.subList(0, start)));
+		}
+		while (start < total) {
+			int end = Math.min(start + waveSize, total);
+			waves.add(new ArrayList<String>(serverIds.subList(start, end)));
+			start = end;
+		}
+		return waves;
+	}
+
+	/**
+	 * @return the percentage of the number, rounded up
+	 */
+	private static int percentOf(int number, int percent) {
+		return (number * percent + 99) / 100;
+	}
+
 	protected File getMuleZipFile(File outputDirectory, String filename) throws MojoFailureException {
 		File file = new File(outputDirectory, filename + ".zip");
 		if (!file.exists()) {
@@ -163,8 +691,4 @@ public class Deploy extends AbstractMojo {
 		}
 	}
 
-	protected MuleRest buildMuleRest() {
-		return new MuleRest(muleApiUrl, username, password);
-	}
-
 }
\ No newline at end of file
@@ -0,0 +1,380 @@
+package org.mule.tools.maven.rest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.impl.StaticLoggerBinder;
+
+/**
+ * Deploys several applications at once, uploading their archives and
+ * creating their deployments concurrently.
+ *
+ * @goal deploy-all
+ * @requiresDirectInvocation true
+ */
+public class DeployAll extends AbstractMuleMojo {
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	private static final String CLUSTER_TARGET = "cluster:";
+	private static final String SERVER_GROUP_TARGET = "group:";
+
+	/**
+	 * The applications to deploy, each with at least a name and an archive.
+	 *
+	 * @parameter
+	 * @required
+	 */
+	protected List<Application> applications;
+
+	/**
+	 * The version that applications without one will be deployed as. Default
+	 * is the current time.
+	 *
+	 * @parameter expression="${version}"
+	 */
+	protected String version;
+
+	/**
+	 * The server group of the applications without server group or cluster.
+	 *
+	 * @parameter expression="${serverGroup}"
+	 */
+	protected String serverGroup;
+
+	/**
+	 * The cluster of the applications without server group or cluster.
+	 *
+	 * @parameter expression="${clusterName}"
+	 */
+	protected String clusterName;
+
+	/**
+	 * Maximum number of applications deployed at the same time.
+	 *
+	 * @parameter expression="${parallelism}" default-value="4"
+	 */
+	protected int parallelism = DEFAULT_PARALLELISM;
+
+	/**
+	 * When true, the uploaded versions are grouped into a single deployment
+	 * per server group or cluster, deployed once, instead of one deployment
+	 * per application. Deployments previously created per application are
+	 * left in place.
+	 *
+	 * @parameter expression="${batch}" default-value="false"
+	 */
+	protected boolean batch;
+
+	/**
+	 * The name of the batch deployments, suffixed with the server group or
+	 * cluster when the applications target several of them. Default is the
+	 * name of the server group or cluster.
+	 *
+	 * @parameter expression="${deploymentName}"
+	 */
+	protected String deploymentName;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		StaticLoggerBinder.getSingleton().setLog(getLog());
+		Logger logger = LoggerFactory.getLogger(getClass());
+
+		validateCredentials();
+		validateMuleApiUrl();
+		if (applications == null || applications.isEmpty()) {
+			throw new MojoFailureException("applications not set.");
+		}
+		if (parallelism < 1) {
+			throw new MojoFailureException("parallelism must be at least 1.");
+		}
+		if (version == null) {
+			version = defaultVersion();
+			logger.info("Version is not set, using a default of the timestamp: {}", version);
+		}
+		for (Application application : applications) {
+			validateApplication(application);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, applications.size()));
+		try {
+			muleRest = buildMuleRest();
+			prefetchInventory(getCollections());
+			List<DeploymentResult> results = batch ? deployBatches(executor) : deployEach(executor);
+			report(results);
+			if (waitForDeployment) {
+				Map<String, String> previousStatuses = new LinkedHashMap<String, String>();
+				for (DeploymentResult result : results) {
+					previousStatuses.put(result.getDeploymentId(), result.getPreviousStatus());
+				}
+				awaitDeployments(muleRest, previousStatuses);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while deploying the applications", e);
+		} catch (ExecutionException e) {
+			throw new MojoExecutionException("Error in attempting to deploy archives: " + e.getCause(), e.getCause());
+		} finally {
+			executor.shutdownNow();
+			closeMuleRest();
+		}
+	}
+
+	protected void validateApplication(Application application) throws MojoFailureException {
+		if (application.getName() == null) {
+			throw new MojoFailureException("Application name not set.");
+		}
+		if (application.getArchive() == null || !application.getArchive().exists()) {
+			throw new MojoFailureException("Archive of application " + application.getName() + " not found: " + application.getArchive());
+		}
+		if (application.getDeploymentName() == null) {
+			application.setDeploymentName(application.getName());
+		}
+		if (application.getVersion() == null) {
+			application.setVersion(version);
+		}
+		if (application.getServerGroup() == null && application.getClusterName() == null) {
+			application.setServerGroup(serverGroup);
+			application.setClusterName(clusterName);
+		}
+		if (application.getServerGroup() == null && application.getClusterName() == null) {
+			throw new MojoFailureException("serverGroup not set for application " + application.getName() + ".");
+		}
+	}
+
+	/**
+	 * @return the MMC collections looked up while deploying the applications
+	 */
+	private Set<String> getCollections() {
+		Set<String> collections = new LinkedHashSet<String>();
+		for (Application application : applications) {
+			collections.add(application.getClusterName() == null ? MmcInventory.SERVERS : MmcInventory.CLUSTERS);
+			if (needsRepository(application.getVersion())) {
+				collections.add(MmcInventory.REPOSITORY);
+			}
+		}
+		collections.add(MmcInventory.DEPLOYMENTS);
+		return collections;
+	}
+
+	protected List<DeploymentResult> deployEach(ExecutorService executor) throws InterruptedException, ExecutionException {
+		List<Future<DeploymentResult>> futures = new ArrayList<Future<DeploymentResult>>();
+		for (final Application application : applications) {
+			futures.add(executor.submit(new Callable<DeploymentResult>() {
+				public DeploymentResult call() {
+					return deploy(application);
+				}
+			}));
+		}
+
+		List<DeploymentResult> results = new ArrayList<DeploymentResult>();
+		for (Future<DeploymentResult> future : futures) {
+			results.add(future.get());
+		}
+		return results;
+	}
+
+	/**
+	 * Uploads all the archives concurrently, then creates and deploys one
+	 * deployment per server group or cluster carrying all their versions. A
+	 * server group or cluster is left untouched when any of its uploads fails.
+	 */
+	protected List<DeploymentResult> deployBatches(ExecutorService executor) throws InterruptedException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		long start = System.currentTimeMillis();
+
+		Map<Application, Future<String>> uploads = new HashMap<Application, Future<String>>();
+		Map<String, List<Application>> targets = new LinkedHashMap<String, List<Application>>();
+		for (final Application application : applications) {
+			uploads.put(application, executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return uploadArchive(application.getName(), application.getVersion(), application.getArchive());
+				}
+			}));
+
+			String target = getTarget(application);
+			List<Application> targetApplications = targets.get(target);
+			if (targetApplications == null) {
+				targetApplications = new ArrayList<Application>();
+				targets.put(target, targetApplications);
+			}
+			targetApplications.add(application);
+		}
+
+		Map<Application, DeploymentResult> results = new HashMap<Application, DeploymentResult>();
+		for (Map.Entry<String, List<Application>> target : targets.entrySet()) {
+			List<Application> uploaded = new ArrayList<Application>();
+			List<String> versionIds = new ArrayList<String>();
+			List<String> failed = new ArrayList<String>();
+			for (Application application : target.getValue()) {
+				try {
+					versionIds.add(uploads.get(application).get());
+					uploaded.add(application);
+				} catch (ExecutionException e) {
+					Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					logger.error("Error in attempting to upload " + application.getName() + ": " + cause.toString(), cause);
+					results.put(application, new DeploymentResult(application.getName(), null, System.currentTimeMillis() - start, cause));
+					failed.add(application.getName());
+				}
+			}
+			if (!failed.isEmpty()) {
+				// the batch deployment replaces the applications of the target,
+				// so deploying it without a version would undeploy that application
+				IOException error = new IOException("Not deployed as the upload of " + failed + " failed");
+				for (Application application : uploaded) {
+					results.put(application, new DeploymentResult(application.getName(), null, System.currentTimeMillis() - start, error));
+				}
+				continue;
+			}
+
+			Application first = uploaded.get(0);
+			String name = getBatchDeploymentName(first, targets.keySet());
+			String deploymentId = null;
+			String previousStatus = null;
+			Exception error = null;
+			try {
+				deploymentId = muleRest.restfullyCreateDeployment(first.getServerGroup(), name, first.getClusterName(), versionIds);
+				previousStatus = deployDeployment(muleRest, deploymentId);
+				logger.info("Deployed {} applications as {}", uploaded.size(), name);
+			} catch (Exception e) {
+				logger.error("Error in attempting to deploy " + name + ": " + e.toString(), e);
+				deploymentId = null;
+				error = e;
+			}
+			for (Application application : uploaded) {
+				results.put(application, new DeploymentResult(application.getName(), deploymentId, previousStatus, System.currentTimeMillis() - start, error));
+			}
+		}
+
+		List<DeploymentResult> ordered = new ArrayList<DeploymentResult>();
+		for (Application application : applications) {
+			ordered.add(results.get(application));
+		}
+		return ordered;
+	}
+
+	/**
+	 * @return the key of the batch of the application, telling clusters from
+	 *         server groups as they may share a name
+	 */
+	private static String getTarget(Application application) {
+		return application.getClusterName() != null ? CLUSTER_TARGET + application.getClusterName() : SERVER_GROUP_TARGET + application.getServerGroup();
+	}
+
+	private String getBatchDeploymentName(Application application, Set<String> targets) {
+		boolean cluster = application.getClusterName() != null;
+		String target = cluster ? application.getClusterName() : application.getServerGroup();
+		if (targets.contains(CLUSTER_TARGET + target) && targets.contains(SERVER_GROUP_TARGET + target)) {
+			// a cluster and a server group of the same name get a deployment each
+			target += cluster ? "-cluster" : "-group";
+		}
+		if (deploymentName == null) {
+			return target;
+		}
+		return targets.size() == 1 ? deploymentName : deploymentName + "-" + target;
+	}
+
+	/**
+	 * Uploads, creates and deploys the deployment of one application. Failures
+	 * are reported in the result so that the other applications go on.
+	 */
+	protected DeploymentResult deploy(Application application) {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		long start = System.currentTimeMillis();
+		try {
+			String versionId = uploadArchive(application.getName(), application.getVersion(), application.getArchive());
+			String deploymentId = muleRest.restfullyCreateDeployment(application.getServerGroup(), application.getDeploymentName(), application.getClusterName(), versionId);
+			String previousStatus = deployDeployment(muleRest, deploymentId);
+			logger.info("Deployed {} as {}", application.getName(), application.getDeploymentName());
+			return new DeploymentResult(application.getName(), deploymentId, previousStatus, System.currentTimeMillis() - start, null);
+		} catch (Exception e) {
+			logger.error("Error in attempting to deploy " + application.getName() + ": " + e.toString(), e);
+			return new DeploymentResult(application.getName(), null, System.currentTimeMillis() - start, e);
+		}
+	}
+
+	protected void report(List<DeploymentResult> results) throws MojoFailureException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		List<String> failed = new ArrayList<String>();
+
+		logger.info("Deployment report:");
+		logger.info(String.format("  %-40s %-8s %10s  %s", "Application", "Status", "Time (ms)", "Details"));
+		for (DeploymentResult result : results) {
+			if (result.isSuccess()) {
+				logger.info(String.format("  %-40s %-8s %10d  %s", result.getName(), "SUCCESS", result.getElapsed(), result.getDeploymentId()));
+			} else {
+				logger.info(String.format("  %-40s %-8s %10d  %s", result.getName(), "FAILED", result.getElapsed(), result.getError()));
+				failed.add(result.getName());
+			}
+		}
+
+		if (!failed.isEmpty()) {
+			throw new MojoFailureException(failed.size() + " of " + results.size() + " applications failed to deploy: " + failed);
+		}
+	}
+
+	/**
+	 * Outcome of the deployment of one application.
+	 */
+	public static class DeploymentResult {
+		private final String name;
+		private final String deploymentId;
+		private final String previousStatus;
+		private final long elapsed;
+		private final Exception error;
+
+		public DeploymentResult(String name, String deploymentId, long elapsed, Exception error) {
+			this(name, deploymentId, null, elapsed, error);
+		}
+
+		/**
+		 * @param previousStatus
+		 *            status of the deployment read before deploying it
+		 */
+		public DeploymentResult(String name, String deploymentId, String previousStatus, long elapsed, Exception error) {
+			this.name = name;
+			this.deploymentId = deploymentId;
+			this.previousStatus = previousStatus;
+			this.elapsed = elapsed;
+			this.error = error;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDeploymentId() {
+			return deploymentId;
+		}
+
+		public String getPreviousStatus() {
+			return previousStatus;
+		}
+
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		public Exception getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+}
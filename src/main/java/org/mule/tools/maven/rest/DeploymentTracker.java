@@ -0,0 +1,226 @@
+package org.mule.tools.maven.rest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls the status of deployments until the MMC reports them DEPLOYED or
+ * FAILED. All the tracked deployments share one scheduler thread, each one
+ * polled with an interval growing from the initial to the maximum one. With
+ * an {@link AsyncStatusPoller}, the polls of all the deployments are in
+ * flight at the same time.
+ * <p>
+ * A deployment deployed again may still report the outcome of its previous
+ * deploy for a while. Given the status read before the deploy, the tracker
+ * ignores that status until the MMC reports another one. A status that never
+ * changes is never trusted, the deployment then runs into the caller's
+ * timeout.
+ */
+public class DeploymentTracker {
+	public static final String DEPLOYED = "DEPLOYED";
+	public static final String FAILED = "FAILED";
+	public static final long DEFAULT_INITIAL_INTERVAL = 500;
+	public static final long DEFAULT_MAX_INTERVAL = 10000;
+
+	private static final Logger logger = LoggerFactory.getLogger(DeploymentTracker.class);
+	private static final double BACKOFF_MULTIPLIER = 1.5;
+
+	private final MuleRest muleRest;
+	private final AsyncStatusPoller poller;
+	private final long initialInterval;
+	private final long maxInterval;
+	private final ScheduledExecutorService scheduler;
+
+	public DeploymentTracker(MuleRest muleRest) {
+		this(muleRest, DEFAULT_INITIAL_INTERVAL, DEFAULT_MAX_INTERVAL);
+	}
+
+	public DeploymentTracker(MuleRest muleRest, long initialInterval, long maxInterval) {
+		this(muleRest, null, initialInterval, maxInterval);
+	}
+
+	/**
+	 * @param poller
+	 *            poller sending the polls without blocking, null to poll
+	 *            through the client on the scheduler thread
+	 */
+	public DeploymentTracker(MuleRest muleRest, AsyncStatusPoller poller, long initialInterval, long maxInterval) {
+		this.muleRest = muleRest;
+		this.poller = poller;
+		this.initialInterval = initialInterval;
+		this.maxInterval = Math.max(initialInterval, maxInterval);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "mmc-deployment-tracker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts polling the status of the deployment, the time to ready is
+	 * measured from this call.
+	 */
+	public TrackedDeployment track(String deploymentId) {
+		return track(deploymentId, null);
+	}
+
+	/**
+	 * Starts polling the status of a deployment just deployed. The MMC may
+	 * still report the outcome of the previous deploy, so the status read
+	 * before deploying it is ignored until the MMC reports another one.
+	 *
+	 * @param previousStatus
+	 *            status read before deploying, null to trust the first one
+	 */
+	public TrackedDeployment track(String deploymentId, String previousStatus) {
+		TrackedDeployment deployment = new TrackedDeployment(deploymentId, previousStatus);
+		scheduler.execute(new Poll(deployment, initialInterval));
+		return deployment;
+	}
+
+	/**
+	 * Stops polling, deployments not completed yet never will.
+	 */
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	private class Poll implements Runnable, MmcFuture.Callback<String> {
+		private final TrackedDeployment deployment;
+		private final long interval;
+
+		Poll(TrackedDeployment deployment, long interval) {
+			this.deployment = deployment;
+			this.interval = interval;
+		}
+
+		public void run() {
+			if (poller != null) {
+				// the status comes back on a thread of the poller, leaving the
+				// scheduler free to start the polls of the other deployments
+				poller.getDeploymentStatus(deployment.getDeploymentId()).addCallback(this);
+				return;
+			}
+			String status;
+			try {
+				status = muleRest.restfullyGetDeploymentStatus(deployment.getDeploymentId());
+			} catch (Exception e) {
+				failed(e);
+				return;
+			}
+			completed(status);
+		}
+
+		public void completed(String status) {
+			deployment.status = status;
+			if (deployment.previousStatus != null) {
+				if (deployment.previousStatus.equals(status)) {
+					scheduleNext();
+					return;
+				}
+				deployment.previousStatus = null;
+			}
+			if (DEPLOYED.equals(status) || FAILED.equals(status)) {
+				deployment.complete();
+				return;
+			}
+			scheduleNext();
+		}
+
+		public void failed(Exception e) {
+			// the next poll may succeed, the caller's timeout bounds the wait
+			logger.debug("Error in attempting to get the status of deployment " + deployment.getDeploymentId(), e);
+			deployment.lastError = e;
+			scheduleNext();
+		}
+
+		private void scheduleNext() {
+			long next = Math.min((long) (interval * BACKOFF_MULTIPLIER), maxInterval);
+			try {
+				scheduler.schedule(new Poll(deployment, next), interval, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// the tracker was closed
+			}
+		}
+	}
+
+	/**
+	 * A deployment being polled.
+	 */
+	public static class TrackedDeployment {
+		private final String deploymentId;
+		private final long start = System.currentTimeMillis();
+		private final CountDownLatch completed = new CountDownLatch(1);
+
+		private volatile String status;
+		private volatile long timeToReady = -1;
+		private volatile Exception lastError;
+		private volatile String previousStatus;
+
+		TrackedDeployment(String deploymentId, String previousStatus) {
+			this.deploymentId = deploymentId;
+			this.previousStatus = previousStatus;
+		}
+
+		private void complete() {
+			timeToReady = System.currentTimeMillis() - start;
+			completed.countDown();
+		}
+
+		/**
+		 * @return true if the deployment completed within the timeout
+		 */
+		public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+			return completed.await(timeout, unit);
+		}
+
+		public boolean isCompleted() {
+			return completed.getCount() == 0;
+		}
+
+		public boolean isDeployed() {
+			return isCompleted() && DEPLOYED.equals(status);
+		}
+
+		public String getDeploymentId() {
+			return deploymentId;
+		}
+
+		/**
+		 * @return the last status reported by the MMC, null before the first
+		 *         successful poll
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return the milliseconds between the start of the tracking and the
+		 *         completion of the deployment, -1 until it completes
+		 */
+		public long getTimeToReady() {
+			return timeToReady;
+		}
+
+		public Exception getLastError() {
+			return lastError;
+		}
+
+		/**
+		 * @return true while the MMC still reports the status read before the
+		 *         deploy
+		 */
+		public boolean isStatusUnchanged() {
+			return previousStatus != null;
+		}
+	}
+}
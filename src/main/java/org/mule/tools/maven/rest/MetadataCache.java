@@ -0,0 +1,214 @@
+package org.mule.tools.maven.rest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ids resolved from the MMC (servers of a group, clusters, server groups)
+ * kept on disk between builds, one file per MMC. An entry younger than the
+ * time to live is used as is; an older one is revalidated with the ETag of
+ * the response it came from.
+ */
+public class MetadataCache {
+	public static final long DEFAULT_TTL = 3600000;
+
+	private static final Logger logger = LoggerFactory.getLogger(MetadataCache.class);
+	private static final int MAGIC = 0x4d4d4331; // MMC1
+
+	private final File file;
+	private final String url;
+	private final long ttl;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private boolean modified;
+
+	MetadataCache(File file, String url, long ttl) {
+		this.file = file;
+		this.url = url;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Loads the cache of the MMC from the directory, starting empty if there
+	 * is none or if it cannot be read.
+	 */
+	public static MetadataCache open(File directory, URL mmcUrl, long ttl) {
+		String url = mmcUrl.toString();
+		MetadataCache cache = new MetadataCache(new File(directory, "metadata-" + hash(url) + ".bin"), url, ttl);
+		try {
+			cache.load();
+		} catch (IOException e) {
+			logger.warn("Ignoring unreadable MMC metadata cache {}: {}", cache.file, e.getMessage());
+			cache.entries.clear();
+		}
+		return cache;
+	}
+
+	private static String hash(String url) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 8; i++) {
+				hex.append(String.format("%02x", digest[i]));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void load() throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (input.readInt() != MAGIC || !url.equals(input.readUTF())) {
+				return;
+			}
+			int count = input.readInt();
+			for (int i = 0; i < count; i++) {
+				String collection = input.readUTF();
+				String key = input.readUTF();
+				String etag = input.readBoolean() ? input.readUTF() : null;
+				long time = input.readLong();
+				int size = input.readInt();
+				Set<String> values = new TreeSet<String>();
+				for (int j = 0; j < size; j++) {
+					values.add(input.readUTF());
+				}
+				Entry entry = new Entry(collection, key, values, etag, time);
+				entries.put(entry.getName(), entry);
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Writes the cache if it changed since it was loaded. The file is
+	 * replaced as a whole so that concurrent builds never read half of it.
+	 */
+	public synchronized void store() throws IOException {
+		if (!modified) {
+			return;
+		}
+		file.getParentFile().mkdirs();
+		File temporary = File.createTempFile("metadata", ".tmp", file.getParentFile());
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			output.writeInt(MAGIC);
+			output.writeUTF(url);
+			output.writeInt(entries.size());
+			for (Entry entry : entries.values()) {
+				output.writeUTF(entry.collection);
+				output.writeUTF(entry.key);
+				output.writeBoolean(entry.etag != null);
+				if (entry.etag != null) {
+					output.writeUTF(entry.etag);
+				}
+				output.writeLong(entry.time);
+				output.writeInt(entry.values.size());
+				for (String value : entry.values) {
+					output.writeUTF(value);
+				}
+			}
+		} finally {
+			output.close();
+		}
+		if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+			temporary.delete();
+			throw new IOException("Cannot write " + file);
+		}
+		modified = false;
+	}
+
+	/**
+	 * @return the entry, fresh or not, or null if there is none
+	 */
+	public synchronized Entry get(String collection, String key) {
+		return entries.get(name(collection, key));
+	}
+
+	public synchronized void put(String collection, String key, Set<String> values, String etag) {
+		Entry entry = new Entry(collection, key, new TreeSet<String>(values), etag, System.currentTimeMillis());
+		entries.put(entry.getName(), entry);
+		modified = true;
+	}
+
+	/**
+	 * Marks the entry as just validated by the MMC.
+	 */
+	public synchronized void touch(Entry entry) {
+		entry.time = System.currentTimeMillis();
+		modified = true;
+	}
+
+	public synchronized void remove(String collection, String key) {
+		if (entries.remove(name(collection, key)) != null) {
+			modified = true;
+		}
+	}
+
+	public boolean isFresh(Entry entry) {
+		return System.currentTimeMillis() - entry.time < ttl;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	private static String name(String collection, String key) {
+		return collection + '\u0000' + key;
+	}
+
+	public static class Entry {
+		private final String collection;
+		private final String key;
+		private final Set<String> values;
+		private final String etag;
+		private volatile long time;
+
+		Entry(String collection, String key, Set<String> values, String etag, long time) {
+			this.collection = collection;
+			this.key = key;
+			this.values = Collections.unmodifiableSet(values);
+			this.etag = etag;
+			this.time = time;
+		}
+
+		private String getName() {
+			return name(collection, key);
+		}
+
+		public Set<String> getValues() {
+			return values;
+		}
+
+		/**
+		 * @return the ETag of the response the values were read from, null if
+		 *         the MMC did not send one
+		 */
+		public String getEtag() {
+			return etag;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.mule.tools.maven.rest;
+
+import java.net.URL;
+
+/**
+ * An MMC the deploy goal deploys to instead of muleApiUrl. Unset values
+ * default to the ones of the goal.
+ */
+public class MmcEndpoint {
+	/**
+	 * The URL of the MMC API.
+	 */
+	private URL muleApiUrl;
+
+	/**
+	 * The username to the MMC API.
+	 */
+	private String username;
+
+	/**
+	 * The password to the MMC API.
+	 */
+	private String password;
+
+	/**
+	 * The name of the target Mule server group.
+	 */
+	private String serverGroup;
+
+	/**
+	 * The name of the target Mule cluster, used instead of the server group.
+	 */
+	private String clusterName;
+
+	public URL getMuleApiUrl() {
+		return muleApiUrl;
+	}
+
+	public void setMuleApiUrl(URL muleApiUrl) {
+		this.muleApiUrl = muleApiUrl;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	public String getServerGroup() {
+		return serverGroup;
+	}
+
+	public void setServerGroup(String serverGroup) {
+		this.serverGroup = serverGroup;
+	}
+
+	public String getClusterName() {
+		return clusterName;
+	}
+
+	public void setClusterName(String clusterName) {
+		this.clusterName = clusterName;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(muleApiUrl);
+	}
+}
@@ -0,0 +1,160 @@
+package org.mule.tools.maven.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Result of an asynchronous MMC call. Callbacks run on the thread completing
+ * the call, an I/O thread of the {@link AsyncStatusPoller}, and should not
+ * block it for long; a callback added once the call is complete runs at once on the
+ * caller's thread. The callbacks added before completion have run by the time
+ * {@link #get()} returns.
+ */
+public class MmcFuture<T> implements Future<T> {
+	private static final Logger logger = LoggerFactory.getLogger(MmcFuture.class);
+
+	/**
+	 * Receives the outcome of a call.
+	 */
+	public interface Callback<T> {
+		void completed(T result);
+
+		void failed(Exception error);
+	}
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+	private T result;
+	private Exception error;
+	private boolean cancelled;
+	private boolean completed;
+
+	/**
+	 * @return false if the future was already complete
+	 */
+	public boolean complete(T result) {
+		List<Callback<? super T>> pending;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			this.result = result;
+			pending = finish();
+		}
+		for (Callback<? super T> callback : pending) {
+			notifyCompleted(callback, result);
+		}
+		done.countDown();
+		return true;
+	}
+
+	/**
+	 * @return false if the future was already complete
+	 */
+	public boolean fail(Exception error) {
+		return fail(error, false);
+	}
+
+	private boolean fail(Exception error, boolean cancel) {
+		List<Callback<? super T>> pending;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			this.error = error;
+			cancelled = cancel;
+			pending = finish();
+		}
+		for (Callback<? super T> callback : pending) {
+			notifyFailed(callback, error);
+		}
+		done.countDown();
+		return true;
+	}
+
+	private List<Callback<? super T>> finish() {
+		completed = true;
+		List<Callback<? super T>> pending = new ArrayList<Callback<? super T>>(callbacks);
+		callbacks.clear();
+		return pending;
+	}
+
+	public void addCallback(Callback<? super T> callback) {
+		synchronized (this) {
+			if (!completed) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		if (error == null) {
+			notifyCompleted(callback, result);
+		} else {
+			notifyFailed(callback, error);
+		}
+	}
+
+	private static <T> void notifyCompleted(Callback<? super T> callback, T result) {
+		try {
+			callback.completed(result);
+		} catch (RuntimeException e) {
+			logger.error("Callback of an MMC call failed", e);
+		}
+	}
+
+	private static void notifyFailed(Callback<?> callback, Exception error) {
+		try {
+			callback.failed(error);
+		} catch (RuntimeException e) {
+			logger.error("Callback of an MMC call failed", e);
+		}
+	}
+
+	/**
+	 * Fails the future with a {@link CancellationException}. The request may
+	 * still reach the MMC.
+	 *
+	 * @return false if the future was already complete
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return fail(new CancellationException("The MMC call was cancelled"), true);
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return completed;
+	}
+
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("The MMC call did not complete within " + unit.toMillis(timeout) + " ms");
+		}
+		return getResult();
+	}
+
+	private synchronized T getResult() throws ExecutionException {
+		if (cancelled) {
+			throw (CancellationException) error;
+		}
+		if (error != null) {
+			throw new ExecutionException(error);
+		}
+		return result;
+	}
+}
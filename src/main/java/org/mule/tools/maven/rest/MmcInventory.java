@@ -0,0 +1,176 @@
+package org.mule.tools.maven.rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshot of the MMC collections (servers, clusters, deployments...) indexed
+ * for lookups. Each collection is kept until it is invalidated, which
+ * {@link MuleRest} does after every call modifying it, unless the change is
+ * known well enough to be applied to the indexes in place.
+ */
+public class MmcInventory {
+	public static final String SERVERS = "servers";
+	public static final String SERVER_GROUPS = "serverGroups";
+	public static final String CLUSTERS = "clusters";
+	public static final String DEPLOYMENTS = "deployments";
+	public static final String REPOSITORY = "repository";
+
+	private final Map<String, Object> indexes = new HashMap<String, Object>();
+	private final Map<String, Object> locks = new HashMap<String, Object>();
+	private final Map<String, Long> generations = new HashMap<String, Long>();
+	private long clears;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @return the index of the collection, or null if it has to be fetched
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T get(String collection) {
+		T index = (T) indexes.get(collection);
+		if (index == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return index;
+	}
+
+	public synchronized void put(String collection, Object index) {
+		indexes.put(collection, index);
+	}
+
+	/**
+	 * Keeps an index fetched while the collection was at the given
+	 * generation, unless it was invalidated since: the index may then miss
+	 * the changes.
+	 *
+	 * @return false if the index was dropped
+	 */
+	public synchronized boolean put(String collection, Object index, long generation) {
+		if (generation != generation(collection)) {
+			return false;
+		}
+		indexes.put(collection, index);
+		return true;
+	}
+
+	/**
+	 * @return the number of times the collection, or the one it is filtered
+	 *         from, was invalidated, to read before fetching it
+	 */
+	public synchronized long generation(String collection) {
+		int query = collection.indexOf('?');
+		Long generation = generations.get(query < 0 ? collection : collection.substring(0, query));
+		return clears + (generation == null ? 0 : generation);
+	}
+
+	/**
+	 * Removes the collection and the entries of it that were looked up
+	 * separately, see {@link #filtered(String, String, String)}.
+	 */
+	public synchronized void invalidate(String collection) {
+		bumpGeneration(collection);
+		indexes.remove(collection);
+		String prefix = collection + "?";
+		for (Iterator<String> keys = indexes.keySet().iterator(); keys.hasNext();) {
+			if (keys.next().startsWith(prefix)) {
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * Records the id of an entry created or changed by name in the index of
+	 * the collection and in the one of the entries filtered by that name,
+	 * where cached. Both have to index ids by name.
+	 */
+	public synchronized void putId(String collection, String parameter, String name, String id) {
+		bumpGeneration(collection);
+		String[] entries = { collection, filtered(collection, parameter, name) };
+		for (String entry : entries) {
+			Map<String, String> ids = getIds(entry);
+			if (ids != null) {
+				ids.put(name, id);
+			}
+		}
+	}
+
+	/**
+	 * Removes the entry of the given id from the indexes of the collection,
+	 * filtered or not, where cached. They all have to index ids by name.
+	 */
+	public synchronized void removeId(String collection, String id) {
+		bumpGeneration(collection);
+		String prefix = collection + "?";
+		for (String entry : new ArrayList<String>(indexes.keySet())) {
+			if (entry.equals(collection) || entry.startsWith(prefix)) {
+				Map<String, String> ids = getIds(entry);
+				ids.values().remove(id);
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the index of ids by name kept in its place, so that
+	 *         the map handed to a lookup before never changes, null if not
+	 *         cached
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, String> getIds(String entry) {
+		Map<String, String> ids = (Map<String, String>) indexes.get(entry);
+		if (ids == null) {
+			return null;
+		}
+		ids = new HashMap<String, String>(ids);
+		indexes.put(entry, ids);
+		return ids;
+	}
+
+	/**
+	 * An index being fetched while the collection changes may miss the
+	 * change, and is dropped instead of being kept.
+	 */
+	private void bumpGeneration(String collection) {
+		Long generation = generations.get(collection);
+		generations.put(collection, generation == null ? 1 : generation + 1);
+	}
+
+	public synchronized void invalidateAll() {
+		clears++;
+		indexes.clear();
+	}
+
+	/**
+	 * @return the name under which the entries of the collection selected by
+	 *         a query parameter are kept
+	 */
+	public static String filtered(String collection, String parameter, String value) {
+		return collection + "?" + parameter + "=" + value;
+	}
+
+	/**
+	 * @return the lock to hold while fetching the collection, so that
+	 *         concurrent lookups fetch it only once
+	 */
+	public synchronized Object lockFor(String collection) {
+		Object lock = locks.get(collection);
+		if (lock == null) {
+			lock = new Object();
+			locks.put(collection, lock);
+		}
+		return lock;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,396 @@
+package org.mule.tools.maven.rest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.cxf.interceptor.InterceptorProvider;
+import org.apache.cxf.interceptor.MessageSenderInterceptor;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Request counts, bytes on the wire and latencies of the MMC calls, kept per
+ * endpoint such as "GET /deployments" or "POST /deployments/{id}/deploy". The
+ * latency of a call runs from the sending of the request to the end of the
+ * response body, the bytes are counted as sent and received, before any gzip
+ * decoding.
+ */
+public class MmcMetrics {
+	/**
+	 * Upper bounds in milliseconds of the latency histogram buckets, the last
+	 * bucket holding the longer calls.
+	 */
+	public static final long[] LATENCY_BUCKETS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+	private static final String START = MmcMetrics.class.getName() + ".start";
+	private static final String SENT = MmcMetrics.class.getName() + ".sent";
+	private static final String ENDPOINT = MmcMetrics.class.getName() + ".endpoint";
+
+	private final Map<String, EndpointMetrics> endpoints = new TreeMap<String, EndpointMetrics>();
+	private final long startTime = System.currentTimeMillis();
+
+	/**
+	 * Adds the interceptors measuring the calls to a client configuration.
+	 *
+	 * @param basePath
+	 *            path of the MMC API, removed from the endpoint names
+	 */
+	public void install(InterceptorProvider provider, String basePath) {
+		provider.getOutInterceptors().add(new SendInterceptor(basePath));
+		provider.getInInterceptors().add(new ReceiveInterceptor());
+	}
+
+	public synchronized void record(String endpoint, long latency, long bytesSent, long bytesReceived, boolean failed) {
+		EndpointMetrics metrics = getEndpoint(endpoint);
+		metrics.requests++;
+		if (failed) {
+			metrics.failures++;
+		}
+		metrics.bytesSent += bytesSent;
+		metrics.bytesReceived += bytesReceived;
+		metrics.totalLatency += latency;
+		metrics.maxLatency = Math.max(metrics.maxLatency, latency);
+		int bucket = 0;
+		while (bucket < LATENCY_BUCKETS.length && latency > LATENCY_BUCKETS[bucket]) {
+			bucket++;
+		}
+		metrics.histogram[bucket]++;
+	}
+
+	public synchronized void recordRetry(String endpoint) {
+		getEndpoint(endpoint).retries++;
+	}
+
+	/**
+	 * @return a copy of the metrics of each endpoint, by endpoint name
+	 */
+	public synchronized Map<String, EndpointMetrics> getEndpoints() {
+		Map<String, EndpointMetrics> copy = new TreeMap<String, EndpointMetrics>();
+		for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+			copy.put(entry.getKey(), new EndpointMetrics(entry.getValue()));
+		}
+		return copy;
+	}
+
+	private EndpointMetrics getEndpoint(String endpoint) {
+		EndpointMetrics metrics = endpoints.get(endpoint);
+		if (metrics == null) {
+			metrics = new EndpointMetrics();
+			endpoints.put(endpoint, metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return the HTTP method and the path of the URI relative to the base
+	 *         path, the second segment, an id, replaced by {id}
+	 */
+	static String endpoint(String method, String uri, String basePath) {
+		String path = URI.create(uri).getRawPath();
+		if (path == null) {
+			path = "";
+		}
+		if (basePath != null && path.startsWith(basePath)) {
+			path = path.substring(basePath.length());
+		}
+		StringBuilder endpoint = new StringBuilder(method).append(' ');
+		int index = 0;
+		for (String segment : path.split("/")) {
+			if (segment.length() > 0) {
+				endpoint.append('/').append(index == 1 ? "{id}" : segment);
+				index++;
+			}
+		}
+		if (index == 0) {
+			endpoint.append('/');
+		}
+		return endpoint.toString();
+	}
+
+	public void writeJson(File file) throws IOException {
+		Map<String, EndpointMetrics> snapshot = getEndpoints();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			JsonGenerator generator = new JsonFactory().createJsonGenerator(writer);
+			generator.useDefaultPrettyPrinter();
+			generator.writeStartObject();
+			generator.writeNumberField("startTime", startTime);
+			generator.writeNumberField("duration", System.currentTimeMillis() - startTime);
+			generator.writeArrayFieldStart("endpoints");
+			for (Map.Entry<String, EndpointMetrics> entry : snapshot.entrySet()) {
+				EndpointMetrics metrics = entry.getValue();
+				generator.writeStartObject();
+				generator.writeStringField("endpoint", entry.getKey());
+				generator.writeNumberField("requests", metrics.requests);
+				generator.writeNumberField("failures", metrics.failures);
+				generator.writeNumberField("retries", metrics.retries);
+				generator.writeNumberField("bytesSent", metrics.bytesSent);
+				generator.writeNumberField("bytesReceived", metrics.bytesReceived);
+				generator.writeNumberField("totalLatency", metrics.totalLatency);
+				generator.writeNumberField("maxLatency", metrics.maxLatency);
+				generator.writeArrayFieldStart("latencyHistogram");
+				for (int bucket = 0; bucket < metrics.histogram.length; bucket++) {
+					generator.writeStartObject();
+					if (bucket < LATENCY_BUCKETS.length) {
+						generator.writeNumberField("le", LATENCY_BUCKETS[bucket]);
+					} else {
+						generator.writeNullField("le");
+					}
+					generator.writeNumberField("count", metrics.histogram[bucket]);
+					generator.writeEndObject();
+				}
+				generator.writeEndArray();
+				generator.writeEndObject();
+			}
+			generator.writeEndArray();
+			generator.writeEndObject();
+			generator.close();
+		} finally {
+			writer.close();
+		}
+	}
+
+	public void writeCsv(File file) throws IOException {
+		Map<String, EndpointMetrics> snapshot = getEndpoints();
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			StringBuilder header = new StringBuilder("endpoint,requests,failures,retries,bytesSent,bytesReceived,totalLatency,maxLatency");
+			for (long bound : LATENCY_BUCKETS) {
+				header.append(",le").append(bound);
+			}
+			writer.println(header.append(",more"));
+			for (Map.Entry<String, EndpointMetrics> entry : snapshot.entrySet()) {
+				EndpointMetrics metrics = entry.getValue();
+				StringBuilder line = new StringBuilder(entry.getKey());
+				line.append(',').append(metrics.requests).append(',').append(metrics.failures).append(',').append(metrics.retries);
+				line.append(',').append(metrics.bytesSent).append(',').append(metrics.bytesReceived);
+				line.append(',').append(metrics.totalLatency).append(',').append(metrics.maxLatency);
+				for (long count : metrics.histogram) {
+					line.append(',').append(count);
+				}
+				writer.println(line);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the lines of a table summarizing each endpoint
+	 */
+	public List<String> formatSummary() {
+		List<String> lines = new ArrayList<String>();
+		String format = "%-40s %8s %8s %8s %12s %12s %10s %10s";
+		lines.add(String.format(format, "Endpoint", "Requests", "Failures", "Retries", "Sent", "Received", "Avg (ms)", "Max (ms)"));
+		for (Map.Entry<String, EndpointMetrics> entry : getEndpoints().entrySet()) {
+			EndpointMetrics metrics = entry.getValue();
+			lines.add(String.format(format, entry.getKey(), metrics.requests, metrics.failures, metrics.retries, metrics.bytesSent, metrics.bytesReceived, metrics.getAverageLatency(), metrics.maxLatency));
+		}
+		return lines;
+	}
+
+	public static class EndpointMetrics {
+		private long requests;
+		private long failures;
+		private long retries;
+		private long bytesSent;
+		private long bytesReceived;
+		private long totalLatency;
+		private long maxLatency;
+		private final long[] histogram;
+
+		EndpointMetrics() {
+			histogram = new long[LATENCY_BUCKETS.length + 1];
+		}
+
+		EndpointMetrics(EndpointMetrics metrics) {
+			requests = metrics.requests;
+			failures = metrics.failures;
+			retries = metrics.retries;
+			bytesSent = metrics.bytesSent;
+			bytesReceived = metrics.bytesReceived;
+			totalLatency = metrics.totalLatency;
+			maxLatency = metrics.maxLatency;
+			histogram = metrics.histogram.clone();
+		}
+
+		public long getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return the number of calls answered with an error status or without
+		 *         an answer
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		public long getRetries() {
+			return retries;
+		}
+
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		public long getTotalLatency() {
+			return totalLatency;
+		}
+
+		public long getAverageLatency() {
+			return requests == 0 ? 0 : totalLatency / requests;
+		}
+
+		public long getMaxLatency() {
+			return maxLatency;
+		}
+
+		/**
+		 * @return the number of calls per bucket of {@link MmcMetrics#LATENCY_BUCKETS}
+		 */
+		public long[] getHistogram() {
+			return histogram.clone();
+		}
+	}
+
+	/**
+	 * Starts the clock and counts the request body once the conduit has
+	 * opened the connection.
+	 */
+	private class SendInterceptor extends AbstractPhaseInterceptor<Message> {
+		private final String basePath;
+
+		SendInterceptor(String basePath) {
+			super(Phase.PREPARE_SEND);
+			addAfter(MessageSenderInterceptor.class.getName());
+			this.basePath = basePath;
+		}
+
+		public void handleMessage(Message message) {
+			final Exchange exchange = message.getExchange();
+			String uri = (String) message.get(Message.ENDPOINT_ADDRESS);
+			String method = (String) message.get(Message.HTTP_REQUEST_METHOD);
+			exchange.put(ENDPOINT, endpoint(method == null ? "GET" : method, uri, basePath));
+			exchange.put(START, System.nanoTime());
+			exchange.put(SENT, 0L);
+
+			OutputStream outputStream = message.getContent(OutputStream.class);
+			if (outputStream != null) {
+				message.setContent(OutputStream.class, new FilterOutputStream(outputStream) {
+					@Override
+					public void write(int b) throws IOException {
+						out.write(b);
+						exchange.put(SENT, (Long) exchange.get(SENT) + 1);
+					}
+
+					@Override
+					public void write(byte[] buffer, int offset, int length) throws IOException {
+						out.write(buffer, offset, length);
+						exchange.put(SENT, (Long) exchange.get(SENT) + length);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Records the calls failing without a response.
+		 */
+		@Override
+		public void handleFault(Message message) {
+			Exchange exchange = message.getExchange();
+			if (exchange.getInMessage() == null && exchange.get(START) != null) {
+				complete(exchange, 0, true);
+			}
+		}
+	}
+
+	/**
+	 * Counts the response body and records the call at its end.
+	 */
+	private class ReceiveInterceptor extends AbstractPhaseInterceptor<Message> {
+		ReceiveInterceptor() {
+			super(Phase.RECEIVE);
+		}
+
+		public void handleMessage(Message message) {
+			final Exchange exchange = message.getExchange();
+			if (exchange.get(START) == null) {
+				return;
+			}
+			Integer status = (Integer) message.get(Message.RESPONSE_CODE);
+			final boolean failed = status != null && status >= 400;
+			InputStream inputStream = message.getContent(InputStream.class);
+			if (inputStream == null) {
+				complete(exchange, 0, failed);
+				return;
+			}
+			message.setContent(InputStream.class, new FilterInputStream(inputStream) {
+				private long received;
+
+				@Override
+				public int read() throws IOException {
+					int read = super.read();
+					if (read == -1) {
+						complete(exchange, received, failed);
+					} else {
+						received++;
+					}
+					return read;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					int read = super.read(buffer, offset, length);
+					if (read == -1) {
+						complete(exchange, received, failed);
+					} else {
+						received += read;
+					}
+					return read;
+				}
+
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						complete(exchange, received, failed);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Records the call of the exchange, once.
+	 */
+	private void complete(Exchange exchange, long received, boolean failed) {
+		Long start = (Long) exchange.remove(START);
+		if (start != null) {
+			Long sent = (Long) exchange.get(SENT);
+			record((String) exchange.get(ENDPOINT), (System.nanoTime() - start) / 1000000, sent == null ? 0 : sent, received, failed);
+		}
+	}
+}
@@ -1,15 +1,37 @@
 package org.mule.tools.maven.rest;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringWriter;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
 
+import javax.ws.rs.client.ClientException;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -20,10 +42,15 @@ import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.apache.cxf.jaxrs.ext.multipart.AttachmentBuilder;
 import org.apache.cxf.jaxrs.ext.multipart.ContentDisposition;
 import org.apache.cxf.jaxrs.ext.multipart.MultipartBody;
+import org.apache.cxf.transport.http.HTTPConduit;
 import org.apache.cxf.transport.http.HTTPException;
+import org.apache.cxf.transports.http.configuration.ConnectionType;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,11 +59,61 @@ public class MuleRest {
 	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 	private static final Logger logger = LoggerFactory.getLogger(MuleRest.class);
 	private static final String SNAPSHOT = "SNAPSHOT";
+	private static final String MAX_CONNECTIONS_PROPERTY = "http.maxConnections";
+	private static final String DIGEST_SEPARATOR = "-";
+	private static final int DIGEST_LENGTH = 16;
+	private static final String GZIP = "gzip";
+	private static final String UPLOAD_ENDPOINT = "POST /repository";
+	private static final int NOT_IMPLEMENTED = 501;
+
+	/** Size of the keep-alive pool of the JDK HTTP handler by default. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 5;
+	public static final long DEFAULT_CONNECTION_TIMEOUT = 30000;
+	public static final long DEFAULT_RECEIVE_TIMEOUT = 60000;
+	public static final int DEFAULT_CHUNK_LENGTH = 64 * 1024;
+	public static final int DEFAULT_RETRIES = 2;
+	public static final long DEFAULT_RETRY_BACKOFF = 2000;
+	/** @deprecated use {@link #DEFAULT_RETRIES} */
+	@Deprecated
+	public static final int DEFAULT_UPLOAD_RETRIES = DEFAULT_RETRIES;
+	/** @deprecated use {@link #DEFAULT_RETRY_BACKOFF} */
+	@Deprecated
+	public static final long DEFAULT_UPLOAD_RETRY_BACKOFF = DEFAULT_RETRY_BACKOFF;
+	public static final long DEFAULT_PROGRESS_INTERVAL = 5000;
+	public static final String OFFSET_PARAMETER = "offset";
+	public static final String LIMIT_PARAMETER = "limit";
+	public static final String NAME_PARAMETER = "name";
+	public static final String GROUP_ID_PARAMETER = "groupId";
 
 	private URL mmcUrl;
 	private String username;
 	private String password;
 
+	private Integer maxConnections;
+	private long connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+	private long receiveTimeout = DEFAULT_RECEIVE_TIMEOUT;
+	private int chunkLength = DEFAULT_CHUNK_LENGTH;
+	private RetryPolicy retryPolicy = new RetryPolicy();
+	private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+	private boolean cacheInventory;
+	private MetadataCache metadataCache;
+	private boolean acceptGzip = true;
+	private ResponseCache responseCache;
+	private boolean serverSideFiltering;
+	// turned off by whichever deploying thread first meets an MMC refusing updates
+	private volatile boolean updateDeployments = true;
+	private int pageSize;
+	private MmcMetrics metrics;
+	private final MmcInventory inventory = new MmcInventory();
+
+	/**
+	 * Shared client holding the conduit, the keep-alive policy and the
+	 * credentials. Every request is issued from a lightweight copy of it so
+	 * that the underlying connections are reused between calls.
+	 */
+	private WebClient baseClient;
+	private ExecutorService pageExecutor;
+
 	public MuleRest(URL mmcUrl, String username, String password) {
 		this.mmcUrl = mmcUrl;
 		this.username = username;
@@ -44,20 +121,347 @@ public class MuleRest {
 		logger.debug("MMC URL: {}, Username: {}", mmcUrl, username);
 	}
 
+	/**
+	 * @param maxConnections
+	 *            size of the keep-alive pool of the JDK HTTP handler, set
+	 *            through the process-wide http.maxConnections system property.
+	 *            The pool is shared by the whole JVM and sized once, by that
+	 *            property when given, or else by the first client given a
+	 *            size: later values are ignored. Left unset, the property
+	 *            keeps its JDK default of {@link #DEFAULT_MAX_CONNECTIONS}.
+	 *            Idle connections are closed after the JDK's own keep-alive
+	 *            timeout, 5 seconds unless the MMC sends another one, which
+	 *            cannot be configured here.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public void setConnectionTimeout(long connectionTimeout) {
+		this.connectionTimeout = connectionTimeout;
+	}
+
+	public void setReceiveTimeout(long receiveTimeout) {
+		this.receiveTimeout = receiveTimeout;
+	}
+
+	URL getMmcUrl() {
+		return mmcUrl;
+	}
+
+	String getUsername() {
+		return username;
+	}
+
+	String getPassword() {
+		return password;
+	}
+
+	long getConnectionTimeout() {
+		return connectionTimeout;
+	}
+
+	long getReceiveTimeout() {
+		return receiveTimeout;
+	}
+
+	public void setChunkLength(int chunkLength) {
+		this.chunkLength = chunkLength;
+	}
+
+	/**
+	 * Number of times a failed call is retried, see {@link RetryPolicy}.
+	 */
+	public void setRetries(int retries) {
+		retryPolicy.setMaxRetries(retries);
+	}
+
+	/**
+	 * Delay in milliseconds before the first retry of a failed call.
+	 */
+	public void setRetryBackoff(long retryBackoff) {
+		retryPolicy.setInitialBackoff(retryBackoff);
+	}
+
+	/**
+	 * @deprecated every call is retried, use {@link #setRetries(int)}
+	 */
+	@Deprecated
+	public void setUploadRetries(int uploadRetries) {
+		setRetries(uploadRetries);
+	}
+
+	/**
+	 * @deprecated every call is retried, use {@link #setRetryBackoff(long)}
+	 */
+	@Deprecated
+	public void setUploadRetryBackoff(long uploadRetryBackoff) {
+		setRetryBackoff(uploadRetryBackoff);
+	}
+
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	/**
+	 * When enabled, each MMC collection is fetched once and kept in the
+	 * {@link MmcInventory} until a call modifies it.
+	 */
+	public void setCacheInventory(boolean cacheInventory) {
+		this.cacheInventory = cacheInventory;
+	}
+
+	/**
+	 * When enabled, an existing deployment is updated in place rather than
+	 * deleted and created again. Turned off on its own once the MMC refuses
+	 * an update.
+	 */
+	public void setUpdateDeployments(boolean updateDeployments) {
+		this.updateDeployments = updateDeployments;
+	}
+
+	/**
+	 * When enabled, lookups by name send the name, or the id of the server
+	 * group, as a query parameter so that the MMC returns only the matching
+	 * entries. The entries are still matched on the client, an MMC ignoring
+	 * the parameter gives the same result at the cost of the whole
+	 * collection.
+	 */
+	public void setServerSideFiltering(boolean serverSideFiltering) {
+		this.serverSideFiltering = serverSideFiltering;
+	}
+
+	/**
+	 * When positive, collections are read in pages of that many entries
+	 * requested with the offset and limit parameters, the next page being
+	 * fetched in the background while the current one is read, and a lookup
+	 * stops requesting pages once its key is resolved. 0 reads each
+	 * collection in a single request.
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Keeps the servers of a group, the clusters and the server group ids
+	 * resolved in the given cache, shared between builds.
+	 */
+	public void setMetadataCache(MetadataCache metadataCache) {
+		this.metadataCache = metadataCache;
+	}
+
+	/**
+	 * When enabled, the default, the lookups ask for gzipped responses.
+	 */
+	public void setAcceptGzip(boolean acceptGzip) {
+		this.acceptGzip = acceptGzip;
+	}
+
+	/**
+	 * Maximum number of bytes of the responses kept to answer the
+	 * conditional lookups, see {@link ResponseCache}. 0, the default,
+	 * disables the conditional lookups.
+	 */
+	public void setResponseCacheSize(long responseCacheSize) {
+		this.responseCache = responseCacheSize > 0 ? new ResponseCache(responseCacheSize) : null;
+	}
+
+	/**
+	 * Records every call made from now on into the given metrics.
+	 */
+	public synchronized void setMetrics(MmcMetrics metrics) {
+		this.metrics = metrics;
+		if (baseClient != null) {
+			close();
+		}
+	}
+
+	public MmcMetrics getMetrics() {
+		return metrics;
+	}
+
+	public MmcInventory getInventory() {
+		return inventory;
+	}
+
+	protected synchronized WebClient getBaseClient() {
+		if (baseClient == null) {
+			if (maxConnections != null) {
+				sizeKeepAlivePool(maxConnections);
+			}
+			baseClient = WebClient.create(mmcUrl.toString(), username, password, null);
+
+			HTTPClientPolicy policy = new HTTPClientPolicy();
+			policy.setConnection(ConnectionType.KEEP_ALIVE);
+			policy.setConnectionTimeout(connectionTimeout);
+			policy.setReceiveTimeout(receiveTimeout);
+			// bodies above the threshold are streamed with chunked transfer
+			// encoding; redirects and retransmits are kept off as both make the
+			// conduit cache the whole request body in memory
+			policy.setAllowChunking(true);
+			policy.setChunkLength(chunkLength);
+			policy.setAutoRedirect(false);
+			policy.setMaxRetransmits(0);
+			HTTPConduit conduit = WebClient.getConfig(baseClient).getHttpConduit();
+			conduit.setClient(policy);
+			if (metrics != null) {
+				metrics.install(WebClient.getConfig(baseClient), mmcUrl.getPath());
+			}
+			logger.debug("Created MMC client, keep-alive pool size: {}", System.getProperty(MAX_CONNECTIONS_PROPERTY, String.valueOf(DEFAULT_MAX_CONNECTIONS)));
+		}
+		return baseClient;
+	}
+
+	/**
+	 * The JDK HTTP handler reads the size of its keep-alive pool once per JVM,
+	 * the property is only set while it is still unset, never overriding a
+	 * value given on the command line or by an earlier client.
+	 */
+	private static synchronized void sizeKeepAlivePool(int maxConnections) {
+		String current = System.getProperty(MAX_CONNECTIONS_PROPERTY);
+		if (current == null) {
+			System.setProperty(MAX_CONNECTIONS_PROPERTY, String.valueOf(maxConnections));
+		} else if (!current.equals(String.valueOf(maxConnections))) {
+			logger.debug("Keep-alive pool already sized to {} for the JVM, ignoring {}", current, maxConnections);
+		}
+	}
+
 	private WebClient getWebClient(String... paths) {
-		WebClient webClient = WebClient.create(mmcUrl.toString(), username, password, null);
+		WebClient webClient = WebClient.fromClient(getBaseClient(), true);
 		for (String path : paths) {
 			webClient.path(path);
 		}
 		return webClient;
 	}
 
+	/**
+	 * Sends a request through the retry policy. GET and DELETE requests are
+	 * retried on transport failures and server errors; the other requests,
+	 * which the MMC may have acted upon, only when they could not be sent or
+	 * the MMC answered 503. The last server error response is returned once
+	 * the retries are exhausted.
+	 */
+	private Response invoke(WebClient webClient, String method, Object body) throws IOException {
+		return invoke(webClient, method, body, true);
+	}
+
+	/**
+	 * @param retry
+	 *            false to send the request once, still failing fast while the
+	 *            circuit is open
+	 */
+	private Response invoke(WebClient webClient, String method, Object body, boolean retry) throws IOException {
+		String endpoint = MmcMetrics.endpoint(method, webClient.getCurrentURI().toString(), mmcUrl.getPath());
+		boolean idempotent = HttpMethod.GET.equals(method) || HttpMethod.DELETE.equals(method);
+		for (int attempt = 0;; attempt++) {
+			retryPolicy.beforeCall(endpoint);
+			Response response = null;
+			RuntimeException failure = null;
+			boolean ended = false;
+			try {
+				response = webClient.invoke(method, body);
+				ended = true;
+			} catch (RuntimeException e) {
+				if (!isRetryable(e)) {
+					throw e;
+				}
+				failure = e;
+				ended = true;
+			} finally {
+				if (!ended) {
+					retryPolicy.onAbort();
+				}
+			}
+			if (response != null && response.getStatus() < Status.INTERNAL_SERVER_ERROR.getStatusCode()) {
+				retryPolicy.onSuccess();
+				return response;
+			}
+
+			retryPolicy.onFailure();
+			boolean retried = retry && (idempotent || (failure == null ? response.getStatus() == Status.SERVICE_UNAVAILABLE.getStatusCode() : !isSent(failure)));
+			long delay = retried ? retryPolicy.nextDelay(attempt) : -1;
+			if (delay < 0) {
+				if (failure != null) {
+					throw failure;
+				}
+				return response;
+			}
+			release(response);
+			logger.warn("{} failed ({}), retrying in {} ms", new Object[] { endpoint, failure == null ? "status " + response.getStatus() : failure.toString(), delay });
+			if (metrics != null) {
+				metrics.recordRetry(endpoint);
+			}
+			sleep(delay);
+		}
+	}
+
+	/**
+	 * @return false if the request failed before reaching the MMC
+	 */
+	private static boolean isSent(Exception e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ConnectException || cause instanceof NoRouteToHostException || cause instanceof UnknownHostException) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void sleep(long delay) throws InterruptedIOException {
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry");
+		}
+	}
+
+	/**
+	 * Releases the response stream so the connection goes back to the pool.
+	 */
+	private void release(Response response) {
+		if (response != null) {
+			response.close();
+		}
+	}
+
+	/**
+	 * Closes the shared client, its conduit and the page prefetching threads.
+	 * The instance can still be used afterwards, they are created again on
+	 * the next call.
+	 */
+	public synchronized void close() {
+		if (pageExecutor != null) {
+			pageExecutor.shutdownNow();
+			pageExecutor = null;
+		}
+		if (baseClient != null) {
+			baseClient.close();
+			baseClient = null;
+		}
+	}
+
 	private String processResponse(Response response) throws IOException {
-		int statusCode = response.getStatus();
-		String responseObject = IOUtils.toString((InputStream) response.getEntity());
+		String responseObject = IOUtils.toString(getEntityStream(response));
+		checkStatus(response.getStatus(), mmcUrl);
+		return responseObject;
+	}
 
+	/**
+	 * @throws HTTPException
+	 *             unless the status is OK or CREATED
+	 */
+	static void checkStatus(int statusCode, URL mmcUrl) throws HTTPException {
 		if (statusCode == Status.OK.getStatusCode() || statusCode == Status.CREATED.getStatusCode()) {
-			return responseObject;
+			return;
 		} else if (statusCode == Status.NOT_FOUND.getStatusCode()) {
 			HTTPException he = new HTTPException(statusCode, "The resource was not found.", mmcUrl);
 			throw he;
@@ -74,6 +478,19 @@ public class MuleRest {
 	}
 
 	public String restfullyCreateDeployment(String serverGroup, String name, String clusterName, String versionId) throws IOException {
+		return restfullyCreateDeployment(serverGroup, name, clusterName, Collections.singletonList(versionId));
+	}
+
+	/**
+	 * Creates a single deployment carrying all the given application versions,
+	 * so that deploying it redeploys the target servers only once.
+	 *
+	 * @return the id of the created deployment
+	 */
+	public String restfullyCreateDeployment(String serverGroup, String name, String clusterName, Collection<String> versionIds) throws IOException {
+		if (versionIds.isEmpty()) {
+			throw new IllegalArgumentException("No application version to deploy into : " + name);
+		}
 		Set<String> serversIds = new TreeSet<String>();
 		Set<String> clusterIds = new TreeSet<String>();
 		if (clusterName == null) {
@@ -88,50 +505,143 @@ public class MuleRest {
 			}
 		}
 
-		// delete existing deployment before creating new one
-		restfullyDeleteDeployment(name);
+		if (clusterName == null) {
+			return createDeployment(name, "servers", serversIds, versionIds);
+		}
+		return createDeployment(name, "clusters", clusterIds, versionIds);
+	}
+
+	/**
+	 * Creates a deployment targeting only the given servers, such as one wave
+	 * of a rolling deployment.
+	 *
+	 * @return the id of the created deployment
+	 */
+	public String restfullyCreateDeploymentOnServers(String name, Collection<String> serverIds, Collection<String> versionIds) throws IOException {
+		if (versionIds.isEmpty()) {
+			throw new IllegalArgumentException("No application version to deploy into : " + name);
+		}
+		if (serverIds.isEmpty()) {
+			throw new IllegalArgumentException("No server to deploy into : " + name);
+		}
+		return createDeployment(name, "servers", serverIds, versionIds);
+	}
+
+	/**
+	 * Replaces the servers and the applications of an existing deployment in
+	 * place, never deleting it, so that the servers it keeps go on running
+	 * the application.
+	 *
+	 * @return false if the deployment is gone or the MMC cannot update
+	 *         deployments
+	 */
+	public boolean restfullyUpdateDeploymentOnServers(String deploymentId, String name, Collection<String> serverIds, Collection<String> versionIds) throws IOException {
+		if (versionIds.isEmpty()) {
+			throw new IllegalArgumentException("No application version to deploy into : " + name);
+		}
+		if (serverIds.isEmpty()) {
+			throw new IllegalArgumentException("No server to deploy into : " + name);
+		}
+		return updateDeployments && updateDeployment(deploymentId, name, deploymentJson(name, "servers", serverIds, versionIds));
+	}
+
+	private String createDeployment(String name, String targetField, Collection<String> targetIds, Collection<String> versionIds) throws IOException {
+		String deployment = deploymentJson(name, targetField, targetIds, versionIds);
+		String deploymentId = restfullyGetDeploymentIdByName(name);
+		if (deploymentId != null) {
+			if (updateDeployments && updateDeployment(deploymentId, name, deployment)) {
+				return deploymentId;
+			}
+			// delete existing deployment before creating new one
+			restfullyDeleteDeployment(name);
+		}
 
 		WebClient webClient = getWebClient("deployments");
 		webClient.type(MediaType.APPLICATION_JSON_TYPE);
 
+		Response response = null;
+		String deploymentId = null;
 		try {
-			StringWriter stringWriter = new StringWriter();
-			JsonFactory jfactory = new JsonFactory();
-			JsonGenerator jGenerator = jfactory.createJsonGenerator(stringWriter);
-			jGenerator.writeStartObject(); // {
-			jGenerator.writeStringField("name", name); // "name" : name
-			if (clusterName == null) {
-				jGenerator.writeFieldName("servers"); // "servers" :
-				jGenerator.writeStartArray(); // [
-				for (String serverId : serversIds) {
-					jGenerator.writeString(serverId); // "serverId"
-				}
-				jGenerator.writeEndArray(); // ]
-			} else {
-				jGenerator.writeFieldName("clusters"); // "clusters" :
-				jGenerator.writeStartArray(); // [
-				for (String clusterId : clusterIds) {
-					jGenerator.writeString(clusterId); // "serverId"
-				}
-				jGenerator.writeEndArray(); // ]
-			}
-			jGenerator.writeFieldName("applications"); // "applications" :
-			jGenerator.writeStartArray(); // [
-			jGenerator.writeString(versionId); // "applicationId"
-			jGenerator.writeEndArray(); // ]
-			jGenerator.writeEndObject(); // }
-			jGenerator.close();
+			response = invoke(webClient, HttpMethod.POST, deployment);
+			JsonNode jsonNode = OBJECT_MAPPER.readTree(processResponse(response));
 
-			Response response = webClient.post(stringWriter.toString());
-			InputStream responseStream = (InputStream) response.getEntity();
-			JsonNode jsonNode = OBJECT_MAPPER.readTree(responseStream);
+			deploymentId = jsonNode.path("id").asText();
+			return deploymentId;
+		} finally {
+			release(response);
+			indexDeployment(name, deploymentId);
+		}
+	}
+
+	/**
+	 * Records the deployment created or updated under the given name in the
+	 * cached deployments, which are dropped instead when its id is unknown.
+	 */
+	private void indexDeployment(String name, String deploymentId) {
+		if (deploymentId == null || deploymentId.length() == 0) {
+			inventory.invalidate(MmcInventory.DEPLOYMENTS);
+		} else {
+			inventory.putId(MmcInventory.DEPLOYMENTS, NAME_PARAMETER, name, deploymentId);
+		}
+	}
+
+	/**
+	 * Replaces the targets and the applications of the deployment, which
+	 * keeps running what it carried until it is deployed again.
+	 *
+	 * @return false if the deployment is gone or the MMC cannot update
+	 *         deployments, which is then remembered
+	 */
+	private boolean updateDeployment(String deploymentId, String name, String deployment) throws IOException {
+		WebClient webClient = getWebClient("deployments", deploymentId);
+		webClient.type(MediaType.APPLICATION_JSON_TYPE);
 
-			return jsonNode.path("id").asText();
+		Response response = null;
+		boolean updated = false;
+		try {
+			response = invoke(webClient, HttpMethod.PUT, deployment);
+			int statusCode = response.getStatus();
+			if (statusCode == Status.METHOD_NOT_ALLOWED.getStatusCode() || statusCode == NOT_IMPLEMENTED) {
+				logger.info("The MMC cannot update deployments, replacing them instead");
+				updateDeployments = false;
+				return false;
+			}
+			if (statusCode == Status.NOT_FOUND.getStatusCode()) {
+				logger.debug("Deployment {} not found, creating it again", deploymentId);
+				return false;
+			}
+			processResponse(response);
+			updated = true;
+			return true;
 		} finally {
-			webClient.close();
+			release(response);
+			indexDeployment(name, updated ? deploymentId : null);
 		}
 	}
 
+	private static String deploymentJson(String name, String targetField, Collection<String> targetIds, Collection<String> versionIds) throws IOException {
+		StringWriter stringWriter = new StringWriter();
+		JsonFactory jfactory = new JsonFactory();
+		JsonGenerator jGenerator = jfactory.createJsonGenerator(stringWriter);
+		jGenerator.writeStartObject(); // {
+		jGenerator.writeStringField("name", name); // "name" : name
+		jGenerator.writeFieldName(targetField); // "servers" or "clusters" :
+		jGenerator.writeStartArray(); // [
+		for (String targetId : targetIds) {
+			jGenerator.writeString(targetId); // "serverId"
+		}
+		jGenerator.writeEndArray(); // ]
+		jGenerator.writeFieldName("applications"); // "applications" :
+		jGenerator.writeStartArray(); // [
+		for (String versionId : versionIds) {
+			jGenerator.writeString(versionId); // "applicationId"
+		}
+		jGenerator.writeEndArray(); // ]
+		jGenerator.writeEndObject(); // }
+		jGenerator.close();
+		return stringWriter.toString();
+	}
+
 	public void restfullyDeleteDeployment(String name) throws IOException {
 		String deploymentId = restfullyGetDeploymentIdByName(name);
 		if (deploymentId != null) {
@@ -142,163 +652,791 @@ public class MuleRest {
 	public void restfullyDeleteDeploymentById(String deploymentId) throws IOException {
 		WebClient webClient = getWebClient("deployments", deploymentId);
 
+		Response response = null;
+		boolean deleted = false;
 		try {
-			Response response = webClient.delete();
+			response = invoke(webClient, HttpMethod.DELETE, null);
 			processResponse(response);
+			deleted = true;
 		} finally {
-			webClient.close();
+			release(response);
+			if (deleted) {
+				inventory.removeId(MmcInventory.DEPLOYMENTS, deploymentId);
+			} else {
+				inventory.invalidate(MmcInventory.DEPLOYMENTS);
+			}
 		}
 	}
 
 	public void restfullyDeployDeploymentById(String deploymentId) throws IOException {
 		WebClient webClient = getWebClient("deployments", deploymentId, "deploy");
 
+		Response response = null;
 		try {
-			Response response = webClient.post(null);
+			response = invoke(webClient, HttpMethod.POST, null);
 			processResponse(response);
 		} finally {
-			webClient.close();
+			release(response);
 		}
 	}
 
-	public String restfullyGetDeploymentIdByName(String name) throws IOException {
-		WebClient webClient = getWebClient("deployments");
+	/**
+	 * @return the status of the deployment as reported by the MMC, such as
+	 *         DEPLOYED, IN PROGRESS or FAILED
+	 */
+	public String restfullyGetDeploymentStatus(String deploymentId) throws IOException {
+		WebClient webClient = getWebClient("deployments", deploymentId);
+		if (acceptGzip) {
+			webClient.header(HttpHeaders.ACCEPT_ENCODING, GZIP);
+		}
 
-		String deploymentId = null;
+		Response response = null;
 		try {
-			Response response = webClient.get();
-
-			InputStream responseStream = (InputStream) response.getEntity();
-			JsonNode jsonNode = OBJECT_MAPPER.readTree(responseStream);
-			JsonNode deploymentsNode = jsonNode.path("data");
-			for (JsonNode deploymentNode : deploymentsNode) {
-				if (name.equals(deploymentNode.path("name").asText())) {
-					deploymentId = deploymentNode.path("id").asText();
-					break;
-				}
-			}
+			// the tracker polls again rather than retrying
+			response = invoke(webClient, HttpMethod.GET, null, false);
+			JsonNode jsonNode = OBJECT_MAPPER.readTree(processResponse(response));
+			return jsonNode.path("status").getTextValue();
 		} finally {
-			webClient.close();
+			release(response);
 		}
-		return deploymentId;
 	}
 
-	public String restfullyGetApplicationId(String name, String version) throws IOException {
-		WebClient webClient = getWebClient("repository");
+	/**
+	 * @return the ids of the application versions carried by the deployment
+	 */
+	public List<String> restfullyGetDeploymentApplications(String deploymentId) throws IOException {
+		return restfullyGetDeploymentIds(deploymentId, "applications");
+	}
+
+	/**
+	 * @return the ids of the servers targeted by the deployment, empty for a
+	 *         deployment to clusters
+	 */
+	public List<String> restfullyGetDeploymentServers(String deploymentId) throws IOException {
+		return restfullyGetDeploymentIds(deploymentId, "servers");
+	}
+
+	private List<String> restfullyGetDeploymentIds(String deploymentId, String field) throws IOException {
+		WebClient webClient = getWebClient("deployments", deploymentId);
+		if (acceptGzip) {
+			webClient.header(HttpHeaders.ACCEPT_ENCODING, GZIP);
+		}
 
-		String applicationId = null;
+		Response response = null;
 		try {
-			Response response = webClient.get();
-
-			InputStream responseStream = (InputStream) response.getEntity();
-			JsonNode jsonNode = OBJECT_MAPPER.readTree(responseStream);
-			JsonNode applicationsNode = jsonNode.path("data");
-			for (JsonNode applicationNode : applicationsNode) {
-				if (name.equals(applicationNode.path("name").asText())) {
-					JsonNode versionsNode = applicationNode.path("versions");
-					for (JsonNode versionNode : versionsNode) {
-						if (version.equals(versionNode.path("name").asText())) {
-							applicationId = versionNode.get("id").asText();
-							break;
-						}
-					}
-				}
+			response = invoke(webClient, HttpMethod.GET, null);
+			JsonNode jsonNode = OBJECT_MAPPER.readTree(processResponse(response));
+			List<String> ids = new ArrayList<String>();
+			for (JsonNode id : jsonNode.path(field)) {
+				ids.add(id.asText());
 			}
+			return ids;
 		} finally {
-			webClient.close();
+			release(response);
 		}
-		return applicationId;
 	}
 
-	public final String restfullyGetServerGroupId(String serverGroup) throws IOException {
-		String serverGroupId = null;
+	/**
+	 * Streams the whole repository, bypassing the inventory.
+	 *
+	 * @return the versions of all the applications, in the order the MMC
+	 *         lists them
+	 */
+	public List<ApplicationVersion> restfullyGetApplicationVersions() throws IOException {
+		return restfullyGetCollection(MmcInventory.REPOSITORY, APPLICATION_VERSIONS, null, null, null, null);
+	}
 
-		WebClient webClient = getWebClient("serverGroups");
-		try {
-			Response response = webClient.get();
-
-			InputStream responseStream = (InputStream) response.getEntity();
-			JsonNode jsonNode = OBJECT_MAPPER.readTree(responseStream);
-			JsonNode groupsNode = jsonNode.path("data");
-			for (JsonNode groupNode : groupsNode) {
-				if (serverGroup.equals(groupNode.path("name").asText())) {
-					serverGroupId = groupNode.path("id").asText();
-					break;
+	/**
+	 * @return the ids of the application versions carried by any deployment
+	 */
+	public Set<String> restfullyGetDeployedVersionIds() throws IOException {
+		return restfullyGetCollection(MmcInventory.DEPLOYMENTS, DEPLOYED_VERSIONS, null, null, null, null);
+	}
+
+	public String restfullyGetDeploymentIdByName(String name) throws IOException {
+		if (serverSideFiltering) {
+			return getIndex(MmcInventory.DEPLOYMENTS, ID_BY_NAME, name, NAME_PARAMETER, name).get(name);
+		}
+		return getIndex(MmcInventory.DEPLOYMENTS, ID_BY_NAME, name).get(name);
+	}
+
+	public String restfullyGetApplicationId(String name, String version) throws IOException {
+		Map<String, String> versions = getIndex(MmcInventory.REPOSITORY, VERSIONS_BY_APPLICATION, name).get(name);
+		return versions == null ? null : versions.get(version);
+	}
+
+	/**
+	 * Looks for a version of the given application that was uploaded from an
+	 * archive having the given digest, see {@link #tagVersion(String, String)}.
+	 * 
+	 * @return the id of the matching version, or null if there is none
+	 */
+	public String restfullyGetApplicationIdByDigest(String name, String digest) throws IOException {
+		Map<String, String> versions = getIndex(MmcInventory.REPOSITORY, VERSIONS_BY_APPLICATION, name).get(name);
+		if (versions != null) {
+			String suffix = DIGEST_SEPARATOR + shortDigest(digest);
+			for (Map.Entry<String, String> version : versions.entrySet()) {
+				if (version.getKey().endsWith(suffix)) {
+					return version.getValue();
 				}
 			}
-			if (serverGroupId == null) {
-				throw new IllegalArgumentException("no server group found having the name " + serverGroup);
-			}
-		} finally {
-			webClient.close();
+		}
+		return null;
+	}
+
+	/**
+	 * Appends the digest of the archive to a version name, so that an
+	 * identical archive can later be found in the repository.
+	 */
+	public static String tagVersion(String version, String digest) {
+		return version + DIGEST_SEPARATOR + shortDigest(digest);
+	}
+
+	private static String shortDigest(String digest) {
+		return digest.length() > DIGEST_LENGTH ? digest.substring(0, DIGEST_LENGTH) : digest;
+	}
+
+	public final String restfullyGetServerGroupId(String serverGroup) throws IOException {
+		String parameter = serverSideFiltering ? NAME_PARAMETER : null;
+		String serverGroupId;
+		if (metadataCache != null) {
+			Set<String> serverGroupIds = restfullyGetMetadata(MmcInventory.SERVER_GROUPS, ID_BY_NAME, serverGroup, parameter, serverGroup);
+			serverGroupId = serverGroupIds.isEmpty() ? null : serverGroupIds.iterator().next();
+		} else {
+			serverGroupId = getIndex(MmcInventory.SERVER_GROUPS, ID_BY_NAME, serverGroup, parameter, serverGroup).get(serverGroup);
+		}
+		if (serverGroupId == null) {
+			throw new IllegalArgumentException("no server group found having the name " + serverGroup);
 		}
 		return serverGroupId;
 	}
 
 	public Set<String> restfullyGetServers(String serverGroup) throws IOException {
-		Set<String> serversId = new TreeSet<String>();
-		WebClient webClient = getWebClient("servers");
+		String parameter = null;
+		String value = null;
+		if (serverSideFiltering) {
+			// only the servers of the group, which is addressed by id
+			parameter = GROUP_ID_PARAMETER;
+			value = restfullyGetServerGroupId(serverGroup);
+		}
+		if (metadataCache != null) {
+			return restfullyGetMetadata(MmcInventory.SERVERS, SERVERS_BY_GROUP, serverGroup, parameter, value);
+		}
+		Set<String> serversId = getIndex(MmcInventory.SERVERS, SERVERS_BY_GROUP, serverGroup, parameter, value).get(serverGroup);
+		return serversId == null ? new TreeSet<String>() : new TreeSet<String>(serversId);
+	}
+
+	public Set<String> restfullyGetClusters(String clusterName) throws IOException {
+		String parameter = serverSideFiltering ? NAME_PARAMETER : null;
+		if (metadataCache != null) {
+			return restfullyGetMetadata(MmcInventory.CLUSTERS, CLUSTERS_BY_NAME, clusterName, parameter, clusterName);
+		}
+		Set<String> clustersId = getIndex(MmcInventory.CLUSTERS, CLUSTERS_BY_NAME, clusterName, parameter, clusterName).get(clusterName);
+		return clustersId == null ? new TreeSet<String>() : new TreeSet<String>(clustersId);
+	}
+
+	/**
+	 * Returns the ids found for the key from the metadata cache. An entry
+	 * past its time to live is revalidated with its ETag, and read again from
+	 * the MMC if it changed. Empty results are not cached.
+	 */
+	private Set<String> restfullyGetMetadata(String collection, IndexBuilder<? extends Map<String, ?>> builder, String key, String parameter, String value) throws IOException {
+		MetadataCache.Entry entry = metadataCache.get(collection, key);
+		if (entry != null && metadataCache.isFresh(entry)) {
+			return new TreeSet<String>(entry.getValues());
+		}
+
+		Revalidation revalidation = new Revalidation(entry == null ? null : entry.getEtag());
+		Object found = restfullyGetCollection(collection, builder, key, parameter, value, revalidation).get(key);
+		if (revalidation.notModified) {
+			metadataCache.touch(entry);
+			return new TreeSet<String>(entry.getValues());
+		}
+
+		Set<String> ids = new TreeSet<String>();
+		if (found instanceof Collection) {
+			for (Object id : (Collection<?>) found) {
+				ids.add((String) id);
+			}
+		} else if (found != null) {
+			ids.add((String) found);
+		}
+		if (ids.isEmpty()) {
+			metadataCache.remove(collection, key);
+		} else {
+			metadataCache.put(collection, key, ids, revalidation.etag);
+		}
+		return ids;
+	}
+
+	/**
+	 * Conditional request state: the ETag to send and, once the response is
+	 * received, whether it was unchanged or the new ETag.
+	 */
+	private static class Revalidation {
+		private String etag;
+		private boolean notModified;
+
+		Revalidation(String etag) {
+			this.etag = etag;
+		}
+	}
+
+	/**
+	 * Fetches the given collections into the inventory on the executor, so
+	 * that the lookups needing them later, for instance while creating the
+	 * deployment, do not wait for them. A lookup made while its collection is
+	 * being prefetched waits for that fetch instead of making another one.
+	 * Failed prefetches are ignored, the lookups fetch the collection again.
+	 *
+	 * @param collections
+	 *            names of the collections, see {@link MmcInventory}
+	 */
+	public List<Future<?>> prefetch(ExecutorService executor, String... collections) {
+		if (!cacheInventory) {
+			throw new IllegalStateException("Prefetching needs the inventory cache");
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final String collection : collections) {
+			final IndexBuilder<?> builder = getIndexBuilder(collection);
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					return getIndex(collection, builder, null);
+				}
+			}));
+		}
+		return futures;
+	}
+
+	private static IndexBuilder<?> getIndexBuilder(String collection) {
+		if (MmcInventory.SERVERS.equals(collection)) {
+			return SERVERS_BY_GROUP;
+		} else if (MmcInventory.CLUSTERS.equals(collection)) {
+			return CLUSTERS_BY_NAME;
+		} else if (MmcInventory.REPOSITORY.equals(collection)) {
+			return VERSIONS_BY_APPLICATION;
+		} else if (MmcInventory.DEPLOYMENTS.equals(collection) || MmcInventory.SERVER_GROUPS.equals(collection)) {
+			return ID_BY_NAME;
+		}
+		throw new IllegalArgumentException("Unknown collection : " + collection);
+	}
+
+	/**
+	 * Returns the index of an MMC collection, from the inventory when it was
+	 * already fetched and caching is enabled. Without caching, only the
+	 * entries matching the key are indexed and the response is read until
+	 * the key is resolved.
+	 */
+	private <T> T getIndex(String collection, IndexBuilder<T> builder, String key) throws IOException {
+		return getIndex(collection, builder, key, null, null);
+	}
+
+	/**
+	 * Returns the index of the entries of an MMC collection selected by a
+	 * query parameter, cached apart from the whole collection. Only the
+	 * entries matching the key are indexed, whether the MMC applies the
+	 * filter or not.
+	 */
+	private <T> T getIndex(String collection, IndexBuilder<T> builder, String key, String parameter, String value) throws IOException {
+		if (!cacheInventory) {
+			return restfullyGetCollection(collection, builder, key, parameter, value, null);
+		}
+		String entry = parameter == null ? collection : MmcInventory.filtered(collection, parameter, value);
+		synchronized (inventory.lockFor(entry)) {
+			T index = inventory.<T> get(entry);
+			if (index == null) {
+				// a change made while fetching may be missing from the index
+				long generation = inventory.generation(entry);
+				index = restfullyGetCollection(collection, builder, parameter == null ? null : key, parameter, value, null);
+				inventory.put(entry, index, generation);
+			}
+			return index;
+		}
+	}
 
+	/**
+	 * Streams the entries of an MMC collection into an index, without
+	 * building the JSON tree of the response, until the key is resolved.
+	 */
+	private <T> T restfullyGetCollection(final String collection, IndexBuilder<T> builder, String key, final String parameter, final String value, final Revalidation revalidation) throws IOException {
+		T index = builder.newIndex();
+		CollectionCursor cursor = new CollectionCursor(new CollectionCursor.PageLoader() {
+			public InputStream load(int offset, int limit) throws IOException {
+				return restfullyOpenCollection(collection, parameter, value, offset, limit, revalidation);
+			}
+		}, OBJECT_MAPPER.getJsonFactory(), pageSize, pageSize > 0 ? getPageExecutor() : null);
 		try {
-			Response response = webClient.get();
-
-			InputStream responseStream = (InputStream) response.getEntity();
-			JsonNode jsonNode = OBJECT_MAPPER.readTree(responseStream);
-			JsonNode serversNode = jsonNode.path("data");
-			for (JsonNode serverNode : serversNode) {
-				String serverId = serverNode.path("id").asText();
-
-				JsonNode groupsNode = serverNode.path("groups");
-				for (JsonNode groupNode : groupsNode) {
-					if (serverGroup.equals(groupNode.path("name").asText())) {
-						serversId.add(serverId);
-					}
+			while (cursor.next()) {
+				if (builder.read(cursor.getParser(), index, key)) {
+					return index;
 				}
 			}
+			return index;
 		} finally {
-			webClient.close();
+			cursor.close();
 		}
-		return serversId;
 	}
 
-	public Set<String> restfullyGetClusters(String clusterName) throws IOException {
-		Set<String> clustersId = new TreeSet<String>();
-		WebClient webClient = getWebClient("clusters");
+	/**
+	 * @return the body of one page of the collection, the whole collection
+	 *         when the limit is 0, empty when it was not modified since the
+	 *         revalidated response
+	 */
+	private InputStream restfullyOpenCollection(String collection, String parameter, String value, int offset, int limit, Revalidation revalidation) throws IOException {
+		WebClient webClient = getWebClient(collection);
+		if (parameter != null) {
+			webClient.query(parameter, value);
+		}
+		if (limit > 0) {
+			webClient.query(OFFSET_PARAMETER, offset);
+			webClient.query(LIMIT_PARAMETER, limit);
+		}
 
-		try {
-			Response response = webClient.get();
-			InputStream responseStream = (InputStream) response.getEntity();
-			JsonNode jsonNode = OBJECT_MAPPER.readTree(responseStream);
-			JsonNode serversNode = jsonNode.path("data");
-			for (JsonNode serverNode : serversNode) {
-				String id = serverNode.path("id").asText();
-				String name = serverNode.path("name").asText();
-				if (clusterName.equals(name)) {
-					clustersId.add(id);
+		// pages have an ETag each, only a whole collection is revalidated
+		return restfullyGet(webClient, limit == 0 ? revalidation : null);
+	}
+
+	/**
+	 * Sends a GET accepting a gzip body. The request is made conditional on
+	 * the ETag to revalidate if any, or else on the response cached for the
+	 * URL, which is returned again when the MMC answers 304.
+	 *
+	 * @return the decoded body, closing it releases the response; empty if
+	 *         the revalidated response was not modified
+	 * @throws HTTPException
+	 *             unless the MMC answered OK or NOT MODIFIED, once the retries
+	 *             are exhausted
+	 */
+	private InputStream restfullyGet(WebClient webClient, Revalidation revalidation) throws IOException {
+		String url = webClient.getCurrentURI().toString();
+		if (acceptGzip) {
+			webClient.header(HttpHeaders.ACCEPT_ENCODING, GZIP);
+		}
+		ResponseCache.CachedResponse cached = null;
+		if (revalidation != null && revalidation.etag != null) {
+			webClient.header(HttpHeaders.IF_NONE_MATCH, revalidation.etag);
+		} else if (responseCache != null && (cached = responseCache.get(url)) != null) {
+			if (cached.getEtag() != null) {
+				webClient.header(HttpHeaders.IF_NONE_MATCH, cached.getEtag());
+			}
+			if (cached.getLastModified() != null) {
+				webClient.header(HttpHeaders.IF_MODIFIED_SINCE, cached.getLastModified());
+			}
+		}
+
+		final Response response = invoke(webClient, HttpMethod.GET, null);
+		if (response.getStatus() != Status.OK.getStatusCode() && response.getStatus() != Status.NOT_MODIFIED.getStatusCode()) {
+			// an error body read as an empty collection would look like a
+			// missing server or deployment
+			release(response);
+			checkStatus(response.getStatus(), mmcUrl);
+			throw new HTTPException(response.getStatus(), "Unexpected Status Code Return, Status Line: " + response.getStatus(), mmcUrl);
+		}
+		if (response.getStatus() == Status.NOT_MODIFIED.getStatusCode()) {
+			release(response);
+			if (cached != null) {
+				if (revalidation != null) {
+					revalidation.etag = cached.getEtag();
 				}
+				return new ByteArrayInputStream(cached.getBody());
 			}
-		} finally {
-			webClient.close();
+			if (revalidation != null) {
+				revalidation.notModified = true;
+			}
+			return new ByteArrayInputStream(new byte[0]);
 		}
-		return clustersId;
+
+		String etag = getHeader(response, HttpHeaders.ETAG);
+		String lastModified = getHeader(response, HttpHeaders.LAST_MODIFIED);
+		if (revalidation != null) {
+			revalidation.etag = etag;
+		}
+		InputStream body = getEntityStream(response);
+		if (responseCache != null && response.getStatus() == Status.OK.getStatusCode() && (etag != null || lastModified != null)) {
+			body = responseCache.record(url, etag, lastModified, body);
+		}
+		return new FilterInputStream(body) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					release(response);
+				}
+			}
+		};
+	}
+
+	private static String getHeader(Response response, String name) {
+		Object value = response.getMetadata().getFirst(name);
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * @return the body of the response, decompressed if it was gzipped
+	 */
+	private static InputStream getEntityStream(Response response) throws IOException {
+		InputStream body = (InputStream) response.getEntity();
+		if (GZIP.equalsIgnoreCase(getHeader(response, HttpHeaders.CONTENT_ENCODING))) {
+			return new GZIPInputStream(body);
+		}
+		return body;
+	}
+
+	private synchronized ExecutorService getPageExecutor() {
+		if (pageExecutor == null) {
+			pageExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "mmc-page-prefetch");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pageExecutor;
+	}
+
+	/**
+	 * Reads the entries of an MMC collection into an index.
+	 */
+	private interface IndexBuilder<T> {
+		T newIndex();
+
+		/**
+		 * Reads the entry object the parser is positioned on, indexing it if
+		 * it matches the key or if the key is null.
+		 * 
+		 * @return true when the key is resolved and no further entries are
+		 *         needed
+		 */
+		boolean read(JsonParser parser, T index, String key) throws IOException;
+	}
+
+	/**
+	 * Indexes the first id found for each name, used for deployments and
+	 * server groups.
+	 */
+	private static final IndexBuilder<Map<String, String>> ID_BY_NAME = new IndexBuilder<Map<String, String>>() {
+		public Map<String, String> newIndex() {
+			return new HashMap<String, String>();
+		}
+
+		public boolean read(JsonParser parser, Map<String, String> ids, String key) throws IOException {
+			String[] entry = readFields(parser, "name", "id");
+			if ((key == null || key.equals(entry[0])) && !ids.containsKey(entry[0])) {
+				ids.put(entry[0], entry[1]);
+			}
+			return key != null && ids.containsKey(key);
+		}
+	};
+
+	private static final IndexBuilder<Map<String, Map<String, String>>> VERSIONS_BY_APPLICATION = new IndexBuilder<Map<String, Map<String, String>>>() {
+		public Map<String, Map<String, String>> newIndex() {
+			return new HashMap<String, Map<String, String>>();
+		}
+
+		public boolean read(JsonParser parser, Map<String, Map<String, String>> applications, String key) throws IOException {
+			String name = null;
+			Map<String, String> versions = new LinkedHashMap<String, String>();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("name".equals(field)) {
+					name = parser.getText();
+				} else if (key != null && name != null && !key.equals(name)) {
+					// versions of another application
+					parser.skipChildren();
+				} else if ("versions".equals(field) && token == JsonToken.START_ARRAY) {
+					while (nextObject(parser)) {
+						String[] version = readFields(parser, "name", "id");
+						if (!versions.containsKey(version[0])) {
+							versions.put(version[0], version[1]);
+						}
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (key != null && !key.equals(name)) {
+				return false;
+			}
+			Map<String, String> indexed = applications.get(name);
+			if (indexed == null) {
+				applications.put(name, versions);
+			} else {
+				for (Map.Entry<String, String> version : versions.entrySet()) {
+					if (!indexed.containsKey(version.getKey())) {
+						indexed.put(version.getKey(), version.getValue());
+					}
+				}
+			}
+			return key != null;
+		}
+	};
+
+	/**
+	 * Lists the versions of the repository entries, the key is not used.
+	 */
+	private static final IndexBuilder<List<ApplicationVersion>> APPLICATION_VERSIONS = new IndexBuilder<List<ApplicationVersion>>() {
+		public List<ApplicationVersion> newIndex() {
+			return new ArrayList<ApplicationVersion>();
+		}
+
+		public boolean read(JsonParser parser, List<ApplicationVersion> versions, String key) throws IOException {
+			String name = null;
+			List<String[]> entryVersions = new ArrayList<String[]>();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("name".equals(field)) {
+					name = parser.getText();
+				} else if ("versions".equals(field) && token == JsonToken.START_ARRAY) {
+					while (nextObject(parser)) {
+						entryVersions.add(readFields(parser, "name", "id"));
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+			for (String[] version : entryVersions) {
+				versions.add(new ApplicationVersion(name, version[0], version[1]));
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Collects the application versions of all the deployments, the key is
+	 * not used.
+	 */
+	private static final IndexBuilder<Set<String>> DEPLOYED_VERSIONS = new IndexBuilder<Set<String>>() {
+		public Set<String> newIndex() {
+			return new HashSet<String>();
+		}
+
+		public boolean read(JsonParser parser, Set<String> versionIds, String key) throws IOException {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("applications".equals(field) && token == JsonToken.START_ARRAY) {
+					JsonToken element;
+					while ((element = parser.nextToken()) != JsonToken.END_ARRAY && element != null) {
+						if (element == JsonToken.VALUE_STRING) {
+							versionIds.add(parser.getText());
+						} else {
+							parser.skipChildren();
+						}
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return false;
+		}
+	};
+
+	private static final IndexBuilder<Map<String, Set<String>>> SERVERS_BY_GROUP = new IndexBuilder<Map<String, Set<String>>>() {
+		public Map<String, Set<String>> newIndex() {
+			return new HashMap<String, Set<String>>();
+		}
+
+		public boolean read(JsonParser parser, Map<String, Set<String>> servers, String key) throws IOException {
+			String serverId = null;
+			List<String> groups = new ArrayList<String>();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("id".equals(field)) {
+					serverId = parser.getText();
+				} else if ("groups".equals(field) && token == JsonToken.START_ARRAY) {
+					while (nextObject(parser)) {
+						groups.add(readFields(parser, "name")[0]);
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+			for (String group : groups) {
+				if (key == null || key.equals(group)) {
+					add(servers, group, serverId);
+				}
+			}
+			// a server group spans any number of servers, the whole list is needed
+			return false;
+		}
+	};
+
+	private static final IndexBuilder<Map<String, Set<String>>> CLUSTERS_BY_NAME = new IndexBuilder<Map<String, Set<String>>>() {
+		public Map<String, Set<String>> newIndex() {
+			return new HashMap<String, Set<String>>();
+		}
+
+		public boolean read(JsonParser parser, Map<String, Set<String>> clusters, String key) throws IOException {
+			String[] entry = readFields(parser, "name", "id");
+			if (key == null || key.equals(entry[0])) {
+				add(clusters, entry[0], entry[1]);
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Moves to the next object of the array the parser is in, skipping any
+	 * other value.
+	 * 
+	 * @return false at the end of the array
+	 */
+	private static boolean nextObject(JsonParser parser) throws IOException {
+		JsonToken token;
+		while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+			if (token == JsonToken.START_OBJECT) {
+				return true;
+			}
+			parser.skipChildren();
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the object the parser is positioned on, returning the text of the
+	 * requested fields and skipping all the others.
+	 */
+	private static String[] readFields(JsonParser parser, String... fieldNames) throws IOException {
+		String[] values = new String[fieldNames.length];
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+				parser.skipChildren();
+				continue;
+			}
+			for (int i = 0; i < fieldNames.length; i++) {
+				if (fieldNames[i].equals(field)) {
+					values[i] = parser.getText();
+					break;
+				}
+			}
+		}
+		return values;
+	}
+
+	private static void add(Map<String, Set<String>> index, String key, String value) {
+		Set<String> values = index.get(key);
+		if (values == null) {
+			values = new TreeSet<String>();
+			index.put(key, values);
+		}
+		values.add(value);
 	}
 
 	public String restfullyUploadRepository(String name, String version, File packageFile) throws IOException {
+		return restfullyUploadSharedArchive(name, version, SharedArchive.fromFile(packageFile));
+	}
+
+	/**
+	 * Uploads the archive, streaming it again for every attempt.
+	 *
+	 * @return the id of the uploaded version
+	 */
+	public String restfullyUploadSharedArchive(String name, String version, SharedArchive archive) throws IOException {
+		// delete application first
+		if (isSnapshotVersion(version)) {
+			restfullyDeleteApplication(name, version);
+		}
+
+		// the repository only accepts the archive as a single request, a failed
+		// attempt is retried by streaming the archive again
+		int attempt = 0;
+		while (true) {
+			retryPolicy.beforeCall(UPLOAD_ENDPOINT);
+			Exception failure = null;
+			String versionId = null;
+			boolean ended = false;
+			try {
+				versionId = uploadRepository(name, version, archive);
+				ended = true;
+			} catch (IOException e) {
+				failure = e;
+				ended = true;
+			} catch (ClientException e) {
+				failure = e;
+				ended = true;
+			} finally {
+				if (!ended) {
+					retryPolicy.onAbort();
+				}
+			}
+			if (failure == null) {
+				retryPolicy.onSuccess();
+				return versionId;
+			}
+			attempt = handleUploadFailure(failure, attempt);
+
+			if (isSent(failure)) {
+				// the previous attempt may have been stored even though its
+				// response was lost or was a server error, reuse it rather
+				// than failing on a conflict
+				versionId = restfullyGetApplicationId(name, version);
+				if (versionId != null) {
+					logger.info("Version {} of {} was stored by a previous attempt", version, name);
+					return versionId;
+				}
+			}
+		}
+	}
+
+	private int handleUploadFailure(Exception e, int attempt) throws IOException {
+		long delay = -1;
+		if (isRetryable(e)) {
+			retryPolicy.onFailure();
+			delay = retryPolicy.nextDelay(attempt);
+		} else {
+			// the MMC answered
+			retryPolicy.onSuccess();
+		}
+		if (delay < 0) {
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			}
+			throw (RuntimeException) e;
+		}
+		logger.warn("Upload failed ({}), retrying in {} ms", e.toString(), delay);
+		if (metrics != null) {
+			metrics.recordRetry(UPLOAD_ENDPOINT);
+		}
+		sleep(delay);
+		return attempt + 1;
+	}
+
+	protected boolean isRetryable(Exception e) {
+		if (e instanceof HTTPException) {
+			int statusCode = ((HTTPException) e).getResponseCode();
+			return statusCode >= Status.INTERNAL_SERVER_ERROR.getStatusCode();
+		}
+		// transport failures surface wrapped in one or more ClientException
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String uploadRepository(String name, String version, SharedArchive archive) throws IOException {
 		WebClient webClient = getWebClient("repository");
 		webClient.type("multipart/form-data");
 
+		Response response = null;
+		InputStream packageStream = null;
 		try {
-			// delete application first
-			if (isSnapshotVersion(version)) {
-				restfullyDeleteApplication(name, version);
-			}
 			Attachment nameAttachment = new AttachmentBuilder().id("name").object(name).contentDisposition(new ContentDisposition("form-data; name=\"name\"")).build();
 			Attachment versionAttachment = new AttachmentBuilder().id("version").object(version).contentDisposition(new ContentDisposition("form-data; name=\"version\"")).build();
-			Attachment fileAttachment = new Attachment("file", new FileInputStream(packageFile), new ContentDisposition("form-data; name=\"file\"; filename=\"" + packageFile.getName() + "\""));
+			packageStream = new ProgressInputStream(archive.openStream(), archive.getName(), archive.getLength(), progressInterval);
+			Attachment fileAttachment = new Attachment("file", packageStream, new ContentDisposition("form-data; name=\"file\"; filename=\"" + archive.getName() + "\""));
 
 			MultipartBody multipartBody = new MultipartBody(Arrays.asList(fileAttachment, nameAttachment, versionAttachment), MediaType.MULTIPART_FORM_DATA_TYPE, true);
 
-			Response response = webClient.post(multipartBody);
+			response = webClient.post(multipartBody);
 
 			String responseObject = processResponse(response);
 
@@ -306,18 +1444,24 @@ public class MuleRest {
 			JsonNode result = mapper.readTree(responseObject);
 			return result.path("versionId").asText();
 		} finally {
-			webClient.close();
+			release(response);
+			inventory.invalidate(MmcInventory.REPOSITORY);
+			if (packageStream != null) {
+				packageStream.close();
+			}
 		}
 	}
 
 	public void restfullyDeleteApplicationById(String applicationVersionId) throws IOException {
 		WebClient webClient = getWebClient("repository", applicationVersionId);
 
+		Response response = null;
 		try {
-			Response response = webClient.delete();
+			response = invoke(webClient, HttpMethod.DELETE, null);
 			processResponse(response);
 		} finally {
-			webClient.close();
+			release(response);
+			inventory.invalidate(MmcInventory.REPOSITORY);
 		}
 
 	}
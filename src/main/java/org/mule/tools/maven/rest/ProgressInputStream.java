@@ -0,0 +1,95 @@
+package org.mule.tools.maven.rest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the bytes read from the wrapped stream and periodically logs the
+ * transfer progress, throughput and estimated remaining time.
+ */
+public class ProgressInputStream extends FilterInputStream {
+	private static final Logger logger = LoggerFactory.getLogger(ProgressInputStream.class);
+	private static final double MEGABYTE = 1024 * 1024;
+
+	private final String name;
+	private final long totalBytes;
+	private final long interval;
+	private final long startTime;
+
+	private long transferredBytes;
+	private long lastReport;
+	private boolean completed;
+
+	/**
+	 * @param in
+	 *            the stream to report on
+	 * @param name
+	 *            name of the transfer used in the log messages
+	 * @param totalBytes
+	 *            expected number of bytes
+	 * @param interval
+	 *            minimum time in milliseconds between two progress messages
+	 */
+	public ProgressInputStream(InputStream in, String name, long totalBytes, long interval) {
+		super(in);
+		this.name = name;
+		this.totalBytes = totalBytes;
+		this.interval = interval;
+		this.startTime = System.currentTimeMillis();
+		this.lastReport = startTime;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = super.read();
+		count(read == -1 ? -1 : 1);
+		return read;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		count(read);
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count(skipped);
+		return skipped;
+	}
+
+	public long getTransferredBytes() {
+		return transferredBytes;
+	}
+
+	private void count(long read) {
+		long now = System.currentTimeMillis();
+		if (read == -1) {
+			if (!completed) {
+				completed = true;
+				long elapsed = Math.max(now - startTime, 1);
+				logger.info(String.format("Transferred %s: %.1f MB in %.1f s (%.1f MB/s)", name, transferredBytes / MEGABYTE, elapsed / 1000.0, throughput(elapsed)));
+			}
+			return;
+		}
+		transferredBytes += read;
+		if (now - lastReport >= interval) {
+			lastReport = now;
+			long elapsed = Math.max(now - startTime, 1);
+			double throughput = throughput(elapsed);
+			long remaining = Math.max(totalBytes - transferredBytes, 0);
+			long eta = throughput > 0 ? Math.round(remaining / MEGABYTE / throughput) : -1;
+			logger.info(String.format("Transferring %s: %.1f of %.1f MB (%d%%), %.1f MB/s, ETA %d s", name, transferredBytes / MEGABYTE, totalBytes / MEGABYTE, totalBytes > 0 ? transferredBytes * 100 / totalBytes : 100, throughput, eta));
+		}
+	}
+
+	private double throughput(long elapsed) {
+		return transferredBytes / MEGABYTE / (elapsed / 1000.0);
+	}
+}
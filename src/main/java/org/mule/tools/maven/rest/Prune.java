@@ -0,0 +1,267 @@
+package org.mule.tools.maven.rest;
+
+import java.math.BigInteger;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.impl.StaticLoggerBinder;
+
+/**
+ * Deletes the application versions no longer needed from the MMC repository.
+ * A version is kept when it is one of the {@link #keepLast} newest versions
+ * of its application, when a deployment carries it, or when it is younger than
+ * {@link #maxAgeDays}; the others are deleted concurrently.
+ *
+ * @goal prune
+ * @requiresProject false
+ * @requiresDirectInvocation true
+ */
+public class Prune extends AbstractMuleMojo {
+	public static final int DEFAULT_KEEP_LAST = 5;
+	public static final int DEFAULT_PRUNE_THREADS = 4;
+
+	private static final Pattern NUMERIC_VERSION = Pattern.compile("[0-9]+(\\.[0-9]+)*");
+
+	/**
+	 * The application to prune the versions of. Default is all the
+	 * applications of the repository.
+	 *
+	 * @parameter expression="${name}"
+	 */
+	protected String name;
+
+	/**
+	 * Number of versions kept per application, the newest ones. Versions are
+	 * ordered by the time in their name, as given by default by the deploy
+	 * goals, or by their numbers for dotted numeric versions; an application
+	 * whose versions cannot all be ordered that way keeps all of them.
+	 *
+	 * @parameter expression="${keepLast}" default-value="5"
+	 */
+	protected int keepLast = DEFAULT_KEEP_LAST;
+
+	/**
+	 * When positive, only the versions older than that many days are deleted.
+	 * The age of a version is read from its name, as given by default by the
+	 * deploy goals; versions with another name are kept.
+	 *
+	 * @parameter expression="${maxAgeDays}" default-value="0"
+	 */
+	protected int maxAgeDays;
+
+	/**
+	 * Maximum number of versions deleted at the same time.
+	 *
+	 * @parameter expression="${pruneThreads}" default-value="4"
+	 */
+	protected int pruneThreads = DEFAULT_PRUNE_THREADS;
+
+	/**
+	 * When true, the versions that would be deleted are only logged.
+	 *
+	 * @parameter expression="${dryRun}" default-value="false"
+	 */
+	protected boolean dryRun;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		StaticLoggerBinder.getSingleton().setLog(getLog());
+		Logger logger = LoggerFactory.getLogger(getClass());
+
+		validateCredentials();
+		validateMuleApiUrl();
+		if (keepLast < 0) {
+			throw new MojoFailureException("keepLast must not be negative.");
+		}
+		if (pruneThreads < 1) {
+			throw new MojoFailureException("pruneThreads must be at least 1.");
+		}
+
+		ExecutorService executor = null;
+		try {
+			muleRest = buildMuleRest();
+			List<ApplicationVersion> versions = muleRest.restfullyGetApplicationVersions();
+			Set<String> deployedVersionIds = muleRest.restfullyGetDeployedVersionIds();
+			List<ApplicationVersion> prunable = selectPrunable(versions, deployedVersionIds, System.currentTimeMillis());
+			logger.info("{} of the {} versions in the repository to delete", prunable.size(), versions.size());
+			if (dryRun) {
+				for (ApplicationVersion version : prunable) {
+					logger.info("Would delete {}", version);
+				}
+				return;
+			}
+			if (prunable.isEmpty()) {
+				return;
+			}
+
+			executor = Executors.newFixedThreadPool(Math.min(pruneThreads, prunable.size()));
+			delete(executor, prunable);
+		} catch (MojoFailureException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while pruning the repository", e);
+		} catch (Exception e) {
+			throw new MojoFailureException("Error in attempting to prune the repository: " + e.toString(), e);
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			closeMuleRest();
+		}
+	}
+
+	/**
+	 * Applies the retention rules to the versions of the applications. The
+	 * order the MMC lists them in is not relied upon, the versions of an
+	 * application are sorted by their names.
+	 *
+	 * @return the versions to delete
+	 */
+	protected List<ApplicationVersion> selectPrunable(List<ApplicationVersion> versions, Set<String> deployedVersionIds, long now) {
+		Map<String, List<ApplicationVersion>> byApplication = new LinkedHashMap<String, List<ApplicationVersion>>();
+		for (ApplicationVersion version : versions) {
+			if (name != null && !name.equals(version.getName())) {
+				continue;
+			}
+			List<ApplicationVersion> applicationVersions = byApplication.get(version.getName());
+			if (applicationVersions == null) {
+				applicationVersions = new ArrayList<ApplicationVersion>();
+				byApplication.put(version.getName(), applicationVersions);
+			}
+			applicationVersions.add(version);
+		}
+
+		long cutoff = now - TimeUnit.DAYS.toMillis(maxAgeDays);
+		List<ApplicationVersion> prunable = new ArrayList<ApplicationVersion>();
+		for (List<ApplicationVersion> applicationVersions : byApplication.values()) {
+			if (keepLast > 0 && applicationVersions.size() > keepLast && !sortVersions(applicationVersions)) {
+				LoggerFactory.getLogger(getClass()).warn("The versions of {} cannot be ordered by their names, keeping all of them", applicationVersions.get(0).getName());
+				continue;
+			}
+			for (int index = 0; index < applicationVersions.size() - keepLast; index++) {
+				ApplicationVersion version = applicationVersions.get(index);
+				if (deployedVersionIds.contains(version.getId())) {
+					continue;
+				}
+				if (maxAgeDays > 0) {
+					Date time = parseVersionTime(version.getVersion());
+					if (time == null || time.getTime() > cutoff) {
+						continue;
+					}
+				}
+				prunable.add(version);
+			}
+		}
+		return prunable;
+	}
+
+	/**
+	 * Sorts the versions oldest first, by the time of default versions or by
+	 * the numbers of dotted numeric versions.
+	 *
+	 * @return false if the versions are not all of one of these kinds, they
+	 *         are then left unsorted
+	 */
+	static boolean sortVersions(List<ApplicationVersion> versions) {
+		final Map<ApplicationVersion, Date> times = new HashMap<ApplicationVersion, Date>();
+		for (ApplicationVersion version : versions) {
+			Date time = parseVersionTime(version.getVersion());
+			if (time == null) {
+				break;
+			}
+			times.put(version, time);
+		}
+		if (times.size() == versions.size()) {
+			Collections.sort(versions, new Comparator<ApplicationVersion>() {
+				public int compare(ApplicationVersion first, ApplicationVersion second) {
+					return times.get(first).compareTo(times.get(second));
+				}
+			});
+			return true;
+		}
+		for (ApplicationVersion version : versions) {
+			if (!NUMERIC_VERSION.matcher(version.getVersion()).matches()) {
+				return false;
+			}
+		}
+		Collections.sort(versions, new Comparator<ApplicationVersion>() {
+			public int compare(ApplicationVersion first, ApplicationVersion second) {
+				String[] firstNumbers = first.getVersion().split("\\.");
+				String[] secondNumbers = second.getVersion().split("\\.");
+				for (int index = 0; index < Math.max(firstNumbers.length, secondNumbers.length); index++) {
+					BigInteger firstNumber = index < firstNumbers.length ? new BigInteger(firstNumbers[index]) : BigInteger.ZERO;
+					BigInteger secondNumber = index < secondNumbers.length ? new BigInteger(secondNumbers[index]) : BigInteger.ZERO;
+					int comparison = firstNumber.compareTo(secondNumber);
+					if (comparison != 0) {
+						return comparison;
+					}
+				}
+				return 0;
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * @return the time of a default version, possibly tagged with the digest
+	 *         of its archive, or null for another version
+	 */
+	static Date parseVersionTime(String version) {
+		SimpleDateFormat format = new SimpleDateFormat(VERSION_FORMAT);
+		format.setLenient(false);
+		ParsePosition position = new ParsePosition(0);
+		Date time = format.parse(version, position);
+		if (time == null || (position.getIndex() < version.length() && version.charAt(position.getIndex()) != '-')) {
+			return null;
+		}
+		return time;
+	}
+
+	private void delete(ExecutorService executor, List<ApplicationVersion> versions) throws InterruptedException, MojoFailureException {
+		Logger logger = LoggerFactory.getLogger(getClass());
+		List<Future<?>> deletions = new ArrayList<Future<?>>();
+		for (final ApplicationVersion version : versions) {
+			deletions.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					muleRest.restfullyDeleteApplicationById(version.getId());
+					return null;
+				}
+			}));
+		}
+
+		int failed = 0;
+		for (int index = 0; index < versions.size(); index++) {
+			try {
+				deletions.get(index).get();
+				logger.info("Deleted {}", versions.get(index));
+			} catch (ExecutionException e) {
+				failed++;
+				logger.error("Could not delete " + versions.get(index) + ": " + e.getCause(), e.getCause());
+			}
+		}
+		if (failed > 0) {
+			throw new MojoFailureException(failed + " of the " + versions.size() + " versions could not be deleted");
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package org.mule.tools.maven.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bodies of the GET responses having an ETag or a Last-Modified date, kept by
+ * URL so that the next request for the URL is made conditional and a 304
+ * answer is served from memory. The least recently used bodies are dropped
+ * beyond the maximum size.
+ */
+public class ResponseCache {
+	private static final int DRAIN_LIMIT = 1024;
+
+	private final long maxSize;
+	private final Map<String, CachedResponse> responses = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+	private long size;
+
+	/**
+	 * @param maxSize
+	 *            maximum number of body bytes kept
+	 */
+	public ResponseCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the response cached for the URL, or null
+	 */
+	public synchronized CachedResponse get(String url) {
+		return responses.get(url);
+	}
+
+	/**
+	 * Wraps a response body so that it is cached once read to its end. A body
+	 * closed a few bytes before its end, such as the closing brackets after a
+	 * lookup resolved on the last entry, is read to its end and cached; one
+	 * closed earlier is not cached.
+	 */
+	public InputStream record(final String url, final String etag, final String lastModified, InputStream body) {
+		return new FilterInputStream(body) {
+			private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+			@Override
+			public int read() throws IOException {
+				int read = super.read();
+				if (read == -1) {
+					complete();
+				} else if (copy != null) {
+					copy.write(read);
+				}
+				return read;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int read = super.read(buffer, offset, length);
+				if (read == -1) {
+					complete();
+				} else if (copy != null) {
+					copy.write(buffer, offset, read);
+					if (copy.size() > maxSize) {
+						// would not be kept anyway
+						copy = null;
+					}
+				}
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					byte[] buffer = new byte[DRAIN_LIMIT];
+					for (int drained = 0; copy != null && drained < DRAIN_LIMIT;) {
+						int read = read(buffer, 0, DRAIN_LIMIT - drained);
+						if (read == -1) {
+							break;
+						}
+						drained += read;
+					}
+				} finally {
+					super.close();
+				}
+			}
+
+			private void complete() {
+				if (copy != null) {
+					put(url, new CachedResponse(etag, lastModified, copy.toByteArray()));
+					copy = null;
+				}
+			}
+		};
+	}
+
+	synchronized void put(String url, CachedResponse response) {
+		CachedResponse previous = responses.remove(url);
+		if (previous != null) {
+			size -= previous.body.length;
+		}
+		if (response.body.length > maxSize) {
+			return;
+		}
+		responses.put(url, response);
+		size += response.body.length;
+		for (Iterator<CachedResponse> eldest = responses.values().iterator(); size > maxSize && eldest.hasNext();) {
+			size -= eldest.next().body.length;
+			eldest.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		responses.clear();
+		size = 0;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public static class CachedResponse {
+		private final String etag;
+		private final String lastModified;
+		private final byte[] body;
+
+		CachedResponse(String etag, String lastModified, byte[] body) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.body = body;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+	}
+}
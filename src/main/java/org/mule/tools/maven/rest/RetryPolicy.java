@@ -0,0 +1,180 @@
+package org.mule.tools.maven.rest;
+
+import java.util.Random;
+
+/**
+ * Decides whether and when a failed MMC call is retried, shared by all the
+ * calls of a build. The delay doubles on every attempt up to a maximum and is
+ * shortened by a random part so that parallel builds do not retry in step. A
+ * budget bounds the retries of the whole build, and after a number of
+ * consecutive failures the circuit opens: calls fail at once until the open
+ * time has elapsed, then a single call is let through to probe the MMC.
+ */
+public class RetryPolicy {
+	public static final int DEFAULT_MAX_RETRIES = 2;
+	public static final long DEFAULT_INITIAL_BACKOFF = 2000;
+	public static final long DEFAULT_MAX_BACKOFF = 30000;
+	public static final double DEFAULT_JITTER = 0.5;
+	public static final int DEFAULT_RETRY_BUDGET = 20;
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_TIME = 30000;
+
+	private final Random random;
+
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private long maxBackoff = DEFAULT_MAX_BACKOFF;
+	private double jitter = DEFAULT_JITTER;
+	private int retryBudget = DEFAULT_RETRY_BUDGET;
+	private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private long openTime = DEFAULT_OPEN_TIME;
+
+	private int retries;
+	private int consecutiveFailures;
+	private long openUntil;
+	private boolean probing;
+
+	public RetryPolicy() {
+		this(new Random());
+	}
+
+	RetryPolicy(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * @param maxRetries
+	 *            number of times a failed call is retried
+	 */
+	public synchronized void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @param initialBackoff
+	 *            delay in milliseconds before the first retry, doubled on every
+	 *            further retry
+	 */
+	public synchronized void setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	public synchronized void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * @param jitter
+	 *            largest part of the delay, between 0 and 1, randomly taken
+	 *            off it
+	 */
+	public synchronized void setJitter(double jitter) {
+		this.jitter = Math.min(Math.max(jitter, 0), 1);
+	}
+
+	/**
+	 * @param retryBudget
+	 *            number of retries allowed over all the calls, unbounded when
+	 *            negative
+	 */
+	public synchronized void setRetryBudget(int retryBudget) {
+		this.retryBudget = retryBudget;
+	}
+
+	/**
+	 * @param failureThreshold
+	 *            number of consecutive failures opening the circuit, never
+	 *            opened when 0
+	 */
+	public synchronized void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * @param openTime
+	 *            time in milliseconds calls fail at once once the circuit is
+	 *            open
+	 */
+	public synchronized void setOpenTime(long openTime) {
+		this.openTime = openTime;
+	}
+
+	/**
+	 * Called before each call.
+	 *
+	 * @throws CircuitOpenException
+	 *             if the circuit is open, or half open with a probing call in
+	 *             progress
+	 */
+	public synchronized void beforeCall(String operation) throws CircuitOpenException {
+		if (openUntil == 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now < openUntil || probing) {
+			throw new CircuitOpenException("The MMC failed " + consecutiveFailures + " calls in a row, not calling " + operation + " for " + Math.max(openUntil - now, 0) + " ms");
+		}
+		probing = true;
+	}
+
+	/**
+	 * Called when the MMC answered, even with a client error: it is up.
+	 */
+	public synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		openUntil = 0;
+		probing = false;
+	}
+
+	/**
+	 * Called when a call failed for a reason worth a retry, opening the
+	 * circuit past the threshold.
+	 */
+	public synchronized void onFailure() {
+		consecutiveFailures++;
+		if (probing || (failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+			openUntil = System.currentTimeMillis() + openTime;
+			probing = false;
+		}
+	}
+
+	/**
+	 * Called when a call ended without telling whether the MMC is up, such as
+	 * on an unexpected error: another call may then probe a half open
+	 * circuit.
+	 */
+	public synchronized void onAbort() {
+		probing = false;
+	}
+
+	/**
+	 * Takes a retry from the budget.
+	 *
+	 * @param attempt
+	 *            number of retries already made for the call
+	 * @return the delay in milliseconds before the retry, or -1 if the call
+	 *         is not retried
+	 */
+	public synchronized long nextDelay(int attempt) {
+		if (attempt >= maxRetries || (retryBudget >= 0 && retries >= retryBudget) || openUntil != 0) {
+			return -1;
+		}
+		retries++;
+		long backoff = attempt < 62 ? initialBackoff << attempt : Long.MAX_VALUE;
+		if (backoff < initialBackoff || backoff > maxBackoff) {
+			backoff = Math.max(maxBackoff, initialBackoff);
+		}
+		return backoff - (long) (backoff * jitter * random.nextDouble());
+	}
+
+	/**
+	 * @return the number of retries made so far
+	 */
+	public synchronized int getRetries() {
+		return retries;
+	}
+
+	public synchronized boolean isOpen() {
+		return openUntil != 0;
+	}
+}
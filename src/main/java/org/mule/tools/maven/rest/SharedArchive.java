@@ -0,0 +1,106 @@
+package org.mule.tools.maven.rest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An application archive to upload. A mapped archive is read from disk once
+ * and every upload streams its own view of the mapping, so that the same
+ * archive can be sent to several MMCs at the same time; otherwise every
+ * upload streams the file again.
+ */
+public class SharedArchive {
+	private final File file;
+	private final ByteBuffer content;
+
+	private SharedArchive(File file, ByteBuffer content) {
+		this.file = file;
+		this.content = content;
+	}
+
+	/**
+	 * @return an archive streamed from disk on every upload
+	 */
+	public static SharedArchive fromFile(File file) {
+		return new SharedArchive(file, null);
+	}
+
+	/**
+	 * Maps the archive in memory and loads it. An archive too large to be
+	 * mapped is streamed from disk on every upload instead.
+	 */
+	public static SharedArchive map(File file) throws IOException {
+		if (file.length() > Integer.MAX_VALUE) {
+			return fromFile(file);
+		}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer content = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			content.load();
+			return new SharedArchive(file, content);
+		} finally {
+			// the mapping stays valid once the file is closed
+			randomAccessFile.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getName() {
+		return file.getName();
+	}
+
+	public long getLength() {
+		return content != null ? content.capacity() : file.length();
+	}
+
+	/**
+	 * @return a new stream over the whole archive
+	 */
+	public InputStream openStream() throws IOException {
+		if (content == null) {
+			return new FileInputStream(file);
+		}
+		final ByteBuffer view = content.duplicate();
+		view.rewind();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return view.hasRemaining() ? view.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) {
+				if (length == 0) {
+					return 0;
+				}
+				if (!view.hasRemaining()) {
+					return -1;
+				}
+				int read = Math.min(length, view.remaining());
+				view.get(buffer, offset, read);
+				return read;
+			}
+
+			@Override
+			public long skip(long count) {
+				int skipped = (int) Math.min(Math.max(count, 0), view.remaining());
+				view.position(view.position() + skipped);
+				return skipped;
+			}
+
+			@Override
+			public int available() {
+				return view.remaining();
+			}
+		};
+	}
+}
@@ -0,0 +1,82 @@
+package org.mule.tools.maven.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+public class ArchiveIndexTest {
+
+	@Test
+	public void testRebuiltArchiveHasNoDelta() throws Exception {
+		ArchiveIndex first = ArchiveIndex.read(createArchive(1000L, "mule-config.xml", "<mule/>", "mule-app.properties", "a=1"));
+		ArchiveIndex second = ArchiveIndex.read(createArchive(2000000L, "mule-config.xml", "<mule/>", "mule-app.properties", "a=1"));
+
+		assertEquals(2, second.size());
+		assertTrue(second.diff(first).isEmpty());
+	}
+
+	@Test
+	public void testDiff() throws Exception {
+		ArchiveIndex first = ArchiveIndex.read(createArchive(1000L, "mule-config.xml", "<mule/>", "mule-app.properties", "a=1", "lib/old.jar", "old"));
+		ArchiveIndex second = ArchiveIndex.read(createArchive(1000L, "mule-config.xml", "<mule><flow/></mule>", "mule-app.properties", "a=1", "lib/new.jar", "new"));
+
+		ArchiveIndex.Delta delta = second.diff(first);
+		assertEquals(Arrays.asList("mule-config.xml"), delta.getChanged());
+		assertEquals(Arrays.asList("lib/new.jar"), delta.getAdded());
+		assertEquals(Arrays.asList("lib/old.jar"), delta.getRemoved());
+		assertTrue(delta.getBytes() > 0);
+	}
+
+	@Test
+	public void testStoreAndLoad() throws Exception {
+		ArchiveIndex index = ArchiveIndex.read(createArchive(1000L, "mule-config.xml", "<mule/>"));
+		index.setUrl("http://localhost:8585/mmc/api");
+		index.setVersion("1.0");
+		index.setVersionId("local$1");
+
+		File file = new File(File.createTempFile("index", "").getPath() + ".d", "app.index");
+		file.deleteOnExit();
+		index.store(file);
+
+		ArchiveIndex loaded = ArchiveIndex.load(file);
+		assertEquals("http://localhost:8585/mmc/api", loaded.getUrl());
+		assertEquals("1.0", loaded.getVersion());
+		assertEquals("local$1", loaded.getVersionId());
+		assertTrue(index.diff(loaded).isEmpty());
+	}
+
+	@Test
+	public void testLoadMissingIndex() throws Exception {
+		assertNull(ArchiveIndex.load(new File("does-not-exist.index")));
+	}
+
+	/**
+	 * @param entries
+	 *            entry names and contents
+	 */
+	static File createArchive(long time, String... entries) throws Exception {
+		File archive = File.createTempFile("archive", ".zip");
+		archive.deleteOnExit();
+		ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(archive));
+		try {
+			for (int i = 0; i < entries.length; i += 2) {
+				ZipEntry entry = new ZipEntry(entries[i]);
+				entry.setTime(time);
+				outputStream.putNextEntry(entry);
+				outputStream.write(entries[i + 1].getBytes("UTF-8"));
+				outputStream.closeEntry();
+			}
+		} finally {
+			outputStream.close();
+		}
+		return archive;
+	}
+}
@@ -0,0 +1,164 @@
+package org.mule.tools.maven.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.cxf.helpers.IOUtils;
+import org.junit.Test;
+
+public class ArchiveOptimizerTest {
+	private static final String CONFIG = "<mule><flow name=\"main\"><logger message=\"hello\"/></flow></mule>";
+
+	@Test
+	public void testOptimizedArchiveKeepsContent() throws Exception {
+		File archive = ArchiveIndexTest.createArchive(1000L, "mule-config.xml", repeat(CONFIG, 100), "classes/", "", "classes/mule-app.properties", "a=1");
+		File optimized = optimize(archive, 9, 4);
+
+		ZipFile zipFile = new ZipFile(optimized);
+		try {
+			assertEquals(3, zipFile.size());
+			assertEquals(repeat(CONFIG, 100), read(zipFile, "mule-config.xml"));
+			assertEquals("a=1", read(zipFile, "classes/mule-app.properties"));
+			assertTrue(zipFile.getEntry("classes/").isDirectory());
+			assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("mule-config.xml").getMethod());
+		} finally {
+			zipFile.close();
+		}
+
+		// the local headers are complete too, not only the central directory
+		ZipInputStream inputStream = new ZipInputStream(new FileInputStream(optimized));
+		List<String> names = new ArrayList<String>();
+		for (ZipEntry entry = inputStream.getNextEntry(); entry != null; entry = inputStream.getNextEntry()) {
+			names.add(entry.getName());
+			IOUtils.copy(inputStream, new ByteArrayOutputStream());
+		}
+		inputStream.close();
+		assertEquals(3, names.size());
+	}
+
+	@Test
+	public void testOptimizedArchiveIsReproducible() throws Exception {
+		File first = optimize(ArchiveIndexTest.createArchive(1000L, "b.xml", CONFIG, "a.xml", "<a/>"), 9, 1);
+		File second = optimize(ArchiveIndexTest.createArchive(99999999L, "a.xml", "<a/>", "b.xml", CONFIG), 9, 4);
+
+		assertArrayEquals(IOUtils.readBytesFromStream(new FileInputStream(first)), IOUtils.readBytesFromStream(new FileInputStream(second)));
+	}
+
+	@Test
+	public void testDuplicateJarsRemoved() throws Exception {
+		File archive = ArchiveIndexTest.createArchive(1000L, "lib/a/commons.jar", "jar content", "lib/b/commons.jar", "jar content", "lib/other.jar", "other content", "a.txt", "same", "b.txt", "same");
+		File optimized = optimize(archive, 9, 2);
+
+		ZipFile zipFile = new ZipFile(optimized);
+		try {
+			assertEquals(4, zipFile.size());
+			assertEquals("jar content", read(zipFile, "lib/a/commons.jar"));
+			assertNull(zipFile.getEntry("lib/b/commons.jar"));
+			assertEquals("same", read(zipFile, "b.txt"));
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	@Test
+	public void testOnlyJarsOfTheLibDirectoryDeduplicated() throws Exception {
+		File archive = ArchiveIndexTest.createArchive(1000L, "classes/x.jar", "jar content", "lib/x.jar", "jar content", "lib/y.jar", "jar content");
+		File optimized = optimize(archive, 9, 2);
+
+		ZipFile zipFile = new ZipFile(optimized);
+		try {
+			assertEquals(2, zipFile.size());
+			assertEquals("jar content", read(zipFile, "classes/x.jar"));
+			assertEquals("jar content", read(zipFile, "lib/x.jar"));
+			assertNull(zipFile.getEntry("lib/y.jar"));
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	@Test
+	public void testLargeEntriesStreamed() throws Exception {
+		String text = repeat(CONFIG, 2 * ArchiveOptimizer.MAX_BUFFERED_SIZE / CONFIG.length());
+		byte[] random = new byte[2 * ArchiveOptimizer.MAX_BUFFERED_SIZE];
+		new Random(0).nextBytes(random);
+		File archive = File.createTempFile("archive", ".zip");
+		archive.deleteOnExit();
+		ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(archive));
+		outputStream.putNextEntry(new ZipEntry("lib/random.jar"));
+		outputStream.write(random);
+		outputStream.putNextEntry(new ZipEntry("mule-config.xml"));
+		outputStream.write(text.getBytes("UTF-8"));
+		outputStream.close();
+
+		File optimized = optimize(archive, 9, 2);
+		ZipFile zipFile = new ZipFile(optimized);
+		try {
+			assertEquals(ZipEntry.STORED, zipFile.getEntry("lib/random.jar").getMethod());
+			assertArrayEquals(random, IOUtils.readBytesFromStream(zipFile.getInputStream(zipFile.getEntry("lib/random.jar"))));
+			assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("mule-config.xml").getMethod());
+			assertEquals(text, read(zipFile, "mule-config.xml"));
+		} finally {
+			zipFile.close();
+		}
+		assertArrayEquals(IOUtils.readBytesFromStream(new FileInputStream(optimized)), IOUtils.readBytesFromStream(new FileInputStream(optimize(archive, 9, 1))));
+	}
+
+	@Test
+	public void testNoCompression() throws Exception {
+		File optimized = optimize(ArchiveIndexTest.createArchive(1000L, "mule-config.xml", repeat(CONFIG, 100)), 0, 1);
+
+		ZipFile zipFile = new ZipFile(optimized);
+		try {
+			assertEquals(ZipEntry.STORED, zipFile.getEntry("mule-config.xml").getMethod());
+			assertEquals(repeat(CONFIG, 100), read(zipFile, "mule-config.xml"));
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidLevel() {
+		new ArchiveOptimizer(10, 1);
+	}
+
+	private File optimize(File archive, int level, int threads) throws Exception {
+		File optimized = File.createTempFile("optimized", ".zip");
+		optimized.deleteOnExit();
+		assertTrue(new ArchiveOptimizer(level, threads).optimize(archive, optimized));
+		return optimized;
+	}
+
+	private String read(ZipFile zipFile, String name) throws Exception {
+		InputStream inputStream = zipFile.getInputStream(zipFile.getEntry(name));
+		try {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			IOUtils.copy(inputStream, outputStream);
+			return outputStream.toString("UTF-8");
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	private String repeat(String value, int times) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			builder.append(value);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,254 @@
+package org.mule.tools.maven.rest;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cxf.transport.http.HTTPException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mule.tools.maven.rest.DeploymentTracker.TrackedDeployment;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class AsyncStatusPollerTest {
+	private static final int PORT = 12318;
+
+	@Rule
+	public SharedWireMockRule wireMockRule = new SharedWireMockRule(PORT);
+
+	private MuleRest muleRest;
+	private AsyncStatusPoller poller;
+
+	@Before
+	public void setup() throws Exception {
+		muleRest = new MuleRest(new URL("http://localhost:" + PORT), "admin", "admin");
+		muleRest.setRetryBackoff(1);
+		poller = new AsyncStatusPoller(muleRest);
+	}
+
+	@After
+	public void tearDown() {
+		poller.close();
+		muleRest.close();
+	}
+
+	private static void stubStatus(String deploymentId, String status) {
+		stubFor(get(urlEqualTo("/deployments/" + deploymentId)).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"id\":\"" + deploymentId + "\",\"status\":\"" + status + "\"}")));
+	}
+
+	@Test
+	public void testCallbacksRunBeforeGetReturns() throws Exception {
+		final MmcFuture<String> future = new MmcFuture<String>();
+		final List<String> notified = new ArrayList<String>();
+		future.addCallback(new MmcFuture.Callback<String>() {
+			public void completed(String result) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				notified.add(result);
+			}
+
+			public void failed(Exception error) {
+			}
+		});
+		new Thread() {
+			@Override
+			public void run() {
+				future.complete("DEPLOYED");
+			}
+		}.start();
+
+		assertEquals("DEPLOYED", future.get(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("DEPLOYED"), notified);
+	}
+
+	@Test
+	public void testCancelRacingCompletion() throws Exception {
+		for (int round = 0; round < 1000; round++) {
+			final MmcFuture<String> future = new MmcFuture<String>();
+			final CountDownLatch start = new CountDownLatch(1);
+			final boolean[] completed = new boolean[1];
+			Thread completer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					completed[0] = future.complete("DEPLOYED");
+				}
+			};
+			completer.start();
+			start.countDown();
+			boolean cancelled = future.cancel(false);
+			completer.join();
+
+			assertTrue("Exactly one of cancel and complete wins", cancelled != completed[0]);
+			assertEquals(cancelled, future.isCancelled());
+			try {
+				assertEquals("DEPLOYED", future.get(5, TimeUnit.SECONDS));
+				assertFalse(cancelled);
+			} catch (CancellationException e) {
+				assertTrue(cancelled);
+			}
+		}
+	}
+
+	@Test
+	public void testAsyncStatusPoll() throws Exception {
+		String body = "{\"id\":\"local$1\",\"name\":\"caf\u00e9\",\"status\":\"DEPLOYED\"}";
+		stubFor(get(urlEqualTo("/deployments/local$1")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json; charset=UTF-8").withBody(body.getBytes("UTF-8"))));
+		MmcMetrics metrics = new MmcMetrics();
+		muleRest.setMetrics(metrics);
+
+		assertEquals("DEPLOYED", poller.getDeploymentStatus("local$1").get(5, TimeUnit.SECONDS));
+		verify(getRequestedFor(urlEqualTo("/deployments/local$1")).withHeader("Authorization", equalTo("Basic YWRtaW46YWRtaW4=")));
+		// bytes on the wire, not decoded characters
+		assertEquals(body.getBytes("UTF-8").length, metrics.getEndpoints().get("GET /deployments/{id}").getBytesReceived());
+	}
+
+	@Test
+	public void testErrorStatusFailsTheCall() throws Exception {
+		stubFor(get(urlEqualTo("/deployments/local$1")).willReturn(aResponse().withStatus(404)));
+
+		try {
+			poller.getDeploymentStatus("local$1").get(5, TimeUnit.SECONDS);
+			fail("Expected HTTPException");
+		} catch (ExecutionException e) {
+			assertEquals(404, ((HTTPException) e.getCause()).getResponseCode());
+		}
+	}
+
+	@Test
+	public void testAsyncStatusPollNotRetried() throws Exception {
+		stubFor(get(urlEqualTo("/deployments/local$1")).willReturn(aResponse().withStatus(500)));
+
+		try {
+			poller.getDeploymentStatus("local$1").get(5, TimeUnit.SECONDS);
+			fail("Expected HTTPException");
+		} catch (ExecutionException e) {
+			assertEquals(500, ((HTTPException) e.getCause()).getResponseCode());
+		}
+		verify(1, getRequestedFor(urlEqualTo("/deployments/local$1")));
+	}
+
+	@Test
+	public void testTrackerPollsThroughThePoller() throws Exception {
+		stubStatus("local$1", "DEPLOYED");
+		stubStatus("local$2", "FAILED");
+
+		DeploymentTracker tracker = new DeploymentTracker(muleRest, poller, 10, 40);
+		try {
+			TrackedDeployment deployed = tracker.track("local$1");
+			TrackedDeployment failed = tracker.track("local$2");
+			assertTrue(deployed.await(5, TimeUnit.SECONDS));
+			assertTrue(failed.await(5, TimeUnit.SECONDS));
+			assertTrue(deployed.isDeployed());
+			assertEquals("FAILED", failed.getStatus());
+		} finally {
+			tracker.close();
+		}
+	}
+
+	/**
+	 * Load test: a hundred polls of an MMC holding each request until fifty
+	 * of them are in flight, which only completes if the poller runs them
+	 * fifty at a time and never more, from its two I/O threads.
+	 */
+	@Test
+	public void testManyConcurrentCalls() throws Exception {
+		int calls = 100;
+		final int connections = 50;
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		final CountDownLatch allInFlight = new CountDownLatch(connections);
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), connections);
+		ExecutorService serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.createContext("/deployments", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				int current = inFlight.incrementAndGet();
+				synchronized (maxInFlight) {
+					maxInFlight.set(Math.max(maxInFlight.get(), current));
+				}
+				allInFlight.countDown();
+				try {
+					allInFlight.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				byte[] response = "{\"status\":\"DEPLOYED\"}".getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				inFlight.decrementAndGet();
+				exchange.sendResponseHeaders(200, response.length);
+				exchange.getResponseBody().write(response);
+				exchange.close();
+			}
+		});
+		server.start();
+
+		MuleRest loadedRest = new MuleRest(new URL("http://localhost:" + server.getAddress().getPort()), "admin", "admin");
+		MmcMetrics metrics = new MmcMetrics();
+		loadedRest.setMetrics(metrics);
+		AsyncStatusPoller loadedPoller = new AsyncStatusPoller(loadedRest);
+		loadedPoller.setMaxConnections(connections);
+		try {
+			List<MmcFuture<String>> statuses = new ArrayList<MmcFuture<String>>();
+			for (int call = 0; call < calls; call++) {
+				statuses.add(loadedPoller.getDeploymentStatus("local$" + call));
+			}
+			for (MmcFuture<String> status : statuses) {
+				assertEquals("DEPLOYED", status.get(30, TimeUnit.SECONDS));
+			}
+			assertTrue(countClientThreads() <= AsyncStatusPoller.DEFAULT_IO_THREADS);
+		} finally {
+			loadedPoller.close();
+			loadedRest.close();
+			server.stop(0);
+			serverThreads.shutdownNow();
+		}
+
+		assertEquals(connections, maxInFlight.get());
+		assertEquals(calls, metrics.getEndpoints().get("GET /deployments/{id}").getRequests());
+	}
+
+	private static int countClientThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("mmc-async")) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
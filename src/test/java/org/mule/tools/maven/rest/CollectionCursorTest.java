@@ -0,0 +1,205 @@
+package org.mule.tools.maven.rest;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonToken;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CollectionCursorTest {
+	private static final int PORT = 12316;
+	private static final int ENTRIES = 100000;
+	private static final int PAGE_SIZE = 1000;
+
+	@Rule
+	public SharedWireMockRule wireMockRule = new SharedWireMockRule(PORT);
+
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static String generatePageJson(int total, int offset, int count) {
+		StringBuilder json = new StringBuilder("{\"total\":").append(total).append(",\"data\":[");
+		for (int i = offset; i < offset + count; i++) {
+			if (i > offset) {
+				json.append(',');
+			}
+			json.append("{\"name\":\"deployment-").append(i).append("\",\"id\":\"local$").append(i).append("\"}");
+		}
+		return json.append("]}").toString();
+	}
+
+	private void stubDeploymentPages() {
+		for (int offset = 0; offset < ENTRIES; offset += PAGE_SIZE) {
+			stubFor(get(urlEqualTo("/deployments?offset=" + offset + "&limit=" + PAGE_SIZE)).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generatePageJson(ENTRIES, offset, PAGE_SIZE))));
+		}
+	}
+
+	@Test
+	public void testLookupAcrossPages() throws Exception {
+		stubDeploymentPages();
+
+		MuleRest muleRest = new MuleRest(new URL("http://localhost:" + PORT), "admin", "admin");
+		muleRest.setPageSize(PAGE_SIZE);
+		try {
+			assertEquals("local$" + (ENTRIES - 1), muleRest.restfullyGetDeploymentIdByName("deployment-" + (ENTRIES - 1)));
+		} finally {
+			muleRest.close();
+		}
+		// every page once, none past the total
+		verify(ENTRIES / PAGE_SIZE, getRequestedFor(urlMatching("/deployments.*")));
+	}
+
+	@Test
+	public void testLookupStopsAtResolvingPage() throws Exception {
+		stubDeploymentPages();
+
+		MuleRest muleRest = new MuleRest(new URL("http://localhost:" + PORT), "admin", "admin");
+		muleRest.setPageSize(PAGE_SIZE);
+		try {
+			assertEquals("local$2500", muleRest.restfullyGetDeploymentIdByName("deployment-2500"));
+		} finally {
+			muleRest.close();
+		}
+		// the third page resolves it, the fourth may have been prefetched
+		verify(0, getRequestedFor(urlEqualTo("/deployments?offset=4000&limit=" + PAGE_SIZE)));
+	}
+
+	@Test
+	public void testNextPageFetchedWhileReading() throws Exception {
+		final CountDownLatch nextPageRequested = new CountDownLatch(1);
+		RecordingLoader loader = new RecordingLoader(4, 2) {
+			@Override
+			public InputStream load(int offset, int limit) throws IOException {
+				if (offset == 2) {
+					nextPageRequested.countDown();
+				}
+				return super.load(offset, limit);
+			}
+		};
+
+		CollectionCursor cursor = new CollectionCursor(loader, new JsonFactory(), 2, executor);
+		try {
+			assertTrue(cursor.next());
+			// still on the first entry of the first page
+			assertTrue("Next page not requested", nextPageRequested.await(5, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("entry-0", "entry-1", "entry-2", "entry-3"), readNames(cursor, true));
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Arrays.asList(0, 2), loader.getOffsets());
+	}
+
+	@Test
+	public void testNoPageBeyondTotal() throws Exception {
+		RecordingLoader loader = new RecordingLoader(5, 5);
+
+		CollectionCursor cursor = new CollectionCursor(loader, new JsonFactory(), 5, executor);
+		try {
+			assertEquals(5, readNames(cursor, false).size());
+			assertEquals(5, cursor.getTotal());
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Collections.singletonList(0), loader.getOffsets());
+	}
+
+	@Test
+	public void testWithoutPaging() throws Exception {
+		RecordingLoader loader = new RecordingLoader(3, 0);
+
+		CollectionCursor cursor = new CollectionCursor(loader, new JsonFactory(), 0, null);
+		try {
+			assertEquals(Arrays.asList("entry-0", "entry-1", "entry-2"), readNames(cursor, false));
+			assertFalse(cursor.next());
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Collections.singletonList(0), loader.getOffsets());
+	}
+
+	/**
+	 * Reads the names of the remaining entries, including the current one if
+	 * the cursor is already on an entry.
+	 */
+	private static List<String> readNames(CollectionCursor cursor, boolean onEntry) throws IOException {
+		List<String> names = new ArrayList<String>();
+		while (onEntry || cursor.next()) {
+			onEntry = false;
+			String name = null;
+			while (cursor.getParser().nextToken() == JsonToken.FIELD_NAME) {
+				String field = cursor.getParser().getCurrentName();
+				cursor.getParser().nextToken();
+				if ("name".equals(field)) {
+					name = cursor.getParser().getText();
+				}
+			}
+			names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * Serves a collection from memory, recording the requested offsets.
+	 */
+	private static class RecordingLoader implements CollectionCursor.PageLoader {
+		private final int total;
+		private final int pageSize;
+		private final List<Integer> offsets = Collections.synchronizedList(new ArrayList<Integer>());
+
+		RecordingLoader(int total, int pageSize) {
+			this.total = total;
+			this.pageSize = pageSize;
+		}
+
+		public InputStream load(int offset, int limit) throws IOException {
+			assertEquals(pageSize, limit);
+			offsets.add(offset);
+			int count = limit == 0 ? total : Math.max(Math.min(limit, total - offset), 0);
+			StringBuilder json = new StringBuilder("{\"total\":").append(total).append(",\"data\":[");
+			for (int i = offset; i < offset + count; i++) {
+				json.append(i > offset ? "," : "").append("{\"name\":\"entry-").append(i).append("\"}");
+			}
+			return new ByteArrayInputStream(json.append("]}").toString().getBytes("UTF-8"));
+		}
+
+		List<Integer> getOffsets() {
+			synchronized (offsets) {
+				return new ArrayList<Integer>(offsets);
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package org.mule.tools.maven.rest;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DeployAllTest {
+	private static final int PORT = 12313;
+	private static final int APPLICATIONS = 6;
+	private static final int UPLOAD_DELAY = 300;
+	private static final int CALL_DELAY = 30;
+	private static final String SERVER_GROUP = "Development";
+	private static final String SERVERS_JSON = "{\"total\":1,\"data\":[{\"id\":\"local$server\",\"groups\":[{\"name\":\"" + SERVER_GROUP + "\"}]}]}";
+	private static final String EMPTY_JSON = "{\"total\":0,\"data\":[]}";
+
+	@Rule
+	public SharedWireMockRule wireMockRule = new SharedWireMockRule(PORT);
+
+	@Before
+	public void setup() {
+		stubFor(get(urlEqualTo("/servers")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(SERVERS_JSON).withFixedDelay(CALL_DELAY)));
+		stubFor(get(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(EMPTY_JSON).withFixedDelay(CALL_DELAY)));
+		stubFor(post(urlEqualTo("/repository")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"versionId\":\"local$version\",\"applicationId\":\"local$application\"}").withFixedDelay(UPLOAD_DELAY)));
+		stubFor(post(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"id\":\"local$deployment\"}").withFixedDelay(CALL_DELAY)));
+		stubFor(post(urlMatching("/deployments/.*/deploy")).willReturn(aResponse().withStatus(200).withFixedDelay(CALL_DELAY)));
+	}
+
+	@Test
+	public void testApplicationsDeployedConcurrently() throws Exception {
+		// every upload waits for all the others to start, which only happens
+		// if they are all in flight at once
+		ConcurrencyTrackingDeployAll deployAll = new ConcurrencyTrackingDeployAll(new CyclicBarrier(APPLICATIONS));
+		buildDeployAll(deployAll, APPLICATIONS, APPLICATIONS).execute();
+
+		assertEquals(APPLICATIONS, deployAll.maxInFlight.get());
+		verify(APPLICATIONS, postRequestedFor(urlEqualTo("/repository")));
+	}
+
+	@Test
+	public void testParallelismBoundsConcurrentDeployments() throws Exception {
+		// the uploads meet two by two, keeping both threads of the pool busy
+		ConcurrencyTrackingDeployAll deployAll = new ConcurrencyTrackingDeployAll(new CyclicBarrier(2));
+		buildDeployAll(deployAll, APPLICATIONS, 2).execute();
+
+		assertEquals(2, deployAll.maxInFlight.get());
+		verify(APPLICATIONS, postRequestedFor(urlEqualTo("/repository")));
+	}
+
+	@Test
+	public void testFailedApplicationsAreReported() throws Exception {
+		DeployAll deployAll = buildDeployAll(3, 3);
+		deployAll.applications.get(1).setServerGroup("Unknown");
+		try {
+			deployAll.execute();
+			fail("Exception should have been thrown");
+		} catch (MojoFailureException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 3 applications failed to deploy"));
+			assertTrue(e.getMessage(), e.getMessage().contains("application-1"));
+		}
+		verify(2, postRequestedFor(urlMatching("/deployments/.*/deploy")));
+	}
+
+	@Test
+	public void testBatchCreatesOneDeploymentPerTarget() throws Exception {
+		DeployAll deployAll = buildDeployAll(4, 4);
+		deployAll.batch = true;
+		deployAll.deploymentName = "release";
+		deployAll.execute();
+
+		verify(4, postRequestedFor(urlEqualTo("/repository")));
+		verify(1, postRequestedFor(urlEqualTo("/deployments")).withRequestBody(equalTo("{\"name\":\"release\",\"servers\":[\"local$server\"],\"applications\":[\"local$version\",\"local$version\",\"local$version\",\"local$version\"]}")));
+		verify(1, postRequestedFor(urlMatching("/deployments/.*/deploy")));
+	}
+
+	@Test
+	public void testBatchSkipsTargetWithFailedUpload() throws Exception {
+		stubFor(get(urlEqualTo("/servers")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":2,\"data\":[{\"id\":\"local$server\",\"groups\":[{\"name\":\"" + SERVER_GROUP + "\"}]},{\"id\":\"local$other\",\"groups\":[{\"name\":\"Test\"}]}]}")));
+		stubFor(post(urlEqualTo("/repository")).withRequestBody(containing("application-1")).willReturn(aResponse().withStatus(400)));
+		DeployAll deployAll = buildDeployAll(3, 3);
+		deployAll.batch = true;
+		deployAll.applications.get(2).setServerGroup("Test");
+		try {
+			deployAll.execute();
+			fail("Exception should have been thrown");
+		} catch (MojoFailureException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("2 of 3 applications failed to deploy"));
+		}
+
+		verify(0, postRequestedFor(urlEqualTo("/deployments")).withRequestBody(containing("\"name\":\"" + SERVER_GROUP + "\"")));
+		verify(1, postRequestedFor(urlEqualTo("/deployments")).withRequestBody(containing("\"name\":\"Test\"")));
+		verify(1, postRequestedFor(urlMatching("/deployments/.*/deploy")));
+	}
+
+	@Test
+	public void testBatchNamesDeploymentsAfterTargets() throws Exception {
+		stubFor(get(urlEqualTo("/servers")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":2,\"data\":[{\"id\":\"local$server\",\"groups\":[{\"name\":\"" + SERVER_GROUP + "\"}]},{\"id\":\"local$other\",\"groups\":[{\"name\":\"Test\"}]}]}")));
+		DeployAll deployAll = buildDeployAll(3, 3);
+		deployAll.batch = true;
+		deployAll.applications.get(2).setServerGroup("Test");
+		deployAll.execute();
+
+		verify(1, postRequestedFor(urlEqualTo("/deployments")).withRequestBody(containing("\"name\":\"" + SERVER_GROUP + "\"")));
+		verify(1, postRequestedFor(urlEqualTo("/deployments")).withRequestBody(containing("\"name\":\"Test\"")));
+		verify(2, postRequestedFor(urlMatching("/deployments/.*/deploy")));
+	}
+
+	@Test
+	public void testBatchKeepsClusterAndServerGroupOfTheSameNameApart() throws Exception {
+		stubFor(get(urlEqualTo("/clusters")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":1,\"data\":[{\"id\":\"local$cluster\",\"name\":\"" + SERVER_GROUP + "\"}]}")));
+		DeployAll deployAll = buildDeployAll(3, 3);
+		deployAll.batch = true;
+		deployAll.applications.get(2).setServerGroup(null);
+		deployAll.applications.get(2).setClusterName(SERVER_GROUP);
+		deployAll.execute();
+
+		verify(1, postRequestedFor(urlEqualTo("/deployments")).withRequestBody(equalTo("{\"name\":\"" + SERVER_GROUP + "-group\",\"servers\":[\"local$server\"],\"applications\":[\"local$version\",\"local$version\"]}")));
+		verify(1, postRequestedFor(urlEqualTo("/deployments")).withRequestBody(equalTo("{\"name\":\"" + SERVER_GROUP + "-cluster\",\"clusters\":[\"local$cluster\"],\"applications\":[\"local$version\"]}")));
+		verify(2, postRequestedFor(urlMatching("/deployments/.*/deploy")));
+	}
+
+	@Test
+	public void testApplicationDefaults() throws Exception {
+		DeployAll deployAll = buildDeployAll(1, 1);
+		deployAll.version = "1.0";
+		Application application = deployAll.applications.get(0);
+		application.setServerGroup(null);
+		deployAll.validateApplication(application);
+
+		assertEquals("application-0", application.getDeploymentName());
+		assertEquals("1.0", application.getVersion());
+		assertEquals(SERVER_GROUP, application.getServerGroup());
+	}
+
+	@Test(expected = MojoFailureException.class)
+	public void testMissingArchive() throws Exception {
+		DeployAll deployAll = buildDeployAll(1, 1);
+		deployAll.applications.get(0).setArchive(new File("does-not-exist.zip"));
+		deployAll.execute();
+	}
+
+	private DeployAll buildDeployAll(int applications, int parallelism) throws Exception {
+		return buildDeployAll(new DeployAll(), applications, parallelism);
+	}
+
+	private DeployAll buildDeployAll(DeployAll deployAll, int applications, int parallelism) throws Exception {
+		deployAll.setLog(new SystemStreamLog());
+		deployAll.muleApiUrl = new URL("http", "localhost", PORT, "");
+		deployAll.username = "admin";
+		deployAll.password = "admin";
+		deployAll.version = "1.0";
+		deployAll.serverGroup = SERVER_GROUP;
+		deployAll.parallelism = parallelism;
+		deployAll.progressInterval = Long.MAX_VALUE;
+
+		List<Application> list = new ArrayList<Application>();
+		for (int i = 0; i < applications; i++) {
+			File archive = File.createTempFile("application-" + i, ".zip");
+			archive.deleteOnExit();
+			Application application = new Application();
+			application.setName("application-" + i);
+			application.setArchive(archive);
+			application.setServerGroup(SERVER_GROUP);
+			list.add(application);
+		}
+		deployAll.applications = list;
+		return deployAll;
+	}
+
+	/**
+	 * Counts the uploads in flight, optionally holding each of them until all
+	 * the parties of the barrier have started theirs.
+	 */
+	private static class ConcurrencyTrackingDeployAll extends DeployAll {
+		private final CyclicBarrier barrier;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger maxInFlight = new AtomicInteger();
+
+		ConcurrencyTrackingDeployAll(CyclicBarrier barrier) {
+			this.barrier = barrier;
+		}
+
+		@Override
+		protected String uploadArchive(String name, String version, File archive) throws IOException {
+			int current = inFlight.incrementAndGet();
+			for (int max = maxInFlight.get(); current > max && !maxInFlight.compareAndSet(max, current); max = maxInFlight.get()) {
+				// raced with another upload, compare again
+			}
+			try {
+				if (barrier != null) {
+					barrier.await(10, TimeUnit.SECONDS);
+				}
+				return super.uploadArchive(name, version, archive);
+			} catch (Exception e) {
+				if (e instanceof IOException) {
+					throw (IOException) e;
+				}
+				throw new IOException(e);
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+}
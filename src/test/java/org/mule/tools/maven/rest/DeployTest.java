@@ -1,7 +1,20 @@
 package org.mule.tools.maven.rest;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -10,6 +23,9 @@ import org.apache.maven.plugin.logging.SystemStreamLog;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import static org.mockito.Mockito.*;
 
@@ -22,11 +38,16 @@ public class DeployTest {
 	private static final String NAME = "MyMuleApp";
 	private static final String VERSION = "1.0-SNAPSHOT";
 	private static final String CLUSTER_NAME = null;
+	private static final String DIGEST = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
 
 	private Deploy deploy;
 
 	private MuleRest mockMuleRest;
 
+	private final Set<String> inProgress = Collections.synchronizedSet(new HashSet<String>());
+	private final Map<String, String> finalStatuses = new HashMap<String, String>();
+	private final Set<String> staleAfterDeploy = Collections.synchronizedSet(new HashSet<String>());
+
 	@Before
 	public void setup() throws Exception {
 		deploy = spy(new Deploy());
@@ -104,4 +125,591 @@ public class DeployTest {
 		verify(mockMuleRest).restfullyCreateDeployment(SERVER_GROUP, NAME, CLUSTER_NAME, VERSION_ID);
 		verify(mockMuleRest).restfullyDeployDeploymentById(DEPLOYMENT_ID);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testPrefetchInventory() throws Exception {
+		deploy.execute();
+		verify(mockMuleRest).prefetch(any(ExecutorService.class), eq(MmcInventory.SERVERS), eq(MmcInventory.DEPLOYMENTS));
+	}
+
+	@Test
+	public void testPrefetchInventoryWithRepository() throws Exception {
+		deploy.skipIdenticalUpload = true;
+		doReturn(DIGEST).when(deploy).computeArchiveDigest(any(File.class));
+		deploy.execute();
+		verify(mockMuleRest).prefetch(any(ExecutorService.class), eq(MmcInventory.SERVERS), eq(MmcInventory.DEPLOYMENTS), eq(MmcInventory.REPOSITORY));
+	}
+
+	@Test
+	public void testPrefetchInventoryWithServerSideFiltering() throws Exception {
+		deploy.serverSideFiltering = true;
+		deploy.skipIdenticalUpload = true;
+		doReturn(DIGEST).when(deploy).computeArchiveDigest(any(File.class));
+		deploy.execute();
+		verify(mockMuleRest).prefetch(any(ExecutorService.class), eq(MmcInventory.REPOSITORY));
+	}
+
+	@Test
+	public void testPrefetchInventoryWithPersistentCache() throws Exception {
+		deploy.persistentCache = true;
+		deploy.execute();
+		verify(mockMuleRest).prefetch(any(ExecutorService.class), eq(MmcInventory.DEPLOYMENTS));
+	}
+
+	@Test
+	public void testWaitForDeployment() throws Exception {
+		deploy.waitForDeployment = true;
+		deploy.pollInterval = 1;
+		when(mockMuleRest.restfullyGetDeploymentStatus(DEPLOYMENT_ID)).thenReturn("IN PROGRESS", "DEPLOYED");
+
+		deploy.execute();
+		verify(mockMuleRest, times(2)).restfullyGetDeploymentStatus(DEPLOYMENT_ID);
+	}
+
+	@Test(expected = MojoFailureException.class)
+	public void testWaitForFailedDeployment() throws Exception {
+		deploy.waitForDeployment = true;
+		deploy.pollInterval = 1;
+		when(mockMuleRest.restfullyGetDeploymentStatus(DEPLOYMENT_ID)).thenReturn("UNDEPLOYED", "FAILED");
+
+		deploy.execute();
+	}
+
+	@Test
+	public void testWaitForDeploymentIgnoresStatusFromBeforeTheDeploy() throws Exception {
+		deploy.waitForDeployment = true;
+		deploy.pollInterval = 1;
+		// updated in place, the deployment still reports the previous release
+		// right after the deploy
+		when(mockMuleRest.restfullyGetDeploymentStatus(DEPLOYMENT_ID)).thenReturn("DEPLOYED", "DEPLOYED", "IN PROGRESS", "DEPLOYED");
+
+		deploy.execute();
+		InOrder inOrder = inOrder(mockMuleRest);
+		inOrder.verify(mockMuleRest).restfullyGetDeploymentStatus(DEPLOYMENT_ID);
+		inOrder.verify(mockMuleRest).restfullyDeployDeploymentById(DEPLOYMENT_ID);
+		inOrder.verify(mockMuleRest, times(3)).restfullyGetDeploymentStatus(DEPLOYMENT_ID);
+	}
+
+	@Test
+	public void testWaitForDeploymentFailsOnUnchangedStatus() throws Exception {
+		deploy.waitForDeployment = true;
+		deploy.pollInterval = 1;
+		deploy.maxPollInterval = 10;
+		deploy.deploymentTimeout = 100;
+		// the status from before the deploy is never trusted, however long
+		// the MMC keeps reporting it
+		when(mockMuleRest.restfullyGetDeploymentStatus(DEPLOYMENT_ID)).thenReturn("DEPLOYED");
+
+		try {
+			deploy.execute();
+			Assert.fail("Expected MojoFailureException");
+		} catch (MojoFailureException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Deployments did not complete"));
+		}
+	}
+
+	@Test(expected = MojoFailureException.class)
+	public void testWaitForDeploymentTimeout() throws Exception {
+		deploy.waitForDeployment = true;
+		deploy.pollInterval = 1;
+		deploy.deploymentTimeout = 100;
+		when(mockMuleRest.restfullyGetDeploymentStatus(DEPLOYMENT_ID)).thenReturn("IN PROGRESS");
+
+		deploy.execute();
+	}
+
+	@Test
+	public void testDeltaUploadSkipsUnchangedArchive() throws Exception {
+		setupDeltaUpload(ArchiveIndexTest.createArchive(1000L, "mule-config.xml", "<mule/>"));
+		deploy.execute();
+		verify(mockMuleRest).restfullyUploadRepository(eq(NAME), eq(VERSION), any(File.class));
+
+		// rebuilt with other timestamps but the same content
+		setupDeltaUpload(ArchiveIndexTest.createArchive(5000000L, "mule-config.xml", "<mule/>"));
+		when(mockMuleRest.restfullyGetApplicationId(NAME, VERSION)).thenReturn(VERSION_ID);
+		deploy.execute();
+		verify(mockMuleRest).restfullyUploadRepository(anyString(), anyString(), any(File.class));
+		verify(mockMuleRest, times(2)).restfullyCreateDeployment(SERVER_GROUP, NAME, CLUSTER_NAME, VERSION_ID);
+	}
+
+	@Test
+	public void testDeltaUploadUploadsChangedArchive() throws Exception {
+		setupDeltaUpload(ArchiveIndexTest.createArchive(1000L, "mule-config.xml", "<mule/>"));
+		deploy.execute();
+
+		setupDeltaUpload(ArchiveIndexTest.createArchive(1000L, "mule-config.xml", "<mule><flow/></mule>"));
+		when(mockMuleRest.restfullyGetApplicationId(NAME, VERSION)).thenReturn(VERSION_ID);
+		deploy.execute();
+		verify(mockMuleRest, times(2)).restfullyUploadRepository(eq(NAME), eq(VERSION), any(File.class));
+	}
+
+	@Test
+	public void testDeltaUploadUploadsWhenVersionWasRemoved() throws Exception {
+		setupDeltaUpload(ArchiveIndexTest.createArchive(1000L, "mule-config.xml", "<mule/>"));
+		deploy.execute();
+
+		setupDeltaUpload(ArchiveIndexTest.createArchive(1000L, "mule-config.xml", "<mule/>"));
+		when(mockMuleRest.restfullyGetApplicationId(NAME, VERSION)).thenReturn(null);
+		deploy.execute();
+		verify(mockMuleRest, times(2)).restfullyUploadRepository(eq(NAME), eq(VERSION), any(File.class));
+	}
+
+	@Test
+	public void testOptimizeArchiveUploadsOptimizedCopy() throws Exception {
+		final File archive = ArchiveIndexTest.createArchive(1000L, "mule-config.xml", "<mule/>", "lib/a.jar", "jar", "lib/b.jar", "jar");
+		doReturn(archive).when(deploy).getMuleZipFile(any(File.class), anyString());
+		deploy.optimizeArchive = true;
+		deploy.compressionLevel = 9;
+		when(mockMuleRest.restfullyUploadRepository(anyString(), anyString(), any(File.class))).thenAnswer(new Answer<String>() {
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				File uploaded = (File) invocation.getArguments()[2];
+				Assert.assertEquals(archive.getName(), uploaded.getName());
+				Assert.assertFalse(archive.equals(uploaded));
+				Assert.assertEquals(2, new java.util.zip.ZipFile(uploaded).size());
+				return VERSION_ID;
+			}
+		});
+
+		deploy.execute();
+		verify(mockMuleRest).restfullyCreateDeployment(SERVER_GROUP, NAME, CLUSTER_NAME, VERSION_ID);
+	}
+
+	private void setupDeltaUpload(File archive) throws Exception {
+		deploy.deltaUpload = true;
+		if (deploy.deltaIndexDirectory == null) {
+			deploy.deltaIndexDirectory = new File(File.createTempFile("index", "").getPath() + ".d");
+		}
+		doReturn(archive).when(deploy).getMuleZipFile(any(File.class), anyString());
+	}
+
+	@Test
+	public void testSkipIdenticalUploadReusesExistingVersion() throws Exception {
+		deploy.skipIdenticalUpload = true;
+		doReturn(DIGEST).when(deploy).computeArchiveDigest(any(File.class));
+		when(mockMuleRest.restfullyGetApplicationIdByDigest(NAME, DIGEST)).thenReturn(VERSION_ID);
+
+		deploy.execute();
+		verify(mockMuleRest, never()).restfullyUploadRepository(anyString(), anyString(), any(File.class));
+		verify(mockMuleRest).restfullyCreateDeployment(SERVER_GROUP, NAME, CLUSTER_NAME, VERSION_ID);
+		verify(mockMuleRest).restfullyDeployDeploymentById(DEPLOYMENT_ID);
+	}
+
+	@Test
+	public void testSkipIdenticalUploadTagsNewVersion() throws Exception {
+		deploy.skipIdenticalUpload = true;
+		doReturn(DIGEST).when(deploy).computeArchiveDigest(any(File.class));
+
+		deploy.execute();
+		verify(mockMuleRest).restfullyUploadRepository(NAME, MuleRest.tagVersion(VERSION, DIGEST), null);
+		verify(mockMuleRest).restfullyCreateDeployment(SERVER_GROUP, NAME, CLUSTER_NAME, VERSION_ID);
+	}
+
+	@Test
+	public void testComputeArchiveDigest() throws Exception {
+		File file = File.createTempFile("archive", ".zip");
+		file.deleteOnExit();
+		FileOutputStream outputStream = new FileOutputStream(file);
+		outputStream.write("abc".getBytes("US-ASCII"));
+		outputStream.close();
+
+		Assert.assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", new Deploy().computeArchiveDigest(file));
+	}
+
+	@Test
+	public void testPlanWaves() {
+		List<String> servers = Arrays.asList("s1", "s2", "s3", "s4", "s5", "s6", "s7", "s8");
+		Assert.assertEquals(Arrays.asList(Arrays.asList("s1"), Arrays.asList("s2", "s3"), Arrays.asList("s4", "s5"), Arrays.asList("s6", "s7"), Arrays.asList("s8")), Deploy.planWaves(servers, 1, 25, 75));
+		// the floor bounds the waves
+		Assert.assertEquals(Arrays.asList(Arrays.asList("s1", "s2", "s3", "s4"), Arrays.asList("s5", "s6", "s7", "s8")), Deploy.planWaves(servers, 0, 50, 0));
+		Assert.assertEquals(4, Deploy.planWaves(servers, 0, 50, 75).size());
+		// at least one server per wave
+		Assert.assertEquals(Arrays.asList(Arrays.asList("s1"), Arrays.asList("s2")), Deploy.planWaves(Arrays.asList("s1", "s2"), 1, 25, 75));
+	}
+
+	@Test
+	public void testRollingDeploymentDeploysWaveAfterWave() throws Exception {
+		setupRollingDeployment("s1", "s2", "s3", "s4");
+		setupCurrentDeployment(NAME, "previous", Arrays.asList("s1", "s2", "s3", "s4"));
+
+		deploy.execute();
+		InOrder inOrder = inOrder(mockMuleRest);
+		// the replaced deployment only loses the servers of the wave
+		inOrder.verify(mockMuleRest).restfullyUpdateDeploymentOnServers("previous", NAME, Arrays.asList("s2", "s3", "s4"), Collections.singletonList("6000"));
+		inOrder.verify(mockMuleRest).restfullyCreateDeploymentOnServers(NAME + "-wave-1", Arrays.asList("s1"), Collections.singletonList(VERSION_ID));
+		inOrder.verify(mockMuleRest).restfullyDeployDeploymentById("wave-1");
+		inOrder.verify(mockMuleRest, times(2)).restfullyGetDeploymentStatus("wave-1");
+		inOrder.verify(mockMuleRest).restfullyUpdateDeploymentOnServers("previous", NAME, Arrays.asList("s3", "s4"), Collections.singletonList("6000"));
+		inOrder.verify(mockMuleRest).restfullyCreateDeploymentOnServers(NAME + "-wave-2", Arrays.asList("s2"), Collections.singletonList(VERSION_ID));
+		inOrder.verify(mockMuleRest).restfullyDeployDeploymentById("wave-2");
+		inOrder.verify(mockMuleRest, times(2)).restfullyGetDeploymentStatus("wave-2");
+		inOrder.verify(mockMuleRest).restfullyUpdateDeploymentOnServers("previous", NAME, Arrays.asList("s4"), Collections.singletonList("6000"));
+		inOrder.verify(mockMuleRest).restfullyCreateDeploymentOnServers(NAME + "-wave-3", Arrays.asList("s3"), Collections.singletonList(VERSION_ID));
+		// deleted once it only targets the servers of the last wave
+		inOrder.verify(mockMuleRest).restfullyDeleteDeploymentById("previous");
+		inOrder.verify(mockMuleRest).restfullyCreateDeploymentOnServers(NAME + "-wave-4", Arrays.asList("s4"), Collections.singletonList(VERSION_ID));
+		// the servers left keep running the previous version without a restart
+		verify(mockMuleRest, never()).restfullyDeployDeploymentById("previous");
+		verify(mockMuleRest, never()).restfullyDeleteDeployment(anyString());
+		verify(mockMuleRest, never()).restfullyCreateDeployment(anyString(), anyString(), anyString(), anyString());
+	}
+
+	@Test
+	public void testRollingDeploymentUpdatesPreviousWaves() throws Exception {
+		setupRollingDeployment("s1", "s2");
+		setupCurrentDeployment(NAME + "-wave-1", "wave-1", Arrays.asList("s1"));
+		setupCurrentDeployment(NAME + "-wave-2", "wave-2", Arrays.asList("s2"));
+		staleAfterDeploy.add("wave-1");
+
+		deploy.execute();
+		// the reused wave still reports DEPLOYED right after being deployed
+		// again, the gate waits for the status to change
+		InOrder inOrder = inOrder(mockMuleRest);
+		inOrder.verify(mockMuleRest).restfullyCreateDeploymentOnServers(NAME + "-wave-1", Arrays.asList("s1"), Collections.singletonList(VERSION_ID));
+		inOrder.verify(mockMuleRest).restfullyGetDeploymentStatus("wave-1");
+		inOrder.verify(mockMuleRest).restfullyDeployDeploymentById("wave-1");
+		inOrder.verify(mockMuleRest, times(3)).restfullyGetDeploymentStatus("wave-1");
+		inOrder.verify(mockMuleRest).restfullyCreateDeploymentOnServers(NAME + "-wave-2", Arrays.asList("s2"), Collections.singletonList(VERSION_ID));
+		verify(mockMuleRest, never()).restfullyDeleteDeploymentById(anyString());
+		verify(mockMuleRest, never()).restfullyUpdateDeploymentOnServers(anyString(), anyString(), anyCollectionOf(String.class), anyCollectionOf(String.class));
+	}
+
+	@Test
+	public void testRollingDeploymentStopsOnWaveStatusNeverChanging() throws Exception {
+		setupRollingDeployment("s1", "s2");
+		setupCurrentDeployment(NAME + "-wave-1", "wave-1", Arrays.asList("s1"));
+		deploy.deploymentTimeout = 100;
+		// the reused wave keeps reporting DEPLOYED from its previous deploy
+		when(mockMuleRest.restfullyGetDeploymentStatus("wave-1")).thenReturn(DeploymentTracker.DEPLOYED);
+
+		try {
+			deploy.execute();
+			Assert.fail("Expected MojoFailureException");
+		} catch (MojoFailureException e) {
+			// expected
+		}
+		verify(mockMuleRest, never()).restfullyCreateDeploymentOnServers(eq(NAME + "-wave-2"), anyCollectionOf(String.class), anyCollectionOf(String.class));
+	}
+
+	@Test
+	public void testRollingDeploymentStopsWhenDeploymentsCannotBeUpdated() throws Exception {
+		setupRollingDeployment("s1", "s2", "s3", "s4");
+		setupCurrentDeployment(NAME, "previous", Arrays.asList("s1", "s2", "s3", "s4"));
+		when(mockMuleRest.restfullyUpdateDeploymentOnServers(anyString(), anyString(), anyCollectionOf(String.class), anyCollectionOf(String.class))).thenReturn(false);
+
+		try {
+			deploy.execute();
+			Assert.fail("Expected MojoFailureException");
+		} catch (MojoFailureException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("wave 1/4"));
+		}
+		verify(mockMuleRest, never()).restfullyCreateDeploymentOnServers(anyString(), anyCollectionOf(String.class), anyCollectionOf(String.class));
+		verify(mockMuleRest, never()).restfullyDeleteDeploymentById(anyString());
+	}
+
+	@Test
+	public void testRollingDeploymentRollsBackOnFailedWave() throws Exception {
+		setupRollingDeployment("s1", "s2", "s3", "s4");
+		setupCurrentDeployment(NAME, "previous", Arrays.asList("s1", "s2", "s3", "s4"));
+		finalStatuses.put("wave-2", DeploymentTracker.FAILED);
+
+		try {
+			deploy.execute();
+			Assert.fail("Expected MojoFailureException");
+		} catch (MojoFailureException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("wave 2/4"));
+		}
+		verify(mockMuleRest, never()).restfullyCreateDeploymentOnServers(eq(NAME + "-wave-3"), anyCollectionOf(String.class), anyCollectionOf(String.class));
+		verify(mockMuleRest).restfullyCreateDeploymentOnServers(NAME + "-wave-1", Arrays.asList("s1"), Collections.singletonList("6000"));
+		verify(mockMuleRest).restfullyCreateDeploymentOnServers(NAME + "-wave-2", Arrays.asList("s2"), Collections.singletonList("6000"));
+		verify(mockMuleRest, never()).restfullyDeleteDeploymentById("previous");
+	}
+
+	@Test
+	public void testPlainDeploymentLeavesWavesInPlace() throws Exception {
+		when(mockMuleRest.restfullyGetServers(SERVER_GROUP)).thenReturn(new TreeSet<String>(Arrays.asList("s1", "s2")));
+		setupCurrentDeployment(NAME + "-wave-1", "wave-1", Arrays.asList("s1"));
+		setupCurrentDeployment(NAME + "-wave-2", "wave-2", Arrays.asList("s2"));
+
+		deploy.execute();
+		// deleting a wave would undeploy the application from its servers
+		verify(mockMuleRest).restfullyDeployDeploymentById(DEPLOYMENT_ID);
+		verify(mockMuleRest, never()).restfullyDeleteDeploymentById(anyString());
+		verify(mockMuleRest, never()).restfullyDeleteDeployment(anyString());
+		verify(mockMuleRest, never()).restfullyUpdateDeploymentOnServers(anyString(), anyString(), anyCollectionOf(String.class), anyCollectionOf(String.class));
+	}
+
+	@Test
+	public void testPlainDeploymentLooksWavesUpBeforeCreating() throws Exception {
+		setupCurrentDeployment(NAME + "-wave-1", "wave-1", Arrays.asList("s1"));
+
+		deploy.execute();
+		// while the prefetched deployments are still cached
+		InOrder inOrder = inOrder(mockMuleRest);
+		inOrder.verify(mockMuleRest).restfullyGetDeploymentIdByName(NAME + "-wave-1");
+		inOrder.verify(mockMuleRest).restfullyCreateDeployment(SERVER_GROUP, NAME, null, VERSION_ID);
+		inOrder.verify(mockMuleRest).restfullyDeployDeploymentById(DEPLOYMENT_ID);
+		verify(mockMuleRest, times(1)).restfullyGetDeploymentIdByName(anyString());
+		verify(mockMuleRest, never()).restfullyGetDeploymentServers(anyString());
+	}
+
+	@Test
+	public void testPlainDeploymentKeepsWavesWhenDeploymentFails() throws Exception {
+		deploy.waitForDeployment = true;
+		deploy.pollInterval = 1;
+		when(mockMuleRest.restfullyGetDeploymentIdByName(NAME + "-wave-1")).thenReturn("wave-1");
+		when(mockMuleRest.restfullyGetDeploymentStatus(DEPLOYMENT_ID)).thenReturn("UNDEPLOYED", DeploymentTracker.FAILED);
+
+		try {
+			deploy.execute();
+			Assert.fail("Expected MojoFailureException");
+		} catch (MojoFailureException e) {
+			// expected
+		}
+		verify(mockMuleRest, never()).restfullyDeleteDeploymentById(anyString());
+	}
+
+	@Test(expected = MojoFailureException.class)
+	public void testRollingDeploymentNeedsServerGroup() throws Exception {
+		deploy.rollingDeployment = true;
+		deploy.clusterName = "cluster";
+		deploy.execute();
+	}
+
+	@Test
+	public void testEndpointsAllReceiveTheArchive() throws Exception {
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		MuleRest second = setupEndpoint("http://mmc2:8585/mmc/api", "local$2");
+		deploy.endpoints.get(1).setServerGroup("Production");
+
+		deploy.execute();
+
+		verify(first).restfullyUploadSharedArchive(eq(NAME), eq(VERSION), any(SharedArchive.class));
+		verify(second).restfullyUploadSharedArchive(eq(NAME), eq(VERSION), any(SharedArchive.class));
+		verify(first).restfullyCreateDeployment(SERVER_GROUP, NAME, CLUSTER_NAME, "local$1");
+		verify(second).restfullyCreateDeployment("Production", NAME, CLUSTER_NAME, "local$2");
+		verify(first).restfullyDeployDeploymentById(DEPLOYMENT_ID);
+		verify(second).restfullyDeployDeploymentById(DEPLOYMENT_ID);
+		verify(deploy).buildMuleRest(new URL("http://mmc1:8585/mmc/api"), USER_NAME, PASSWORD);
+		verify(first).close();
+		verify(second).close();
+		verify(mockMuleRest, never()).restfullyUploadRepository(anyString(), anyString(), any(File.class));
+	}
+
+	@Test
+	public void testEndpointsSkipIdenticalUploadPerEndpoint() throws Exception {
+		deploy.muleApiUrl = null;
+		deploy.skipIdenticalUpload = true;
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		MuleRest second = setupEndpoint("http://mmc2:8585/mmc/api", "local$2");
+		doReturn(DIGEST).when(deploy).computeArchiveDigest(any(File.class));
+		when(first.restfullyGetApplicationIdByDigest(NAME, DIGEST)).thenReturn("local$7");
+
+		deploy.execute();
+
+		verify(deploy, times(1)).computeArchiveDigest(any(File.class));
+		verify(first, never()).restfullyUploadSharedArchive(anyString(), anyString(), any(SharedArchive.class));
+		verify(second).restfullyUploadSharedArchive(eq(NAME), eq(MuleRest.tagVersion(VERSION, DIGEST)), any(SharedArchive.class));
+		verify(first).restfullyCreateDeployment(SERVER_GROUP, NAME, CLUSTER_NAME, "local$7");
+		verify(second).restfullyCreateDeployment(SERVER_GROUP, NAME, CLUSTER_NAME, "local$2");
+	}
+
+	@Test
+	public void testEndpointsLeaveWavesInPlace() throws Exception {
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		when(first.restfullyGetDeploymentIdByName(NAME + "-wave-1")).thenReturn("wave-1");
+
+		deploy.execute();
+
+		verify(first).restfullyDeployDeploymentById(DEPLOYMENT_ID);
+		verify(first, never()).restfullyDeleteDeploymentById(anyString());
+	}
+
+	@Test
+	public void testEndpointsWithOwnTargetsNeedNoServerGroup() throws Exception {
+		deploy.serverGroup = null;
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		MuleRest second = setupEndpoint("http://mmc2:8585/mmc/api", "local$2");
+		deploy.endpoints.get(0).setServerGroup("Staging");
+		deploy.endpoints.get(1).setServerGroup("Production");
+
+		deploy.execute();
+
+		verify(first).restfullyCreateDeployment("Staging", NAME, CLUSTER_NAME, "local$1");
+		verify(second).restfullyCreateDeployment("Production", NAME, CLUSTER_NAME, "local$2");
+	}
+
+	@Test
+	public void testEndpointWithoutTargetNeedsServerGroup() throws Exception {
+		deploy.serverGroup = null;
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		setupEndpoint("http://mmc2:8585/mmc/api", "local$2");
+		deploy.endpoints.get(0).setServerGroup("Production");
+
+		try {
+			deploy.execute();
+			Assert.fail("Expected MojoFailureException");
+		} catch (MojoFailureException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("serverGroup not set"));
+		}
+		verify(first, never()).restfullyUploadSharedArchive(anyString(), anyString(), any(SharedArchive.class));
+	}
+
+	@Test
+	public void testEndpointsWithOwnCredentialsNeedNoGoalCredentials() throws Exception {
+		deploy.username = null;
+		deploy.password = null;
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		deploy.endpoints.get(0).setUsername(USER_NAME);
+		deploy.endpoints.get(0).setPassword(PASSWORD);
+
+		deploy.execute();
+
+		verify(first).restfullyCreateDeployment(SERVER_GROUP, NAME, CLUSTER_NAME, "local$1");
+	}
+
+	@Test
+	public void testEndpointWithoutCredentialsNeedsGoalCredentials() throws Exception {
+		deploy.password = null;
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		setupEndpoint("http://mmc2:8585/mmc/api", "local$2");
+		deploy.endpoints.get(0).setPassword(PASSWORD);
+
+		try {
+			deploy.execute();
+			Assert.fail("Expected MojoFailureException");
+		} catch (MojoFailureException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("password not set"));
+		}
+		verify(first, never()).restfullyUploadSharedArchive(anyString(), anyString(), any(SharedArchive.class));
+	}
+
+	@Test(expected = MojoFailureException.class)
+	public void testEndpointsRejectDeltaUpload() throws Exception {
+		setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		deploy.deltaUpload = true;
+		deploy.execute();
+	}
+
+	@Test(expected = MojoFailureException.class)
+	public void testMuleApiUrlNeededWithoutEndpoints() throws Exception {
+		deploy.muleApiUrl = null;
+		deploy.execute();
+	}
+
+	@Test
+	public void testEndpointsAllOrNothingDeploysNowhere() throws Exception {
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		MuleRest second = setupEndpoint("http://mmc2:8585/mmc/api", "local$2");
+		when(second.restfullyUploadSharedArchive(anyString(), anyString(), any(SharedArchive.class))).thenThrow(new IOException("Connection refused"));
+
+		try {
+			deploy.execute();
+			Assert.fail("Expected MojoFailureException");
+		} catch (MojoFailureException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 2 endpoints failed"));
+		}
+		verify(first, never()).restfullyCreateDeployment(anyString(), anyString(), anyString(), anyString());
+		verify(first, never()).restfullyDeployDeploymentById(anyString());
+	}
+
+	@Test
+	public void testEndpointsBestEffortDeploysWhereUploaded() throws Exception {
+		deploy.bestEffort = true;
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		MuleRest second = setupEndpoint("http://mmc2:8585/mmc/api", "local$2");
+		when(second.restfullyUploadSharedArchive(anyString(), anyString(), any(SharedArchive.class))).thenThrow(new IOException("Connection refused"));
+
+		deploy.execute();
+
+		verify(first).restfullyDeployDeploymentById(DEPLOYMENT_ID);
+		verify(second, never()).restfullyDeployDeploymentById(anyString());
+	}
+
+	@Test(expected = MojoFailureException.class)
+	public void testEndpointsBestEffortFailsWhenAllFail() throws Exception {
+		deploy.bestEffort = true;
+		MuleRest first = setupEndpoint("http://mmc1:8585/mmc/api", "local$1");
+		when(first.restfullyUploadSharedArchive(anyString(), anyString(), any(SharedArchive.class))).thenThrow(new IOException("Connection refused"));
+		deploy.execute();
+	}
+
+	@Test
+	public void testSharedArchiveStreamsAreIndependent() throws Exception {
+		File file = createArchive();
+		SharedArchive archive = SharedArchive.map(file);
+		Assert.assertEquals(file.length(), archive.getLength());
+
+		InputStream first = archive.openStream();
+		InputStream second = archive.openStream();
+		Assert.assertEquals(1, first.read());
+		Assert.assertEquals(1, second.read());
+		byte[] rest = new byte[10];
+		Assert.assertEquals(2, first.read(rest));
+		Assert.assertEquals(-1, first.read());
+		Assert.assertEquals(2, second.read());
+	}
+
+	private File createArchive() throws IOException {
+		File file = File.createTempFile("archive", ".zip");
+		file.deleteOnExit();
+		FileOutputStream outputStream = new FileOutputStream(file);
+		outputStream.write(new byte[] { 1, 2, 3 });
+		outputStream.close();
+		return file;
+	}
+
+	private MuleRest setupEndpoint(String url, String versionId) throws Exception {
+		if (deploy.endpoints == null) {
+			deploy.endpoints = new ArrayList<MmcEndpoint>();
+			doReturn(createArchive()).when(deploy).getMuleZipFile(any(File.class), anyString());
+		}
+		MmcEndpoint endpoint = new MmcEndpoint();
+		endpoint.setMuleApiUrl(new URL(url));
+		deploy.endpoints.add(endpoint);
+
+		MuleRest rest = mock(MuleRest.class);
+		doReturn(rest).when(deploy).buildMuleRest(new URL(url), USER_NAME, PASSWORD);
+		when(rest.restfullyUploadSharedArchive(anyString(), anyString(), any(SharedArchive.class))).thenReturn(versionId);
+		when(rest.restfullyCreateDeployment(anyString(), anyString(), (String) isNull(), anyString())).thenReturn(DEPLOYMENT_ID);
+		return rest;
+	}
+
+	private void setupRollingDeployment(String... serverIds) throws Exception {
+		deploy.rollingDeployment = true;
+		deploy.pollInterval = 1;
+		when(mockMuleRest.restfullyGetServers(SERVER_GROUP)).thenReturn(new TreeSet<String>(Arrays.asList(serverIds)));
+		when(mockMuleRest.restfullyCreateDeploymentOnServers(anyString(), anyCollectionOf(String.class), anyCollectionOf(String.class))).thenAnswer(new Answer<String>() {
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				String name = (String) invocation.getArguments()[0];
+				return name.substring(NAME.length() + 1);
+			}
+		});
+		when(mockMuleRest.restfullyUpdateDeploymentOnServers(anyString(), anyString(), anyCollectionOf(String.class), anyCollectionOf(String.class))).thenReturn(true);
+		// a deployment is IN PROGRESS once after each deploy, then DEPLOYED
+		// unless told otherwise, a stale one first reports DEPLOYED again
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				inProgress.add((String) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(mockMuleRest).restfullyDeployDeploymentById(anyString());
+		when(mockMuleRest.restfullyGetDeploymentStatus(anyString())).thenAnswer(new Answer<String>() {
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				String deploymentId = (String) invocation.getArguments()[0];
+				if (inProgress.contains(deploymentId) && staleAfterDeploy.remove(deploymentId)) {
+					return DeploymentTracker.DEPLOYED;
+				}
+				if (inProgress.remove(deploymentId)) {
+					return "IN PROGRESS";
+				}
+				return finalStatuses.containsKey(deploymentId) ? finalStatuses.get(deploymentId) : DeploymentTracker.DEPLOYED;
+			}
+		});
+	}
+
+	private void setupCurrentDeployment(String name, String deploymentId, List<String> serverIds) throws Exception {
+		when(mockMuleRest.restfullyGetDeploymentIdByName(name)).thenReturn(deploymentId);
+		when(mockMuleRest.restfullyGetDeploymentServers(deploymentId)).thenReturn(serverIds);
+		when(mockMuleRest.restfullyGetDeploymentApplications(deploymentId)).thenReturn(Collections.singletonList("6000"));
+	}
+}
@@ -0,0 +1,130 @@
+package org.mule.tools.maven.rest;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mule.tools.maven.rest.DeploymentTracker.TrackedDeployment;
+
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+
+public class DeploymentTrackerTest {
+	private static final int PORT = 12314;
+
+	@Rule
+	public SharedWireMockRule wireMockRule = new SharedWireMockRule(PORT);
+
+	private MuleRest muleRest;
+	private DeploymentTracker tracker;
+
+	@Before
+	public void setup() throws Exception {
+		muleRest = new MuleRest(new URL("http://localhost:" + PORT), "admin", "admin");
+		tracker = new DeploymentTracker(muleRest, 10, 40);
+	}
+
+	@After
+	public void tearDown() {
+		tracker.close();
+		muleRest.close();
+	}
+
+	@Test
+	public void testTrackUntilDeployed() throws Exception {
+		stubStatus("1", Scenario.STARTED, "IN PROGRESS", "polled once");
+		stubStatus("1", "polled once", "IN PROGRESS", "polled twice");
+		stubStatus("1", "polled twice", "DEPLOYED", "polled twice");
+
+		TrackedDeployment deployment = tracker.track("1");
+		assertTrue(deployment.await(5, TimeUnit.SECONDS));
+		assertTrue(deployment.isDeployed());
+		assertTrue(deployment.getTimeToReady() >= 0);
+		verify(3, getRequestedFor(urlEqualTo("/deployments/1")));
+	}
+
+	@Test
+	public void testPreviousStatusIgnoredUntilItChanges() throws Exception {
+		stubStatus("7", Scenario.STARTED, "DEPLOYED", "polled once");
+		stubStatus("7", "polled once", "IN PROGRESS", "polled twice");
+		stubStatus("7", "polled twice", "DEPLOYED", "polled twice");
+
+		TrackedDeployment deployment = tracker.track("7", "DEPLOYED");
+		assertTrue(deployment.await(5, TimeUnit.SECONDS));
+		assertTrue(deployment.isDeployed());
+		verify(3, getRequestedFor(urlEqualTo("/deployments/7")));
+	}
+
+	@Test
+	public void testUnchangedPreviousStatusNeverTrusted() throws Exception {
+		stubStatus("8", Scenario.STARTED, "DEPLOYED", Scenario.STARTED);
+
+		TrackedDeployment deployment = tracker.track("8", "DEPLOYED");
+		assertFalse(deployment.await(300, TimeUnit.MILLISECONDS));
+		assertFalse(deployment.isCompleted());
+		assertTrue(deployment.isStatusUnchanged());
+		assertEquals("DEPLOYED", deployment.getStatus());
+	}
+
+	@Test
+	public void testTrackUntilFailed() throws Exception {
+		stubStatus("2", Scenario.STARTED, "FAILED", Scenario.STARTED);
+
+		TrackedDeployment deployment = tracker.track("2");
+		assertTrue(deployment.await(5, TimeUnit.SECONDS));
+		assertFalse(deployment.isDeployed());
+		assertEquals("FAILED", deployment.getStatus());
+	}
+
+	@Test
+	public void testTrackTimesOut() throws Exception {
+		stubStatus("3", Scenario.STARTED, "IN PROGRESS", Scenario.STARTED);
+
+		TrackedDeployment deployment = tracker.track("3");
+		assertFalse(deployment.await(300, TimeUnit.MILLISECONDS));
+		assertFalse(deployment.isCompleted());
+		assertEquals("IN PROGRESS", deployment.getStatus());
+		assertEquals(-1, deployment.getTimeToReady());
+	}
+
+	@Test
+	public void testTrackKeepsPollingAfterErrors() throws Exception {
+		stubFor(get(urlEqualTo("/deployments/4")).inScenario("4").whenScenarioStateIs(Scenario.STARTED).willReturn(aResponse().withStatus(500)).willSetStateTo("recovered"));
+		stubStatus("4", "recovered", "DEPLOYED", "recovered");
+
+		TrackedDeployment deployment = tracker.track("4");
+		assertTrue(deployment.await(5, TimeUnit.SECONDS));
+		assertTrue(deployment.isDeployed());
+		assertTrue(deployment.getLastError() != null);
+	}
+
+	@Test
+	public void testTrackSeveralDeployments() throws Exception {
+		stubStatus("5", Scenario.STARTED, "DEPLOYED", Scenario.STARTED);
+		stubStatus("6", Scenario.STARTED, "IN PROGRESS", "polled once");
+		stubStatus("6", "polled once", "DEPLOYED", "polled once");
+
+		TrackedDeployment first = tracker.track("5");
+		TrackedDeployment second = tracker.track("6");
+		assertTrue(first.await(5, TimeUnit.SECONDS));
+		assertTrue(second.await(5, TimeUnit.SECONDS));
+		assertTrue(first.isDeployed());
+		assertTrue(second.isDeployed());
+	}
+
+	private void stubStatus(String deploymentId, String state, String status, String nextState) {
+		stubFor(get(urlEqualTo("/deployments/" + deploymentId)).inScenario(deploymentId).whenScenarioStateIs(state).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"id\":\"" + deploymentId + "\",\"name\":\"app\",\"status\":\"" + status + "\"}")).willSetStateTo(nextState));
+	}
+}
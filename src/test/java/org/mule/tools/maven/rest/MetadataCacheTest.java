@@ -0,0 +1,84 @@
+package org.mule.tools.maven.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataCacheTest {
+	private File directory;
+	private URL url;
+
+	@Before
+	public void setup() throws Exception {
+		directory = File.createTempFile("metadata", "");
+		directory.delete();
+		directory.mkdirs();
+		directory.deleteOnExit();
+		url = new URL("http://localhost:8080/mmc/api");
+	}
+
+	@Test
+	public void testStoreAndLoad() throws Exception {
+		MetadataCache cache = MetadataCache.open(directory, url, MetadataCache.DEFAULT_TTL);
+		cache.put(MmcInventory.SERVERS, "Development", new HashSet<String>(Arrays.asList("local$1", "local$2")), "\"v1\"");
+		cache.put(MmcInventory.SERVER_GROUPS, "Development", new HashSet<String>(Arrays.asList("local$group")), null);
+		cache.store();
+
+		MetadataCache loaded = MetadataCache.open(directory, url, MetadataCache.DEFAULT_TTL);
+		MetadataCache.Entry servers = loaded.get(MmcInventory.SERVERS, "Development");
+		assertNotNull(servers);
+		assertEquals(new HashSet<String>(Arrays.asList("local$1", "local$2")), servers.getValues());
+		assertEquals("\"v1\"", servers.getEtag());
+		assertTrue(loaded.isFresh(servers));
+		assertNull(loaded.get(MmcInventory.SERVER_GROUPS, "Development").getEtag());
+		assertNull(loaded.get(MmcInventory.CLUSTERS, "Development"));
+	}
+
+	@Test
+	public void testExpiredEntry() throws Exception {
+		MetadataCache cache = MetadataCache.open(directory, url, 0);
+		cache.put(MmcInventory.CLUSTERS, "cluster", new HashSet<String>(Arrays.asList("local$cluster")), "\"v1\"");
+		MetadataCache.Entry entry = cache.get(MmcInventory.CLUSTERS, "cluster");
+		assertFalse(cache.isFresh(entry));
+	}
+
+	@Test
+	public void testOneFilePerMmc() throws Exception {
+		MetadataCache cache = MetadataCache.open(directory, url, MetadataCache.DEFAULT_TTL);
+		cache.put(MmcInventory.SERVERS, "Development", new HashSet<String>(Arrays.asList("local$1")), null);
+		cache.store();
+
+		MetadataCache other = MetadataCache.open(directory, new URL("http://other:8080/mmc/api"), MetadataCache.DEFAULT_TTL);
+		assertFalse(cache.getFile().equals(other.getFile()));
+		assertNull(other.get(MmcInventory.SERVERS, "Development"));
+	}
+
+	@Test
+	public void testUnreadableFileIgnored() throws Exception {
+		MetadataCache cache = MetadataCache.open(directory, url, MetadataCache.DEFAULT_TTL);
+		FileOutputStream outputStream = new FileOutputStream(cache.getFile());
+		outputStream.write(new byte[] { 0x4d, 0x4d, 0x43, 0x31, 0, 0x7f });
+		outputStream.close();
+
+		MetadataCache loaded = MetadataCache.open(directory, url, MetadataCache.DEFAULT_TTL);
+		assertNull(loaded.get(MmcInventory.SERVERS, "Development"));
+	}
+
+	@Test
+	public void testUnchangedCacheNotWritten() throws Exception {
+		MetadataCache cache = MetadataCache.open(directory, url, MetadataCache.DEFAULT_TTL);
+		cache.store();
+		assertFalse(cache.getFile().exists());
+	}
+}
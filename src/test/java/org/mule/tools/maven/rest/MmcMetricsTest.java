@@ -0,0 +1,159 @@
+package org.mule.tools.maven.rest;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cxf.helpers.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tomakehurst.wiremock.http.Fault;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+
+public class MmcMetricsTest {
+	private static final int PORT = 12317;
+	private static final String DEPLOYMENTS_JSON = "{\"total\":1,\"data\":[{\"name\":\"app\",\"id\":\"local$1\"}]}";
+
+	@Rule
+	public SharedWireMockRule wireMockRule = new SharedWireMockRule(PORT);
+
+	private MmcMetrics metrics;
+	private MuleRest muleRest;
+
+	@Before
+	public void setup() throws Exception {
+		metrics = new MmcMetrics();
+		muleRest = new MuleRest(new URL("http://localhost:" + PORT), "admin", "admin");
+		muleRest.setAcceptGzip(false);
+		muleRest.setRetryBackoff(1);
+		muleRest.setMetrics(metrics);
+	}
+
+	@After
+	public void tearDown() {
+		muleRest.close();
+	}
+
+	@Test
+	public void testEndpointNames() {
+		assertEquals("GET /deployments", MmcMetrics.endpoint("GET", "http://mmc:8585/mmc/api/deployments?name=app", "/mmc/api"));
+		assertEquals("POST /deployments/{id}/deploy", MmcMetrics.endpoint("POST", "http://mmc:8585/mmc/api/deployments/local$1/deploy", "/mmc/api"));
+		assertEquals("DELETE /repository/{id}", MmcMetrics.endpoint("DELETE", "http://localhost:12317/repository/local$2", ""));
+		assertEquals("GET /", MmcMetrics.endpoint("GET", "http://localhost:12317", ""));
+	}
+
+	@Test
+	public void testCallsMeasuredPerEndpoint() throws Exception {
+		stubFor(get(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(DEPLOYMENTS_JSON)));
+		stubFor(post(urlEqualTo("/deployments/local$1/deploy")).willReturn(aResponse().withStatus(200)));
+
+		muleRest.restfullyDeployDeploymentById(muleRest.restfullyGetDeploymentIdByName("app"));
+
+		Map<String, MmcMetrics.EndpointMetrics> endpoints = metrics.getEndpoints();
+		assertEquals(endpoints.keySet().toString(), 2, endpoints.size());
+		MmcMetrics.EndpointMetrics lookup = endpoints.get("GET /deployments");
+		assertEquals(1, lookup.getRequests());
+		assertEquals(0, lookup.getFailures());
+		assertEquals(DEPLOYMENTS_JSON.length(), lookup.getBytesReceived());
+		assertEquals(1, endpoints.get("POST /deployments/{id}/deploy").getRequests());
+	}
+
+	@Test
+	public void testUploadRetriesCounted() throws Exception {
+		File file = File.createTempFile("archive", ".zip");
+		file.deleteOnExit();
+		FileOutputStream outputStream = new FileOutputStream(file);
+		outputStream.write(new byte[10000]);
+		outputStream.close();
+
+		stubFor(post(urlEqualTo("/repository")).inScenario("upload").whenScenarioStateIs(Scenario.STARTED).willReturn(aResponse().withStatus(500)).willSetStateTo("failed once"));
+		stubFor(post(urlEqualTo("/repository")).inScenario("upload").whenScenarioStateIs("failed once").willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"versionId\":\"local$2\"}")));
+		stubFor(get(urlEqualTo("/repository")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":0,\"data\":[]}")));
+
+		assertEquals("local$2", muleRest.restfullyUploadRepository("app", "1.0", file));
+
+		MmcMetrics.EndpointMetrics upload = metrics.getEndpoints().get("POST /repository");
+		assertEquals(2, upload.getRequests());
+		assertEquals(1, upload.getFailures());
+		assertEquals(1, upload.getRetries());
+		assertTrue("Sent " + upload.getBytesSent(), upload.getBytesSent() > 2 * 10000);
+	}
+
+	@Test
+	public void testCallWithoutResponseCountedAsFailure() throws Exception {
+		stubFor(get(urlEqualTo("/deployments/local$1")).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
+
+		try {
+			muleRest.restfullyGetDeploymentStatus("local$1");
+		} catch (Exception e) {
+			// expected
+		}
+
+		MmcMetrics.EndpointMetrics status = metrics.getEndpoints().get("GET /deployments/{id}");
+		assertEquals(1, status.getRequests());
+		assertEquals(1, status.getFailures());
+		assertEquals(0, status.getRetries());
+	}
+
+	@Test
+	public void testReports() throws Exception {
+		MmcMetrics metrics = new MmcMetrics();
+		metrics.record("GET /deployments", 5, 0, 100, false);
+		metrics.record("GET /deployments", 700, 0, 300, false);
+		metrics.record("POST /repository", 40000, 5000, 20, true);
+		metrics.recordRetry("POST /repository");
+
+		File json = File.createTempFile("mmc-performance", ".json");
+		json.deleteOnExit();
+		metrics.writeJson(json);
+		JsonNode report = new ObjectMapper().readTree(json);
+		assertEquals(2, report.path("endpoints").size());
+		JsonNode lookups = report.path("endpoints").get(0);
+		assertEquals("GET /deployments", lookups.path("endpoint").asText());
+		assertEquals(2, lookups.path("requests").asInt());
+		assertEquals(400, lookups.path("bytesReceived").asInt());
+		assertEquals(700, lookups.path("maxLatency").asInt());
+		assertEquals(1, lookups.path("latencyHistogram").get(0).path("count").asInt());
+		assertEquals(1000, lookups.path("latencyHistogram").get(6).path("le").asInt());
+		assertEquals(1, lookups.path("latencyHistogram").get(6).path("count").asInt());
+
+		File csv = File.createTempFile("mmc-performance", ".csv");
+		csv.deleteOnExit();
+		metrics.writeCsv(csv);
+		String[] lines = IOUtils.readStringFromStream(new FileInputStream(csv)).split("\n");
+		assertEquals(3, lines.length);
+		assertTrue(lines[0], lines[0].startsWith("endpoint,requests,failures,retries,bytesSent,bytesReceived,totalLatency,maxLatency,le10,"));
+		assertEquals("POST /repository,1,1,1,5000,20,40000,40000,0,0,0,0,0,0,0,0,0,0,0,1", lines[2].trim());
+
+		List<String> summary = metrics.formatSummary();
+		assertEquals(3, summary.size());
+		assertTrue(summary.get(1), summary.get(1).startsWith("GET /deployments"));
+	}
+
+	@Test
+	public void testHistogramBuckets() {
+		MmcMetrics metrics = new MmcMetrics();
+		metrics.record("GET /", 10, 0, 0, false);
+		metrics.record("GET /", 11, 0, 0, false);
+		metrics.record("GET /", 60000, 0, 0, false);
+		long[] histogram = metrics.getEndpoints().get("GET /").getHistogram();
+		assertArrayEquals(new long[] { 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 }, histogram);
+	}
+}
@@ -0,0 +1,981 @@
+package org.mule.tools.maven.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the MMC REST API, for load and latency tests of the
+ * plugin. It serves the servers, serverGroups, clusters, repository and
+ * deployments endpoints over HTTP from an inventory kept across calls: an
+ * uploaded version is listed in the repository, a created deployment can be
+ * updated, deployed, polled and deleted.
+ * <p>
+ * The inventory is filled with {@link #populate} or the add methods. The
+ * latency and the error rate are set per endpoint, named as in
+ * {@link MmcMetrics} ("GET /deployments/{id}") or {@link #ANY_ENDPOINT}; the
+ * bandwidth cap applies to every request and response body. Random choices
+ * use a seeded generator so that a run can be replayed.
+ */
+public class MmcSimulator {
+	public static final String ANY_ENDPOINT = "*";
+	public static final String UNDEPLOYED = "UNDEPLOYED";
+	public static final String IN_PROGRESS = "IN PROGRESS";
+	/**
+	 * Deploy time keeping the deployments in progress until
+	 * {@link #completeDeployment} is called.
+	 */
+	public static final long UNTIL_COMPLETED = -1;
+
+	private static final Pattern BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?");
+	private static final Pattern PART_NAME = Pattern.compile("name=\"([^\"]*)\"");
+	private static final int CHUNK = 8 * 1024;
+
+	private final JsonFactory jsonFactory = new JsonFactory();
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	// inventory, guarded by this
+	private final Map<String, ServerGroup> serverGroups = new LinkedHashMap<String, ServerGroup>();
+	private final Map<String, Server> servers = new LinkedHashMap<String, Server>();
+	private final Map<String, Cluster> clusters = new LinkedHashMap<String, Cluster>();
+	private final Map<String, Application> applications = new LinkedHashMap<String, Application>();
+	private final Map<String, Deployment> deployments = new LinkedHashMap<String, Deployment>();
+	private int nextId;
+	private long revision;
+	private Random random = new Random(0);
+
+	// knobs
+	private final Map<String, Long> latencies = new HashMap<String, Long>();
+	private final Map<String, Double> errorRates = new HashMap<String, Double>();
+	private volatile long bandwidth;
+	private volatile int errorStatus = 500;
+	private volatile long deployTime;
+	private volatile double deploymentFailureRate;
+
+	// counters
+	private final Map<String, AtomicInteger> requests = new HashMap<String, AtomicInteger>();
+	private final AtomicInteger errors = new AtomicInteger();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	private static class ServerGroup {
+		String id;
+		String name;
+	}
+
+	private static class Server {
+		String id;
+		String name;
+		List<String> groups = new ArrayList<String>();
+	}
+
+	private static class Cluster {
+		String id;
+		String name;
+	}
+
+	private static class Application {
+		String id;
+		String name;
+		Map<String, Version> versions = new LinkedHashMap<String, Version>();
+	}
+
+	private static class Version {
+		String id;
+		String name;
+		long size;
+	}
+
+	private static class Deployment {
+		String id;
+		String name;
+		List<String> servers = new ArrayList<String>();
+		List<String> clusters = new ArrayList<String>();
+		List<String> applications = new ArrayList<String>();
+		String status = UNDEPLOYED;
+		String outcome;
+		long readyTime;
+
+		String getStatus(long now) {
+			if (outcome != null && now >= readyTime) {
+				status = outcome;
+				outcome = null;
+			}
+			return status;
+		}
+	}
+
+	/**
+	 * Answer of a request, an empty body for a status only.
+	 */
+	private static class Reply {
+		final int status;
+		final byte[] body;
+		String etag;
+
+		Reply(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Starts serving on a free local port.
+	 *
+	 * @return the URL of the API to give to {@link MuleRest}
+	 */
+	public synchronized URL start() throws IOException {
+		// without it the response headers and body go in two segments and small
+		// responses wait for a delayed ACK
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "mmc-simulator-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		return getUrl();
+	}
+
+	public synchronized URL getUrl() throws IOException {
+		if (server == null) {
+			throw new IllegalStateException("The simulator is not started");
+		}
+		return new URL("http://localhost:" + server.getAddress().getPort());
+	}
+
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	/**
+	 * Adds an inventory of the given size. Server i belongs to group i modulo
+	 * the groups, deployment i targets server i modulo the servers with the
+	 * last version of application i modulo the applications, and is deployed.
+	 * Names are numbered from 0: "group-0", "server-0", "cluster-0",
+	 * "application-0" with versions "1.0", "2.0"..., "deployment-0".
+	 */
+	public synchronized MmcSimulator populate(int groupCount, int serverCount, int clusterCount, int applicationCount, int versionCount, int deploymentCount) {
+		List<String> serverIds = new ArrayList<String>();
+		for (int i = 0; i < groupCount; i++) {
+			addServerGroup("group-" + i);
+		}
+		for (int i = 0; i < serverCount; i++) {
+			serverIds.add(groupCount == 0 ? addServer("server-" + i) : addServer("server-" + i, "group-" + (i % groupCount)));
+		}
+		for (int i = 0; i < clusterCount; i++) {
+			addCluster("cluster-" + i);
+		}
+		List<String> versionIds = new ArrayList<String>();
+		for (int i = 0; i < applicationCount; i++) {
+			String versionId = null;
+			for (int version = 1; version <= versionCount; version++) {
+				versionId = addVersion("application-" + i, version + ".0", 0);
+			}
+			versionIds.add(versionId);
+		}
+		for (int i = 0; i < deploymentCount; i++) {
+			List<String> targets = serverIds.isEmpty() ? new ArrayList<String>() : Arrays.asList(serverIds.get(i % serverIds.size()));
+			List<String> deployed = versionIds.isEmpty() || versionIds.get(0) == null ? new ArrayList<String>() : Arrays.asList(versionIds.get(i % versionIds.size()));
+			addDeployment("deployment-" + i, targets, deployed).status = DeploymentTracker.DEPLOYED;
+		}
+		return this;
+	}
+
+	public synchronized String addServerGroup(String name) {
+		ServerGroup group = new ServerGroup();
+		group.id = newId();
+		group.name = name;
+		serverGroups.put(group.id, group);
+		return group.id;
+	}
+
+	/**
+	 * @param groups
+	 *            names of the server groups of the server
+	 */
+	public synchronized String addServer(String name, String... groups) {
+		Server added = new Server();
+		added.id = newId();
+		added.name = name;
+		added.groups.addAll(Arrays.asList(groups));
+		servers.put(added.id, added);
+		return added.id;
+	}
+
+	public synchronized String addCluster(String name) {
+		Cluster cluster = new Cluster();
+		cluster.id = newId();
+		cluster.name = name;
+		clusters.put(cluster.id, cluster);
+		return cluster.id;
+	}
+
+	/**
+	 * @return the id of the version, null if the application already has it
+	 */
+	public synchronized String addVersion(String name, String version, long size) {
+		Application application = findByName(applications, name);
+		if (application == null) {
+			application = new Application();
+			application.id = newId();
+			application.name = name;
+			applications.put(application.id, application);
+		} else if (application.versions.containsKey(version)) {
+			return null;
+		}
+		Version added = new Version();
+		added.id = newId();
+		added.name = version;
+		added.size = size;
+		application.versions.put(version, added);
+		return added.id;
+	}
+
+	/**
+	 * @param targets
+	 *            ids of the servers, or of the clusters
+	 * @param versionIds
+	 *            ids of the application versions
+	 */
+	public synchronized String createDeployment(String name, Collection<String> targets, Collection<String> versionIds) {
+		return addDeployment(name, targets, versionIds).id;
+	}
+
+	private Deployment addDeployment(String name, Collection<String> targets, Collection<String> versionIds) {
+		Deployment deployment = new Deployment();
+		deployment.id = newId();
+		deployment.name = name;
+		setTargets(deployment, targets);
+		deployment.applications.addAll(versionIds);
+		deployments.put(deployment.id, deployment);
+		return deployment;
+	}
+
+	private void setTargets(Deployment deployment, Collection<String> targets) {
+		deployment.servers.clear();
+		deployment.clusters.clear();
+		for (String target : targets) {
+			(clusters.containsKey(target) ? deployment.clusters : deployment.servers).add(target);
+		}
+	}
+
+	private String newId() {
+		revision++;
+		return "local$" + nextId++;
+	}
+
+	/**
+	 * @param endpoint
+	 *            as named by {@link MmcMetrics}, or {@link #ANY_ENDPOINT} for
+	 *            the endpoints without a latency of their own
+	 */
+	public synchronized void setLatency(String endpoint, long millis) {
+		latencies.put(endpoint, millis);
+	}
+
+	/**
+	 * @param rate
+	 *            share of the requests to the endpoint answered with the error
+	 *            status without being processed, from 0 to 1
+	 */
+	public synchronized void setErrorRate(String endpoint, double rate) {
+		errorRates.put(endpoint, rate);
+	}
+
+	public void setErrorStatus(int errorStatus) {
+		this.errorStatus = errorStatus;
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            cap on the transfer rate of each request and response body,
+	 *            0 for none
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * @param millis
+	 *            time a deployment stays in progress once deployed, or
+	 *            {@link #UNTIL_COMPLETED}
+	 */
+	public void setDeployTime(long millis) {
+		this.deployTime = millis;
+	}
+
+	/**
+	 * Ends the deploy in progress of the deployment, which reports its
+	 * outcome from the next poll on whatever the deploy time.
+	 *
+	 * @return false if the deployment is not in progress
+	 */
+	public synchronized boolean completeDeployment(String name) {
+		Deployment deployment = findByName(deployments, name);
+		if (deployment == null || deployment.outcome == null) {
+			return false;
+		}
+		deployment.readyTime = 0;
+		return true;
+	}
+
+	/**
+	 * @param rate
+	 *            share of the deployments ending FAILED, from 0 to 1
+	 */
+	public void setDeploymentFailureRate(double rate) {
+		this.deploymentFailureRate = rate;
+	}
+
+	public synchronized void setSeed(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * @return the number of requests received by the endpoint, including the
+	 *         failed ones
+	 */
+	public int getRequests(String endpoint) {
+		synchronized (requests) {
+			AtomicInteger count = requests.get(endpoint);
+			return count == null ? 0 : count.get();
+		}
+	}
+
+	public int getRequests() {
+		int total = 0;
+		synchronized (requests) {
+			for (AtomicInteger count : requests.values()) {
+				total += count.get();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return the number of requests answered with the simulated error
+	 */
+	public int getErrors() {
+		return errors.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * @return the id of the version, null if not in the repository
+	 */
+	public synchronized String getVersionId(String name, String version) {
+		Application application = findByName(applications, name);
+		Version found = application == null ? null : application.versions.get(version);
+		return found == null ? null : found.id;
+	}
+
+	/**
+	 * @return the size of the archive uploaded for the version, -1 if not in
+	 *         the repository
+	 */
+	public synchronized long getArchiveSize(String name, String version) {
+		Application application = findByName(applications, name);
+		Version found = application == null ? null : application.versions.get(version);
+		return found == null ? -1 : found.size;
+	}
+
+	public synchronized String getDeploymentId(String name) {
+		Deployment deployment = findByName(deployments, name);
+		return deployment == null ? null : deployment.id;
+	}
+
+	/**
+	 * @return the status of the deployment, null if there is none with the
+	 *         name
+	 */
+	public synchronized String getDeploymentStatus(String name) {
+		Deployment deployment = findByName(deployments, name);
+		return deployment == null ? null : deployment.getStatus(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the ids of the versions of the deployment, null if there is
+	 *         none with the name
+	 */
+	public synchronized List<String> getDeploymentApplications(String name) {
+		Deployment deployment = findByName(deployments, name);
+		return deployment == null ? null : new ArrayList<String>(deployment.applications);
+	}
+
+	/**
+	 * @return the ids of the servers or clusters of the deployment, null if
+	 *         there is none with the name
+	 */
+	public synchronized List<String> getDeploymentTargets(String name) {
+		Deployment deployment = findByName(deployments, name);
+		if (deployment == null) {
+			return null;
+		}
+		List<String> targets = new ArrayList<String>(deployment.servers);
+		targets.addAll(deployment.clusters);
+		return targets;
+	}
+
+	public synchronized int getDeploymentCount() {
+		return deployments.size();
+	}
+
+	private static <T> T findByName(Map<String, T> entities, String name) {
+		for (T entity : entities.values()) {
+			if (name.equals(nameOf(entity))) {
+				return entity;
+			}
+		}
+		return null;
+	}
+
+	private static String nameOf(Object entity) {
+		if (entity instanceof ServerGroup) {
+			return ((ServerGroup) entity).name;
+		} else if (entity instanceof Server) {
+			return ((Server) entity).name;
+		} else if (entity instanceof Cluster) {
+			return ((Cluster) entity).name;
+		} else if (entity instanceof Application) {
+			return ((Application) entity).name;
+		}
+		return ((Deployment) entity).name;
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		String endpoint = MmcMetrics.endpoint(method, exchange.getRequestURI().toString(), null);
+		count(endpoint);
+
+		byte[] body = read(exchange.getRequestBody());
+		long latency;
+		boolean error;
+		synchronized (this) {
+			Long configured = latencies.get(endpoint);
+			latency = configured != null ? configured : latencies.containsKey(ANY_ENDPOINT) ? latencies.get(ANY_ENDPOINT) : 0;
+			Double rate = errorRates.containsKey(endpoint) ? errorRates.get(endpoint) : errorRates.get(ANY_ENDPOINT);
+			error = rate != null && random.nextDouble() < rate;
+		}
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		Reply reply;
+		if (error) {
+			errors.incrementAndGet();
+			reply = json(errorStatus, "{\"message\":\"Simulated failure\"}");
+		} else {
+			try {
+				reply = route(exchange, method, body);
+			} catch (RuntimeException e) {
+				reply = json(400, "{\"message\":\"Bad request\"}");
+			}
+		}
+		write(exchange, reply);
+	}
+
+	private void count(String endpoint) {
+		synchronized (requests) {
+			AtomicInteger count = requests.get(endpoint);
+			if (count == null) {
+				count = new AtomicInteger();
+				requests.put(endpoint, count);
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	private Reply route(HttpExchange exchange, String method, byte[] body) throws IOException {
+		List<String> segments = new ArrayList<String>();
+		for (String segment : exchange.getRequestURI().getPath().split("/")) {
+			if (segment.length() > 0) {
+				segments.add(segment);
+			}
+		}
+		if (segments.isEmpty()) {
+			return new Reply(404, null);
+		}
+		String collection = segments.get(0);
+		if (segments.size() == 1) {
+			if ("GET".equals(method)) {
+				return list(collection, parseQuery(exchange.getRequestURI().getRawQuery()), exchange.getRequestHeaders().getFirst("If-None-Match"));
+			} else if ("POST".equals(method) && MmcInventory.REPOSITORY.equals(collection)) {
+				return upload(exchange.getRequestHeaders().getFirst("Content-Type"), body);
+			} else if ("POST".equals(method) && MmcInventory.DEPLOYMENTS.equals(collection)) {
+				return createDeployment(body);
+			}
+		} else if (segments.size() == 2 && MmcInventory.DEPLOYMENTS.equals(collection)) {
+			if ("GET".equals(method)) {
+				return getDeployment(segments.get(1));
+			} else if ("PUT".equals(method)) {
+				return updateDeployment(segments.get(1), body);
+			} else if ("DELETE".equals(method)) {
+				return deleteDeployment(segments.get(1));
+			}
+		} else if (segments.size() == 2 && MmcInventory.REPOSITORY.equals(collection) && "DELETE".equals(method)) {
+			return deleteVersion(segments.get(1));
+		} else if (segments.size() == 3 && MmcInventory.DEPLOYMENTS.equals(collection) && "deploy".equals(segments.get(2)) && "POST".equals(method)) {
+			return deploy(segments.get(1));
+		}
+		return new Reply(isCollection(collection) ? 405 : 404, null);
+	}
+
+	private static boolean isCollection(String collection) {
+		return Arrays.asList(MmcInventory.SERVERS, MmcInventory.SERVER_GROUPS, MmcInventory.CLUSTERS, MmcInventory.DEPLOYMENTS, MmcInventory.REPOSITORY).contains(collection);
+	}
+
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				int equals = parameter.indexOf('=');
+				if (equals > 0) {
+					parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+				}
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * Lists a page of the collection, filtered by name or, for the servers,
+	 * by group id. The ETag changes with any change of the inventory.
+	 */
+	private synchronized Reply list(String collection, Map<String, String> query, String ifNoneMatch) throws IOException {
+		String etag = "\"" + revision + "-" + Integer.toHexString(collection.hashCode() ^ query.hashCode()) + "\"";
+		if (etag.equals(ifNoneMatch)) {
+			return new Reply(304, null);
+		}
+		Collection<?> entities;
+		if (MmcInventory.SERVERS.equals(collection)) {
+			entities = servers.values();
+		} else if (MmcInventory.SERVER_GROUPS.equals(collection)) {
+			entities = serverGroups.values();
+		} else if (MmcInventory.CLUSTERS.equals(collection)) {
+			entities = clusters.values();
+		} else if (MmcInventory.REPOSITORY.equals(collection)) {
+			entities = applications.values();
+		} else if (MmcInventory.DEPLOYMENTS.equals(collection)) {
+			entities = deployments.values();
+		} else {
+			return new Reply(404, null);
+		}
+
+		String name = query.get(MuleRest.NAME_PARAMETER);
+		String groupName = null;
+		String groupId = query.get(MuleRest.GROUP_ID_PARAMETER);
+		if (groupId != null) {
+			ServerGroup group = serverGroups.get(groupId);
+			groupName = group == null ? "" : group.name;
+		}
+		List<Object> matching = new ArrayList<Object>();
+		for (Object entity : entities) {
+			if ((name == null || name.equals(nameOf(entity))) && (groupName == null || ((Server) entity).groups.contains(groupName))) {
+				matching.add(entity);
+			}
+		}
+		int offset = query.containsKey(MuleRest.OFFSET_PARAMETER) ? Integer.parseInt(query.get(MuleRest.OFFSET_PARAMETER)) : 0;
+		int limit = query.containsKey(MuleRest.LIMIT_PARAMETER) ? Integer.parseInt(query.get(MuleRest.LIMIT_PARAMETER)) : 0;
+		int end = limit > 0 ? Math.min(matching.size(), offset + limit) : matching.size();
+
+		long now = System.currentTimeMillis();
+		StringWriter writer = new StringWriter();
+		JsonGenerator generator = jsonFactory.createGenerator(writer);
+		generator.writeStartObject();
+		generator.writeNumberField("total", matching.size());
+		generator.writeArrayFieldStart("data");
+		for (int i = Math.min(offset, end); i < end; i++) {
+			writeEntity(generator, matching.get(i), now);
+		}
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.close();
+
+		Reply reply = json(200, writer.toString());
+		reply.etag = etag;
+		return reply;
+	}
+
+	private void writeEntity(JsonGenerator generator, Object entity, long now) throws IOException {
+		generator.writeStartObject();
+		if (entity instanceof Server) {
+			Server server = (Server) entity;
+			generator.writeStringField("id", server.id);
+			generator.writeStringField("name", server.name);
+			generator.writeArrayFieldStart("groups");
+			for (String group : server.groups) {
+				ServerGroup serverGroup = findByName(serverGroups, group);
+				generator.writeStartObject();
+				generator.writeStringField("id", serverGroup == null ? null : serverGroup.id);
+				generator.writeStringField("name", group);
+				generator.writeEndObject();
+			}
+			generator.writeEndArray();
+		} else if (entity instanceof Application) {
+			Application application = (Application) entity;
+			generator.writeStringField("id", application.id);
+			generator.writeStringField("name", application.name);
+			generator.writeArrayFieldStart("versions");
+			for (Version version : application.versions.values()) {
+				generator.writeStartObject();
+				generator.writeStringField("id", version.id);
+				generator.writeStringField("name", version.name);
+				generator.writeEndObject();
+			}
+			generator.writeEndArray();
+		} else if (entity instanceof Deployment) {
+			writeDeploymentFields(generator, (Deployment) entity, now);
+		} else {
+			generator.writeStringField("id", entity instanceof Cluster ? ((Cluster) entity).id : ((ServerGroup) entity).id);
+			generator.writeStringField("name", nameOf(entity));
+		}
+		generator.writeEndObject();
+	}
+
+	private static void writeDeploymentFields(JsonGenerator generator, Deployment deployment, long now) throws IOException {
+		generator.writeStringField("id", deployment.id);
+		generator.writeStringField("name", deployment.name);
+		generator.writeStringField("status", deployment.getStatus(now));
+		writeArray(generator, "servers", deployment.servers);
+		writeArray(generator, "clusters", deployment.clusters);
+		writeArray(generator, "applications", deployment.applications);
+	}
+
+	private static void writeArray(JsonGenerator generator, String field, List<String> values) throws IOException {
+		generator.writeArrayFieldStart(field);
+		for (String value : values) {
+			generator.writeString(value);
+		}
+		generator.writeEndArray();
+	}
+
+	/**
+	 * Adds the version uploaded in the "file", "name" and "version" parts of
+	 * the multipart body.
+	 */
+	private Reply upload(String contentType, byte[] body) throws IOException {
+		Matcher boundary = BOUNDARY.matcher(contentType == null ? "" : contentType);
+		if (!boundary.find()) {
+			return json(400, "{\"message\":\"Not a multipart body\"}");
+		}
+		Map<String, String> fields = new HashMap<String, String>();
+		long size = -1;
+		String content = new String(body, "ISO-8859-1");
+		String delimiter = "--" + boundary.group(1);
+		int start = content.indexOf(delimiter);
+		while (start >= 0) {
+			int headersStart = start + delimiter.length() + 2;
+			int headersEnd = content.indexOf("\r\n\r\n", headersStart);
+			int next = content.indexOf("\r\n" + delimiter, headersStart);
+			if (headersEnd < 0 || next < 0 || headersEnd > next) {
+				break;
+			}
+			Matcher name = PART_NAME.matcher(content.substring(headersStart, headersEnd));
+			if (name.find()) {
+				if ("file".equals(name.group(1))) {
+					size = next - headersEnd - 4;
+				} else {
+					fields.put(name.group(1), content.substring(headersEnd + 4, next));
+				}
+			}
+			start = next + 2;
+		}
+		String name = fields.get("name");
+		String version = fields.get("version");
+		if (name == null || version == null || size < 0) {
+			return json(400, "{\"message\":\"The name, version and file parts are required\"}");
+		}
+		synchronized (this) {
+			String versionId = addVersion(name, version, size);
+			if (versionId == null) {
+				return json(409, "{\"message\":\"The version already exists\"}");
+			}
+			return json(200, "{\"versionId\":\"" + versionId + "\",\"applicationId\":\"" + findByName(applications, name).id + "\"}");
+		}
+	}
+
+	private synchronized Reply createDeployment(byte[] body) throws IOException {
+		JsonNode request = objectMapper.readTree(body);
+		String name = request.path("name").asText();
+		if (findByName(deployments, name) != null) {
+			return json(409, "{\"message\":\"The deployment already exists\"}");
+		}
+		Deployment deployment = addDeployment(name, targets(request), values(request.path("applications")));
+		return json(200, "{\"id\":\"" + deployment.id + "\"}");
+	}
+
+	private synchronized Reply updateDeployment(String id, byte[] body) throws IOException {
+		Deployment deployment = deployments.get(id);
+		if (deployment == null) {
+			return new Reply(404, null);
+		}
+		JsonNode request = objectMapper.readTree(body);
+		setTargets(deployment, targets(request));
+		deployment.applications.clear();
+		deployment.applications.addAll(values(request.path("applications")));
+		deployment.status = UNDEPLOYED;
+		deployment.outcome = null;
+		revision++;
+		return json(200, "{\"id\":\"" + deployment.id + "\"}");
+	}
+
+	private static List<String> targets(JsonNode request) {
+		List<String> targets = values(request.path("servers"));
+		targets.addAll(values(request.path("clusters")));
+		return targets;
+	}
+
+	private static List<String> values(JsonNode array) {
+		List<String> values = new ArrayList<String>();
+		for (JsonNode value : array) {
+			values.add(value.asText());
+		}
+		return values;
+	}
+
+	private synchronized Reply getDeployment(String id) throws IOException {
+		Deployment deployment = deployments.get(id);
+		if (deployment == null) {
+			return new Reply(404, null);
+		}
+		StringWriter writer = new StringWriter();
+		JsonGenerator generator = jsonFactory.createGenerator(writer);
+		generator.writeStartObject();
+		writeDeploymentFields(generator, deployment, System.currentTimeMillis());
+		generator.writeEndObject();
+		generator.close();
+		return json(200, writer.toString());
+	}
+
+	private synchronized Reply deleteDeployment(String id) {
+		if (deployments.remove(id) == null) {
+			return new Reply(404, null);
+		}
+		revision++;
+		return new Reply(200, null);
+	}
+
+	/**
+	 * Starts the deployment, which stays in progress for the deploy time and
+	 * then ends DEPLOYED or, at the failure rate, FAILED.
+	 */
+	private synchronized Reply deploy(String id) {
+		Deployment deployment = deployments.get(id);
+		if (deployment == null) {
+			return new Reply(404, null);
+		}
+		deployment.status = IN_PROGRESS;
+		deployment.outcome = random.nextDouble() < deploymentFailureRate ? DeploymentTracker.FAILED : DeploymentTracker.DEPLOYED;
+		deployment.readyTime = deployTime == UNTIL_COMPLETED ? Long.MAX_VALUE : System.currentTimeMillis() + deployTime;
+		revision++;
+		return new Reply(200, null);
+	}
+
+	private synchronized Reply deleteVersion(String id) {
+		for (Iterator<Application> applicationIterator = applications.values().iterator(); applicationIterator.hasNext();) {
+			Application application = applicationIterator.next();
+			for (Iterator<Version> versionIterator = application.versions.values().iterator(); versionIterator.hasNext();) {
+				if (versionIterator.next().id.equals(id)) {
+					versionIterator.remove();
+					if (application.versions.isEmpty()) {
+						applicationIterator.remove();
+					}
+					revision++;
+					return new Reply(200, null);
+				}
+			}
+		}
+		return new Reply(404, null);
+	}
+
+	private static Reply json(int status, String body) {
+		try {
+			return new Reply(status, body.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private byte[] read(InputStream body) throws IOException {
+		InputStream throttled = new ThrottledInputStream(body, bandwidth);
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[CHUNK];
+		int read;
+		while ((read = throttled.read(buffer)) != -1) {
+			content.write(buffer, 0, read);
+		}
+		bytesReceived.addAndGet(content.size());
+		return content.toByteArray();
+	}
+
+	private void write(HttpExchange exchange, Reply reply) throws IOException {
+		byte[] body = reply.body;
+		if (body != null && body.length > 0) {
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+				GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+				gzip.write(body);
+				gzip.close();
+				body = compressed.toByteArray();
+				exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+			}
+		}
+		if (reply.etag != null) {
+			exchange.getResponseHeaders().add("ETag", reply.etag);
+		}
+		if (body == null || body.length == 0) {
+			exchange.sendResponseHeaders(reply.status, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(reply.status, body.length);
+		OutputStream output = new ThrottledOutputStream(exchange.getResponseBody(), bandwidth);
+		for (int offset = 0; offset < body.length; offset += CHUNK) {
+			output.write(body, offset, Math.min(CHUNK, body.length - offset));
+		}
+		output.close();
+		bytesSent.addAndGet(body.length);
+	}
+
+	/**
+	 * Holds the transfer back to the rate, sleeping once the bytes moved so
+	 * far are ahead of the time elapsed.
+	 */
+	private static class Throttle {
+		private final long bytesPerSecond;
+		private long start;
+		private long transferred;
+
+		Throttle(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		void transferred(int bytes) throws IOException {
+			if (bytesPerSecond <= 0 || bytes <= 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			if (start == 0) {
+				start = now;
+			}
+			transferred += bytes;
+			long ahead = TimeUnit.SECONDS.toNanos(transferred) / bytesPerSecond - (now - start);
+			if (ahead > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(ahead);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while throttled");
+				}
+			}
+		}
+	}
+
+	private static class ThrottledInputStream extends FilterInputStream {
+		private final Throttle throttle;
+
+		ThrottledInputStream(InputStream in, long bytesPerSecond) {
+			super(in);
+			throttle = new Throttle(bytesPerSecond);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			throttle.transferred(read < 0 ? 0 : 1);
+			return read;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			throttle.transferred(read);
+			return read;
+		}
+	}
+
+	private static class ThrottledOutputStream extends FilterOutputStream {
+		private final Throttle throttle;
+
+		ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+			super(out);
+			throttle = new Throttle(bytesPerSecond);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			throttle.transferred(length);
+		}
+	}
+}
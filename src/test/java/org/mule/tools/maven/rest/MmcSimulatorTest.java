@@ -0,0 +1,189 @@
+package org.mule.tools.maven.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.tools.maven.rest.DeploymentTracker.TrackedDeployment;
+
+public class MmcSimulatorTest {
+	private MmcSimulator simulator;
+	private MuleRest muleRest;
+
+	@Before
+	public void setup() throws Exception {
+		simulator = new MmcSimulator();
+		muleRest = new MuleRest(simulator.start(), "admin", "admin");
+		muleRest.setRetryBackoff(1);
+		muleRest.setProgressInterval(Long.MAX_VALUE);
+	}
+
+	@After
+	public void tearDown() {
+		muleRest.close();
+		simulator.stop();
+	}
+
+	private static File createArchive(int size) throws Exception {
+		File archive = File.createTempFile("simulator", ".zip");
+		archive.deleteOnExit();
+		RandomAccessFile file = new RandomAccessFile(archive, "rw");
+		file.setLength(size);
+		file.close();
+		return archive;
+	}
+
+	@Test
+	public void testLargeInventoryPagedAndFiltered() throws Exception {
+		simulator.populate(5, 500, 10, 2000, 3, 1000);
+		muleRest.setPageSize(250);
+		muleRest.setServerSideFiltering(true);
+
+		assertEquals(100, muleRest.restfullyGetServers("group-3").size());
+		assertEquals(simulator.getVersionId("application-1999", "3.0"), muleRest.restfullyGetApplicationId("application-1999", "3.0"));
+		assertEquals(1, muleRest.restfullyGetClusters("cluster-7").size());
+		assertEquals(simulator.getDeploymentId("deployment-999"), muleRest.restfullyGetDeploymentIdByName("deployment-999"));
+		assertNull(muleRest.restfullyGetDeploymentIdByName("deployment-1000"));
+	}
+
+	@Test
+	public void testWholeCollectionsWithoutPaging() throws Exception {
+		simulator.populate(2, 20, 0, 300, 2, 0);
+
+		assertEquals(10, muleRest.restfullyGetServers("group-1").size());
+		assertEquals(600, muleRest.restfullyGetApplicationVersions().size());
+		assertEquals(1, simulator.getRequests("GET /repository"));
+	}
+
+	@Test
+	public void testDeploymentLifecycleKeptAcrossCalls() throws Exception {
+		simulator.populate(1, 2, 0, 0, 0, 0);
+		simulator.setDeployTime(MmcSimulator.UNTIL_COMPLETED);
+
+		File archive = createArchive(64 * 1024);
+		String first = muleRest.restfullyUploadRepository("app", "1.0", archive);
+		assertEquals(first, simulator.getVersionId("app", "1.0"));
+		assertEquals(archive.length(), simulator.getArchiveSize("app", "1.0"));
+
+		String deploymentId = muleRest.restfullyCreateDeployment("group-0", "app", null, first);
+		assertEquals(2, simulator.getDeploymentTargets("app").size());
+		assertEquals(MmcSimulator.UNDEPLOYED, muleRest.restfullyGetDeploymentStatus(deploymentId));
+		muleRest.restfullyDeployDeploymentById(deploymentId);
+		assertEquals(MmcSimulator.IN_PROGRESS, muleRest.restfullyGetDeploymentStatus(deploymentId));
+		assertEquals(MmcSimulator.IN_PROGRESS, muleRest.restfullyGetDeploymentStatus(deploymentId));
+		assertTrue(simulator.completeDeployment("app"));
+		assertEquals(DeploymentTracker.DEPLOYED, muleRest.restfullyGetDeploymentStatus(deploymentId));
+		assertFalse(simulator.completeDeployment("app"));
+
+		// a new version updates the deployment in place
+		String second = muleRest.restfullyUploadRepository("app", "2.0", archive);
+		assertEquals(deploymentId, muleRest.restfullyCreateDeployment("group-0", "app", null, second));
+		assertEquals(Arrays.asList(second), muleRest.restfullyGetDeploymentApplications(deploymentId));
+		assertEquals(1, simulator.getRequests("PUT /deployments/{id}"));
+
+		muleRest.restfullyDeleteDeployment("app");
+		muleRest.restfullyDeleteApplication("app", "1.0");
+		assertNull(simulator.getDeploymentId("app"));
+		assertNull(simulator.getVersionId("app", "1.0"));
+		assertNotNull(simulator.getVersionId("app", "2.0"));
+	}
+
+	@Test
+	public void testErrorRateRetriedByTheClient() throws Exception {
+		simulator.populate(0, 0, 0, 20, 1, 0);
+		simulator.setSeed(42);
+		simulator.setErrorRate("DELETE /repository/{id}", 0.3);
+
+		List<String> versionIds = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			versionIds.add(simulator.getVersionId("application-" + i, "1.0"));
+		}
+		for (String versionId : versionIds) {
+			muleRest.restfullyDeleteApplicationById(versionId);
+		}
+
+		assertTrue(simulator.getErrors() > 0);
+		assertEquals(20 + simulator.getErrors(), simulator.getRequests("DELETE /repository/{id}"));
+		assertEquals(simulator.getErrors(), muleRest.getRetryPolicy().getRetries());
+		assertEquals(0, muleRest.restfullyGetApplicationVersions().size());
+	}
+
+	@Test
+	public void testLatencyPerEndpoint() throws Exception {
+		String deploymentId = simulator.createDeployment("app", new ArrayList<String>(), new ArrayList<String>());
+		simulator.setLatency("GET /deployments/{id}", 300);
+		simulator.setLatency(MmcSimulator.ANY_ENDPOINT, 50);
+
+		long start = System.currentTimeMillis();
+		muleRest.restfullyGetDeploymentStatus(deploymentId);
+		long status = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		muleRest.restfullyDeployDeploymentById(deploymentId);
+		long deploy = System.currentTimeMillis() - start;
+
+		assertTrue("Took " + status + " ms", status >= 300);
+		assertTrue("Took " + deploy + " ms", deploy >= 50 && deploy < 300);
+	}
+
+	@Test
+	public void testBandwidthCapSlowsTheUpload() throws Exception {
+		simulator.setBandwidth(1024 * 1024);
+		File archive = createArchive(512 * 1024);
+
+		long start = System.currentTimeMillis();
+		muleRest.restfullyUploadRepository("app", "1.0", archive);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Took " + elapsed + " ms", elapsed >= 450);
+		assertTrue(simulator.getBytesReceived() > archive.length());
+	}
+
+	/**
+	 * Slow deploy: fifty deployments staying in progress for a second each,
+	 * some failing, tracked together.
+	 */
+	@Test
+	public void testSlowDeploymentsTrackedConcurrently() throws Exception {
+		simulator.populate(1, 50, 0, 50, 1, 50);
+		simulator.setDeployTime(1000);
+		simulator.setDeploymentFailureRate(0.2);
+		simulator.setLatency(MmcSimulator.ANY_ENDPOINT, 20);
+
+		DeploymentTracker tracker = new DeploymentTracker(muleRest, 50, 200);
+		try {
+			List<TrackedDeployment> tracked = new ArrayList<TrackedDeployment>();
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < 50; i++) {
+				String deploymentId = simulator.getDeploymentId("deployment-" + i);
+				muleRest.restfullyDeployDeploymentById(deploymentId);
+				tracked.add(tracker.track(deploymentId));
+			}
+			int failed = 0;
+			for (TrackedDeployment deployment : tracked) {
+				assertTrue(deployment.await(10, TimeUnit.SECONDS));
+				if (!deployment.isDeployed()) {
+					assertEquals(DeploymentTracker.FAILED, deployment.getStatus());
+					failed++;
+				}
+			}
+			long elapsed = System.currentTimeMillis() - start;
+
+			assertTrue(failed > 0 && failed < 50);
+			assertTrue("Took " + elapsed + " ms", elapsed >= 1000 && elapsed < 8000);
+		} finally {
+			tracker.close();
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package org.mule.tools.maven.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * JMH benchmarks of the MuleRest hot paths, run with
+ * <code>mvn test -Pbenchmark</code>. The results, with the bytes allocated per
+ * operation measured by the GC profiler, are written as JSON to
+ * <code>target/benchmarks/mule-rest.json</code>, or to the file set in the
+ * <code>benchmark.output</code> system property.
+ */
+public class MuleRestBenchmark {
+	private static final String SERVER_GROUP = "Development";
+
+	@Test
+	public void runBenchmarks() throws Exception {
+		File output = new File(System.getProperty("benchmark.output", "target/benchmarks/mule-rest.json"));
+		output.getParentFile().mkdirs();
+		// without the nodelay property the stand-in servers write the response
+		// headers and body in two segments and small responses wait for a
+		// delayed ACK
+		ChainedOptionsBuilder options = new OptionsBuilder().include(MuleRestBenchmark.class.getName()).jvmArgsAppend("-Dsun.net.httpserver.nodelay=true").addProfiler(GCProfiler.class).resultFormat(ResultFormatType.JSON).result(output.getPath());
+		Integer warmup = Integer.getInteger("benchmark.warmup");
+		if (warmup != null) {
+			options.warmupIterations(warmup);
+		}
+		Integer iterations = Integer.getInteger("benchmark.iterations");
+		if (iterations != null) {
+			options.measurementIterations(iterations);
+		}
+
+		assertFalse(new Runner(options.build()).run().isEmpty());
+	}
+
+	@State(Scope.Benchmark)
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 5)
+	@Measurement(iterations = 5)
+	@Fork(1)
+	public static class CallOverhead {
+		private HttpServer server;
+		private MuleRest muleRest;
+
+		@Setup
+		public void start() throws IOException {
+			Map<String, byte[]> responses = new HashMap<String, byte[]>();
+			responses.put("POST /deployments/1/deploy", new byte[0]);
+			responses.put("GET /deployments/1", "{\"id\":\"1\",\"name\":\"app\",\"status\":\"DEPLOYED\"}".getBytes("UTF-8"));
+			responses.put("GET /servers", ("{\"total\":1,\"data\":[{\"id\":\"local$server\",\"groups\":[{\"name\":\"" + SERVER_GROUP + "\"}]}]}").getBytes("UTF-8"));
+			responses.put("GET /deployments", "{\"total\":0,\"data\":[]}".getBytes("UTF-8"));
+			responses.put("POST /deployments", "{\"id\":\"1\"}".getBytes("UTF-8"));
+			server = startServer(responses);
+
+			muleRest = new MuleRest(new URL("http://localhost:" + server.getAddress().getPort()), "admin", "admin");
+			muleRest.setCacheInventory(true);
+		}
+
+		@TearDown
+		public void stop() {
+			muleRest.close();
+			server.stop(0);
+		}
+
+		@Benchmark
+		public void deployDeploymentById() throws IOException {
+			muleRest.restfullyDeployDeploymentById("1");
+		}
+
+		@Benchmark
+		public String getDeploymentStatus() throws IOException {
+			return muleRest.restfullyGetDeploymentStatus("1");
+		}
+
+		@Benchmark
+		public String createDeployment() throws IOException {
+			return muleRest.restfullyCreateDeployment(SERVER_GROUP, "app", null, "local$version");
+		}
+	}
+
+	@State(Scope.Benchmark)
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 5)
+	@Measurement(iterations = 5)
+	@Fork(1)
+	public static class ListLookup {
+		@Param({ "100", "1000", "10000" })
+		public int applications;
+
+		private HttpServer server;
+		private MuleRest muleRest;
+		private String name;
+
+		@Setup
+		public void start() throws IOException {
+			Map<String, byte[]> responses = new HashMap<String, byte[]>();
+			responses.put("GET /repository", generateRepositoryJson(applications).getBytes("UTF-8"));
+			server = startServer(responses);
+
+			muleRest = new MuleRest(new URL("http://localhost:" + server.getAddress().getPort()), "admin", "admin");
+			// the last application is the worst case, the whole list is read
+			name = "application-" + (applications - 1);
+			assertEquals("local$" + (applications - 1), muleRest.restfullyGetApplicationId(name, "1.0"));
+		}
+
+		@TearDown
+		public void stop() {
+			muleRest.close();
+			server.stop(0);
+		}
+
+		@Benchmark
+		public String getApplicationId() throws IOException {
+			return muleRest.restfullyGetApplicationId(name, "1.0");
+		}
+	}
+
+	@State(Scope.Benchmark)
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 5)
+	@Measurement(iterations = 5)
+	@Fork(1)
+	public static class Upload {
+		@Param({ "1", "8", "32" })
+		public int megabytes;
+
+		private HttpServer server;
+		private MuleRest muleRest;
+		private File archive;
+
+		@Setup
+		public void start() throws IOException {
+			Map<String, byte[]> responses = new HashMap<String, byte[]>();
+			responses.put("POST /repository", "{\"versionId\":\"local$version\",\"applicationId\":\"local$application\"}".getBytes("UTF-8"));
+			server = startServer(responses);
+
+			muleRest = new MuleRest(new URL("http://localhost:" + server.getAddress().getPort()), "admin", "admin");
+			muleRest.setProgressInterval(Long.MAX_VALUE);
+			archive = createArchive(megabytes * 1024L * 1024);
+		}
+
+		@TearDown
+		public void stop() {
+			muleRest.close();
+			server.stop(0);
+			archive.delete();
+		}
+
+		@Benchmark
+		public String uploadRepository() throws IOException {
+			return muleRest.restfullyUploadRepository("benchmark", "1.0", archive);
+		}
+	}
+
+	/**
+	 * Full deploy cycle, upload, create or update, deploy and status polls,
+	 * against a simulated MMC with a production sized inventory and latency.
+	 * Every cycle adds a version to the simulated inventory, so it is timed a
+	 * few single shots rather than for a fixed time.
+	 */
+	@State(Scope.Benchmark)
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3)
+	@Measurement(iterations = 10)
+	@Fork(1)
+	public static class DeployCycle {
+		private MmcSimulator simulator;
+		private MuleRest muleRest;
+		private DeploymentTracker tracker;
+		private File archive;
+		private int version;
+
+		@Setup
+		public void start() throws IOException {
+			simulator = new MmcSimulator();
+			simulator.populate(10, 200, 0, 2000, 3, 500);
+			simulator.setLatency(MmcSimulator.ANY_ENDPOINT, 5);
+			simulator.setDeployTime(20);
+
+			muleRest = new MuleRest(simulator.start(), "admin", "admin");
+			muleRest.setProgressInterval(Long.MAX_VALUE);
+			muleRest.setServerSideFiltering(true);
+			tracker = new DeploymentTracker(muleRest, 5, 20);
+			archive = createArchive(256 * 1024);
+		}
+
+		@TearDown
+		public void stop() {
+			tracker.close();
+			muleRest.close();
+			simulator.stop();
+			archive.delete();
+		}
+
+		@Benchmark
+		public boolean deployCycle() throws Exception {
+			String versionId = muleRest.restfullyUploadRepository("benchmark", (++version) + ".0", archive);
+			String deploymentId = muleRest.restfullyCreateDeployment("group-0", "benchmark", null, versionId);
+			muleRest.restfullyDeployDeploymentById(deploymentId);
+			return tracker.track(deploymentId).await(10, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Uploads an archive twice the size of the heap, which only succeeds if
+	 * the upload is streamed.
+	 */
+	@Test
+	public void testUploadStreamsArchiveLargerThanHeap() throws Exception {
+		final long archiveSize = Math.max(2 * Runtime.getRuntime().maxMemory(), 256L * 1024 * 1024);
+		final AtomicLong receivedBytes = new AtomicLong();
+		final AtomicReference<String> transferEncoding = new AtomicReference<String>();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/repository", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				transferEncoding.set(exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+				InputStream body = exchange.getRequestBody();
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = body.read(buffer)) != -1) {
+					receivedBytes.addAndGet(read);
+				}
+				byte[] response = "{\"versionId\":\"local$version\",\"applicationId\":\"local$application\"}".getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, response.length);
+				exchange.getResponseBody().write(response);
+				exchange.close();
+			}
+		});
+		server.start();
+
+		File archive = File.createTempFile("large", ".zip");
+		archive.deleteOnExit();
+		RandomAccessFile file = new RandomAccessFile(archive, "rw");
+		file.setLength(archiveSize);
+		file.close();
+
+		MuleRest muleRest = new MuleRest(new URL("http://localhost:" + server.getAddress().getPort()), "admin", "admin");
+		muleRest.setProgressInterval(Long.MAX_VALUE);
+		try {
+			assertEquals("local$version", muleRest.restfullyUploadRepository("large", "1.0", archive));
+		} finally {
+			muleRest.close();
+			server.stop(0);
+			archive.delete();
+		}
+		assertEquals("chunked", transferEncoding.get());
+		assertTrue("The whole archive should have been sent", receivedBytes.get() > archiveSize);
+	}
+
+	/**
+	 * Starts a stand-in server answering every request with the response
+	 * mapped to its method and path, after discarding the request body.
+	 */
+	private static HttpServer startServer(final Map<String, byte[]> responses) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream body = exchange.getRequestBody();
+				byte[] buffer = new byte[64 * 1024];
+				while (body.read(buffer) != -1) {
+					// discard
+				}
+				byte[] response = responses.get(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+				if (response == null) {
+					exchange.sendResponseHeaders(404, -1);
+				} else {
+					exchange.getResponseHeaders().add("Content-Type", "application/json");
+					exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+					exchange.getResponseBody().write(response);
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private static File createArchive(long size) throws IOException {
+		File archive = File.createTempFile("benchmark", ".zip");
+		archive.deleteOnExit();
+		RandomAccessFile file = new RandomAccessFile(archive, "rw");
+		file.setLength(size);
+		file.close();
+		return archive;
+	}
+
+	private static String generateRepositoryJson(int applications) throws IOException {
+		StringWriter stringWriter = new StringWriter();
+		JsonGenerator jsonGenerator = new JsonFactory().createGenerator(stringWriter);
+
+		jsonGenerator.writeStartObject();
+		jsonGenerator.writeNumberField("total", applications);
+		jsonGenerator.writeFieldName("data");
+		jsonGenerator.writeStartArray();
+		for (int i = 0; i < applications; i++) {
+			jsonGenerator.writeStartObject();
+			jsonGenerator.writeStringField("name", "application-" + i);
+			jsonGenerator.writeStringField("id", "local$application-" + i);
+			jsonGenerator.writeFieldName("versions");
+			jsonGenerator.writeStartArray();
+			jsonGenerator.writeStartObject();
+			jsonGenerator.writeStringField("name", "1.0");
+			jsonGenerator.writeStringField("id", "local$" + i);
+			jsonGenerator.writeEndObject();
+			jsonGenerator.writeEndArray();
+			jsonGenerator.writeEndObject();
+		}
+		jsonGenerator.writeEndArray();
+		jsonGenerator.writeEndObject();
+		jsonGenerator.close();
+
+		return stringWriter.toString();
+	}
+}
@@ -9,6 +9,8 @@ import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
@@ -20,22 +22,42 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.Assert;
 
 import org.apache.cxf.helpers.IOUtils;
+import org.apache.cxf.transport.http.HTTPException;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
@@ -43,20 +65,26 @@ import org.junit.Test;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.http.Fault;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.management.ThreadMXBean;
+import com.sun.net.httpserver.HttpServer;
 
 public class MuleRestTest {
 
 	private static final String APPLICATION_VERSION_ID = "local$66b3cf20-6e76-4fd9-8dc6-a50a804069a0";
 
 	@Rule
-	public WireMockRule wireMockRule = new WireMockRule(12312);
+	public SharedWireMockRule wireMockRule = new SharedWireMockRule(12312);
 
 	public static MuleRest muleRest;
 
 	@BeforeClass
 	public static void init() throws MalformedURLException {
 		muleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		muleRest.setRetryBackoff(10);
 	}
 
 	private String generateDeploymentIdJson(String name, String id) throws IOException {
@@ -83,7 +111,7 @@ public class MuleRestTest {
 		return json;
 	}
 
-	private String generateDeploymentRequestJson(String serverId, String name, String versionId) throws JsonGenerationException, IOException {
+	private String generateDeploymentRequestJson(String serverId, String name, String... versionIds) throws JsonGenerationException, IOException {
 		StringWriter stringWriter = new StringWriter();
 		JsonFactory jfactory = new JsonFactory();
 		JsonGenerator jsonGenerator = jfactory.createJsonGenerator(stringWriter);
@@ -98,7 +126,9 @@ public class MuleRestTest {
 
 		jsonGenerator.writeFieldName("applications");
 		jsonGenerator.writeStartArray();
-		jsonGenerator.writeString(versionId);
+		for (String versionId : versionIds) {
+			jsonGenerator.writeString(versionId);
+		}
 		jsonGenerator.writeEndArray();
 
 		jsonGenerator.writeEndObject();
@@ -233,6 +263,36 @@ public class MuleRestTest {
 		return json;
 	}
 
+	private String generateLargeRepositoryJson(int applications) throws IOException {
+		StringWriter stringWriter = new StringWriter();
+		JsonGenerator jsonGenerator = new JsonFactory().createGenerator(stringWriter);
+
+		jsonGenerator.writeStartObject();
+		jsonGenerator.writeNumberField("total", applications);
+		jsonGenerator.writeFieldName("data");
+		jsonGenerator.writeStartArray();
+		for (int i = 0; i < applications; i++) {
+			jsonGenerator.writeStartObject();
+			jsonGenerator.writeStringField("name", "application-" + i);
+			jsonGenerator.writeStringField("id", "local$" + UUID.randomUUID());
+			jsonGenerator.writeStringField("href", "http://localhost:8080/mmc/api/repository/application-" + i);
+			jsonGenerator.writeFieldName("versions");
+			jsonGenerator.writeStartArray();
+			jsonGenerator.writeStartObject();
+			jsonGenerator.writeStringField("name", "1.0");
+			jsonGenerator.writeStringField("id", "local$" + i);
+			jsonGenerator.writeStringField("parentPath", "/Applications/application-" + i);
+			jsonGenerator.writeEndObject();
+			jsonGenerator.writeEndArray();
+			jsonGenerator.writeEndObject();
+		}
+		jsonGenerator.writeEndArray();
+		jsonGenerator.writeEndObject();
+		jsonGenerator.close();
+
+		return stringWriter.toString();
+	}
+
 	private void stubCreateDeployment(String deploymentId) throws IOException {
 		stubFor(post(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withHeader("Authorization", "Basic YWRtaW46YWRtaW4=").withBody(generateDeploymentResponseJson(deploymentId))));
 	}
@@ -268,6 +328,82 @@ public class MuleRestTest {
 		verifyCreateDeployment(serverId, name, versionId);
 	}
 
+	@Test
+	public void testRestfullyCreateDeploymentWithSeveralVersions() throws IOException {
+		String serverGroup = UUID.randomUUID().toString();
+		String name = UUID.randomUUID().toString();
+		String serverId = UUID.randomUUID().toString();
+		String deploymentId = UUID.randomUUID().toString();
+		List<String> versionIds = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString());
+
+		stubGetServers(serverGroup, serverId);
+		stubCreateDeployment(deploymentId);
+		stubGetDeploymentIdByName(UUID.randomUUID().toString(), deploymentId);
+		assertEquals(deploymentId, muleRest.restfullyCreateDeployment(serverGroup, name, null, versionIds));
+		verify(1, postRequestedFor(urlEqualTo("/deployments")));
+		verifyCreateDeployment(serverId, name, versionIds.toArray(new String[versionIds.size()]));
+	}
+
+	@Test
+	public void testRestfullyCreateDeploymentFailsOnErrorStatus() throws IOException {
+		String serverGroup = UUID.randomUUID().toString();
+		String serverId = UUID.randomUUID().toString();
+
+		stubGetServers(serverGroup, serverId);
+		stubGetDeploymentIdByName(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+		stubFor(post(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(409).withHeader("Content-Type", "application/json").withBody("{\"id\":\"ignored\",\"message\":\"Conflict\"}")));
+
+		try {
+			muleRest.restfullyCreateDeployment(serverGroup, UUID.randomUUID().toString(), null, UUID.randomUUID().toString());
+			Assert.fail("Expected HTTPException");
+		} catch (HTTPException e) {
+			assertEquals(409, e.getResponseCode());
+		}
+	}
+
+	@Test
+	public void testRestfullyCreateDeploymentUpdatesExistingOne() throws IOException {
+		String serverGroup = UUID.randomUUID().toString();
+		String name = UUID.randomUUID().toString();
+		String versionId = UUID.randomUUID().toString();
+		String serverId = UUID.randomUUID().toString();
+		String deploymentId = UUID.randomUUID().toString();
+
+		stubGetServers(serverGroup, serverId);
+		stubGetDeploymentIdByName(name, deploymentId);
+		stubFor(put(urlEqualTo("/deployments/" + deploymentId)).willReturn(aResponse().withStatus(200)));
+
+		assertEquals(deploymentId, muleRest.restfullyCreateDeployment(serverGroup, name, null, versionId));
+		verify(putRequestedFor(urlEqualTo("/deployments/" + deploymentId)).withRequestBody(equalTo(generateDeploymentRequestJson(serverId, name, versionId))));
+		verify(0, deleteRequestedFor(urlEqualTo("/deployments/" + deploymentId)));
+		verify(0, postRequestedFor(urlEqualTo("/deployments")));
+	}
+
+	@Test
+	public void testRestfullyCreateDeploymentReplacesWhenUpdateNotAllowed() throws IOException {
+		String serverGroup = UUID.randomUUID().toString();
+		String name = UUID.randomUUID().toString();
+		String serverId = UUID.randomUUID().toString();
+		String deploymentId = UUID.randomUUID().toString();
+
+		stubGetServers(serverGroup, serverId);
+		stubGetDeploymentIdByName(name, deploymentId);
+		stubFor(put(urlEqualTo("/deployments/" + deploymentId)).willReturn(aResponse().withStatus(405)));
+		stubDeleteDeploymentById(deploymentId);
+		stubCreateDeployment(deploymentId);
+
+		try {
+			muleRest.restfullyCreateDeployment(serverGroup, name, null, "local$1");
+			muleRest.restfullyCreateDeployment(serverGroup, name, null, "local$2");
+		} finally {
+			// the client is shared by the other tests
+			muleRest.setUpdateDeployments(true);
+		}
+		verify(1, putRequestedFor(urlEqualTo("/deployments/" + deploymentId)));
+		verify(2, deleteRequestedFor(urlEqualTo("/deployments/" + deploymentId)));
+		verifyCreateDeployment(serverId, name, "local$2");
+	}
+
 	@Test
 	public void testRestfullyDeleteDeployment() throws IOException {
 		String name = UUID.randomUUID().toString();
@@ -299,6 +435,15 @@ public class MuleRestTest {
 		verify(postRequestedFor(urlEqualTo("/deployments/" + deploymentId + "/deploy")).withHeader("Authorization", equalTo("Basic YWRtaW46YWRtaW4=")));
 	}
 
+	@Test
+	public void testRestfullyGetDeploymentStatus() throws IOException {
+		String deploymentId = UUID.randomUUID().toString();
+
+		stubFor(get(urlEqualTo("/deployments/" + deploymentId)).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"id\":\"" + deploymentId + "\",\"name\":\"app\",\"status\":\"IN PROGRESS\",\"servers\":[\"local$1\"]}")));
+
+		assertEquals("IN PROGRESS", muleRest.restfullyGetDeploymentStatus(deploymentId));
+	}
+
 	@Test
 	public void testRestfullyGetDeploymentIdByName() throws IOException {
 		String name = UUID.randomUUID().toString();
@@ -350,6 +495,60 @@ public class MuleRestTest {
 		assertNull(muleRest.restfullyGetApplicationId("wrong application name", version));
 	}
 
+	@Test
+	public void testRestfullyGetApplicationIdByDigest() throws Exception {
+		String applicationName = "My_Mule_App";
+		String digest = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+		stubFor(get(urlEqualTo("/repository")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateApplicationsJson(applicationName, MuleRest.tagVersion("1.0", digest)))));
+
+		assertEquals(APPLICATION_VERSION_ID, muleRest.restfullyGetApplicationIdByDigest(applicationName, digest));
+		assertNull(muleRest.restfullyGetApplicationIdByDigest(applicationName, "0000000000000000000000000000000000000000000000000000000000000000"));
+		assertNull(muleRest.restfullyGetApplicationIdByDigest("wrong application name", digest));
+	}
+
+	@Test
+	public void testRestfullyGetApplicationIdAllocations() throws Exception {
+		int applications = 50000;
+		final byte[] json = generateLargeRepositoryJson(applications).getBytes("UTF-8");
+
+		// registering a stub this size through WireMock takes several copies of
+		// it, more than the test heap holds
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/repository", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, json.length);
+				exchange.getResponseBody().write(json);
+				exchange.close();
+			}
+		});
+		server.start();
+
+		ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		long start = threadMXBean.getThreadAllocatedBytes(threadId);
+		new org.codehaus.jackson.map.ObjectMapper().readTree(json);
+		long treeAllocation = threadMXBean.getThreadAllocatedBytes(threadId) - start;
+
+		MuleRest streamingMuleRest = new MuleRest(new URL("http://localhost:" + server.getAddress().getPort()), "admin", "admin");
+		String versionId;
+		long streamingAllocation;
+		try {
+			start = threadMXBean.getThreadAllocatedBytes(threadId);
+			versionId = streamingMuleRest.restfullyGetApplicationId("application-" + (applications - 1), "1.0");
+			streamingAllocation = threadMXBean.getThreadAllocatedBytes(threadId) - start;
+		} finally {
+			streamingMuleRest.close();
+			server.stop(0);
+		}
+
+		assertEquals("local$" + (applications - 1), versionId);
+		String allocations = String.format("tree %.1f MB allocated, streaming lookup %.1f MB allocated", treeAllocation / 1048576.0, streamingAllocation / 1048576.0);
+		assertTrue("The streaming lookup should allocate far less than the JSON tree: " + allocations, streamingAllocation < treeAllocation / 4);
+	}
+
 	@Test
 	public void testRestfullyDeleteApplicationById() throws Exception {
 		stubFor(delete(urlEqualTo("/repository/" + APPLICATION_VERSION_ID)).willReturn(aResponse().withStatus(200).withHeader("Authorization", "Basic YWRtaW46YWRtaW4=")));
@@ -376,6 +575,253 @@ public class MuleRestTest {
 		verify(postRequestedFor(urlMatching("/repository")).withHeader("Content-Type", containing("multipart/form-data")).withHeader("Authorization", equalTo("Basic YWRtaW46YWRtaW4=")).withRequestBody(containing("Content-Type: text/plain\r\nContent-Transfer-Encoding: binary\r\nContent-ID: <name>\r\nContent-Disposition: form-data; name=\"name\"\r\n\r\n" + name + "\r\n")).withRequestBody(containing("Content-Type: text/plain\r\nContent-Transfer-Encoding: binary\r\nContent-ID: <version>\r\nContent-Disposition: form-data; name=\"version\"\r\n\r\n" + version + "\r\n")).withRequestBody(containing("Content-Type: application/octet-stream\r\nContent-Transfer-Encoding: binary\r\nContent-ID: <file>\r\nContent-Disposition: form-data; name=\"file\"; filename=\"" + file.getName() + "\"\r\n" + fileContent + "\r\n")));
 	}
 
+	@Test
+	public void testRestfullyUploadRepositoryRetriesServerError() throws Exception {
+		String versionId = UUID.randomUUID().toString();
+		File file = File.createTempFile("prefix", "suffix");
+
+		stubFor(post(urlEqualTo("/repository")).inScenario("upload").whenScenarioStateIs(Scenario.STARTED).willReturn(aResponse().withStatus(500)).willSetStateTo("failed once"));
+		stubFor(post(urlEqualTo("/repository")).inScenario("upload").whenScenarioStateIs("failed once").willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateUploadedPackageJson(versionId, UUID.randomUUID().toString()))));
+		stubFor(get(urlEqualTo("/repository")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":0,\"data\":[]}")));
+
+		assertEquals(versionId, muleRest.restfullyUploadRepository("My_Mule_App", "1.0", file));
+		verify(2, postRequestedFor(urlEqualTo("/repository")));
+		verify(1, getRequestedFor(urlEqualTo("/repository")));
+	}
+
+	@Test
+	public void testRestfullyUploadRepositoryReusesVersionStoredDespiteServerError() throws Exception {
+		String applicationName = "My_Mule_App";
+		String version = "1.0";
+		File file = File.createTempFile("prefix", "suffix");
+
+		stubFor(post(urlEqualTo("/repository")).willReturn(aResponse().withStatus(500)));
+		stubFor(get(urlEqualTo("/repository")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateApplicationsJson(applicationName, version))));
+
+		assertEquals(APPLICATION_VERSION_ID, muleRest.restfullyUploadRepository(applicationName, version, file));
+		verify(1, postRequestedFor(urlEqualTo("/repository")));
+	}
+
+	@Test
+	public void testRestfullyUploadRepositoryReusesVersionStoredByFailedAttempt() throws Exception {
+		String applicationName = "My_Mule_App";
+		String version = "1.0";
+		File file = File.createTempFile("prefix", "suffix");
+
+		stubFor(post(urlEqualTo("/repository")).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
+		stubFor(get(urlEqualTo("/repository")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateApplicationsJson(applicationName, version))));
+
+		assertEquals(APPLICATION_VERSION_ID, muleRest.restfullyUploadRepository(applicationName, version, file));
+		verify(1, postRequestedFor(urlEqualTo("/repository")));
+	}
+
+	@Test
+	public void testRestfullyUploadRepositoryDoesNotRetryConflict() throws Exception {
+		File file = File.createTempFile("prefix", "suffix");
+
+		stubFor(post(urlEqualTo("/repository")).willReturn(aResponse().withStatus(409)));
+
+		try {
+			muleRest.restfullyUploadRepository("My_Mule_App", "1.0", file);
+			Assert.fail("A conflict should not be retried");
+		} catch (HTTPException e) {
+			assertEquals(409, e.getResponseCode());
+		}
+		verify(1, postRequestedFor(urlEqualTo("/repository")));
+	}
+
+	@Test
+	public void testRestfullyGetApplicationVersions() throws Exception {
+		stubFor(get(urlEqualTo("/repository")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateApplicationsJson("My_Mule_App", "1.0"))));
+
+		List<ApplicationVersion> versions = muleRest.restfullyGetApplicationVersions();
+		assertEquals(1, versions.size());
+		assertEquals("My_Mule_App", versions.get(0).getName());
+		assertEquals("1.0", versions.get(0).getVersion());
+		assertEquals(APPLICATION_VERSION_ID, versions.get(0).getId());
+	}
+
+	@Test
+	public void testRestfullyGetDeployedVersionIds() throws Exception {
+		String json = "{\"total\":2,\"data\":[{\"name\":\"a\",\"id\":\"local$1\",\"applications\":[\"local$v1\",\"local$v2\"]},{\"applications\":[\"local$v2\",\"local$v3\"],\"name\":\"b\"}]}";
+		stubFor(get(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(json)));
+
+		assertEquals(new TreeSet<String>(Arrays.asList("local$v1", "local$v2", "local$v3")), new TreeSet<String>(muleRest.restfullyGetDeployedVersionIds()));
+	}
+
+	private MuleRest createRetryingMuleRest(int retries, int retryBudget, int failureThreshold) throws MalformedURLException {
+		RetryPolicy retryPolicy = new RetryPolicy();
+		retryPolicy.setMaxRetries(retries);
+		retryPolicy.setInitialBackoff(1);
+		retryPolicy.setRetryBudget(retryBudget);
+		retryPolicy.setFailureThreshold(failureThreshold);
+		retryPolicy.setOpenTime(60000);
+		MuleRest retryingMuleRest = new MuleRest(new URL("http://localhost:12312"), "admin", "admin");
+		retryingMuleRest.setRetryPolicy(retryPolicy);
+		return retryingMuleRest;
+	}
+
+	@Test
+	public void testLookupRetriedAfterServerErrorAndReset() throws Exception {
+		stubFor(get(urlEqualTo("/deployments")).inScenario("lookup").whenScenarioStateIs(Scenario.STARTED).willReturn(aResponse().withStatus(503)).willSetStateTo("unavailable once"));
+		stubFor(get(urlEqualTo("/deployments")).inScenario("lookup").whenScenarioStateIs("unavailable once").willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)).willSetStateTo("reset once"));
+		stubFor(get(urlEqualTo("/deployments")).inScenario("lookup").whenScenarioStateIs("reset once").willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateDeploymentIdJson("app", "local$1"))));
+
+		MuleRest retryingMuleRest = createRetryingMuleRest(2, 20, 5);
+		try {
+			assertEquals("local$1", retryingMuleRest.restfullyGetDeploymentIdByName("app"));
+			// the JDK may itself resend a GET answered with an empty response
+			assertTrue(retryingMuleRest.getRetryPolicy().getRetries() >= 1);
+		} finally {
+			retryingMuleRest.close();
+		}
+		verify(3, getRequestedFor(urlEqualTo("/deployments")));
+	}
+
+	@Test
+	public void testLookupFailsAfterServerErrors() throws Exception {
+		stubFor(get(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(500).withHeader("Content-Type", "application/json").withBody("{\"message\":\"Internal error\"}")));
+
+		MuleRest retryingMuleRest = createRetryingMuleRest(2, 20, 5);
+		try {
+			retryingMuleRest.restfullyGetDeploymentIdByName("app");
+			Assert.fail("Expected HTTPException");
+		} catch (HTTPException e) {
+			assertEquals(500, e.getResponseCode());
+		} finally {
+			retryingMuleRest.close();
+		}
+		verify(3, getRequestedFor(urlEqualTo("/deployments")));
+	}
+
+	@Test
+	public void testDeployNotRetriedAfterServerError() throws Exception {
+		stubFor(post(urlEqualTo("/deployments/local$1/deploy")).willReturn(aResponse().withStatus(500)));
+
+		MuleRest retryingMuleRest = createRetryingMuleRest(2, 20, 5);
+		try {
+			retryingMuleRest.restfullyDeployDeploymentById("local$1");
+			Assert.fail("Expected the server error");
+		} catch (HTTPException e) {
+			assertEquals(500, e.getResponseCode());
+		} finally {
+			retryingMuleRest.close();
+		}
+		verify(1, postRequestedFor(urlEqualTo("/deployments/local$1/deploy")));
+	}
+
+	@Test
+	public void testDeployRetriedWhenUnavailable() throws Exception {
+		stubFor(post(urlEqualTo("/deployments/local$1/deploy")).inScenario("deploy").whenScenarioStateIs(Scenario.STARTED).willReturn(aResponse().withStatus(503)).willSetStateTo("available"));
+		stubFor(post(urlEqualTo("/deployments/local$1/deploy")).inScenario("deploy").whenScenarioStateIs("available").willReturn(aResponse().withStatus(200)));
+
+		MuleRest retryingMuleRest = createRetryingMuleRest(2, 20, 5);
+		try {
+			retryingMuleRest.restfullyDeployDeploymentById("local$1");
+		} finally {
+			retryingMuleRest.close();
+		}
+		verify(2, postRequestedFor(urlEqualTo("/deployments/local$1/deploy")));
+	}
+
+	@Test
+	public void testCircuitBreakerFailsFast() throws Exception {
+		stubFor(delete(urlMatching("/deployments/.*")).willReturn(aResponse().withStatus(500)));
+
+		MuleRest retryingMuleRest = createRetryingMuleRest(5, 20, 2);
+		try {
+			try {
+				retryingMuleRest.restfullyDeleteDeploymentById("local$1");
+				Assert.fail("Expected the server error");
+			} catch (HTTPException e) {
+				assertEquals(500, e.getResponseCode());
+			}
+			try {
+				retryingMuleRest.restfullyDeleteDeploymentById("local$2");
+				Assert.fail("Expected the circuit to be open");
+			} catch (CircuitOpenException e) {
+				// expected
+			}
+		} finally {
+			retryingMuleRest.close();
+		}
+		verify(2, deleteRequestedFor(urlEqualTo("/deployments/local$1")));
+		verify(0, deleteRequestedFor(urlEqualTo("/deployments/local$2")));
+	}
+
+	@Test
+	public void testHalfOpenProbeFailingUnexpectedlyLetsAnotherCallProbe() throws Exception {
+		stubFor(get(urlEqualTo("/deployments")).inScenario("probe").whenScenarioStateIs(Scenario.STARTED).willReturn(aResponse().withFault(Fault.RANDOM_DATA_THEN_CLOSE)).willSetStateTo("up"));
+		stubFor(get(urlEqualTo("/deployments")).inScenario("probe").whenScenarioStateIs("up").willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateDeploymentIdJson("app", "local$1"))));
+
+		RetryPolicy retryPolicy = new RetryPolicy();
+		retryPolicy.setFailureThreshold(1);
+		retryPolicy.setOpenTime(0);
+		retryPolicy.onFailure();
+		// every failure is unexpected
+		MuleRest retryingMuleRest = new MuleRest(new URL("http://localhost:12312"), "admin", "admin") {
+			@Override
+			protected boolean isRetryable(Exception e) {
+				return false;
+			}
+		};
+		retryingMuleRest.setRetryPolicy(retryPolicy);
+		try {
+			try {
+				retryingMuleRest.restfullyGetDeploymentIdByName("app");
+				Assert.fail("Expected the probe to fail");
+			} catch (RuntimeException e) {
+				// expected
+			}
+			assertEquals("local$1", retryingMuleRest.restfullyGetDeploymentIdByName("app"));
+			assertFalse(retryPolicy.isOpen());
+		} finally {
+			retryingMuleRest.close();
+		}
+	}
+
+	@Test
+	public void testHalfOpenUploadProbeFailingUnexpectedlyLetsAnotherCallProbe() throws Exception {
+		stubFor(get(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateDeploymentIdJson("app", "local$1"))));
+		SharedArchive archive = mock(SharedArchive.class);
+		when(archive.getName()).thenReturn("app.zip");
+		when(archive.openStream()).thenThrow(new IllegalStateException("Archive closed"));
+
+		MuleRest retryingMuleRest = createRetryingMuleRest(2, 20, 1);
+		retryingMuleRest.getRetryPolicy().setOpenTime(0);
+		retryingMuleRest.getRetryPolicy().onFailure();
+		try {
+			try {
+				retryingMuleRest.restfullyUploadSharedArchive("app", "1.0", archive);
+				Assert.fail("Expected the probe to fail");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			assertEquals("local$1", retryingMuleRest.restfullyGetDeploymentIdByName("app"));
+			assertFalse(retryingMuleRest.getRetryPolicy().isOpen());
+		} finally {
+			retryingMuleRest.close();
+		}
+	}
+
+	@Test
+	public void testRetryBudgetSharedByCalls() throws Exception {
+		stubFor(delete(urlMatching("/deployments/.*")).willReturn(aResponse().withStatus(500)));
+
+		MuleRest retryingMuleRest = createRetryingMuleRest(3, 2, 0);
+		for (String deploymentId : Arrays.asList("local$1", "local$2")) {
+			try {
+				retryingMuleRest.restfullyDeleteDeploymentById(deploymentId);
+				Assert.fail("Expected the server error");
+			} catch (HTTPException e) {
+				assertEquals(500, e.getResponseCode());
+			}
+		}
+		retryingMuleRest.close();
+		verify(3, deleteRequestedFor(urlEqualTo("/deployments/local$1")));
+		verify(1, deleteRequestedFor(urlEqualTo("/deployments/local$2")));
+	}
+
 	@Test
 	public void testRestfullyDeleteApplication() throws Exception {
 		String applicationName = "My_Mule_App";
@@ -404,6 +850,421 @@ public class MuleRestTest {
 		org.mockito.Mockito.verify(muleRestSpy, never()).restfullyDeleteApplicationById(anyString());
 	}
 
+	@Test
+	public void testConnectionsAreReused() throws Exception {
+		String name = UUID.randomUUID().toString();
+		String id = UUID.randomUUID().toString();
+		stubGetDeploymentIdByName(name, id);
+		stubDeleteDeploymentById(id);
+
+		ConnectionCountingProxy proxy = new ConnectionCountingProxy(12312);
+		MuleRest pooledMuleRest = new MuleRest(new URL("http://localhost:" + proxy.getPort()), "admin", "admin");
+		try {
+			for (int i = 0; i < 5; i++) {
+				assertEquals(id, pooledMuleRest.restfullyGetDeploymentIdByName(name));
+			}
+			pooledMuleRest.restfullyDeleteDeploymentById(id);
+		} finally {
+			pooledMuleRest.close();
+			proxy.close();
+		}
+		assertEquals("All calls should have gone through a single connection", 1, proxy.getAcceptedConnections());
+	}
+
+	@Test
+	public void testKeepAlivePoolLeftAloneUnlessSized() throws Exception {
+		String name = UUID.randomUUID().toString();
+		String id = UUID.randomUUID().toString();
+		stubGetDeploymentIdByName(name, id);
+
+		String previous = System.clearProperty("http.maxConnections");
+		MuleRest unsizedMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		MuleRest sizedMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		sizedMuleRest.setMaxConnections(8);
+		try {
+			assertEquals(id, unsizedMuleRest.restfullyGetDeploymentIdByName(name));
+			assertNull(System.getProperty("http.maxConnections"));
+			assertEquals(id, sizedMuleRest.restfullyGetDeploymentIdByName(name));
+			assertEquals("8", System.getProperty("http.maxConnections"));
+		} finally {
+			unsizedMuleRest.close();
+			sizedMuleRest.close();
+			if (previous == null) {
+				System.clearProperty("http.maxConnections");
+			} else {
+				System.setProperty("http.maxConnections", previous);
+			}
+		}
+	}
+
+	@Test
+	public void testPrefetchOverlapsUpload() throws Exception {
+		String serverGroup = UUID.randomUUID().toString();
+		String serverId = UUID.randomUUID().toString();
+		String name = UUID.randomUUID().toString();
+		String deploymentId = UUID.randomUUID().toString();
+		String versionId = UUID.randomUUID().toString();
+		int delay = 400;
+
+		stubFor(get(urlEqualTo("/servers")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateServersJson(serverGroup, serverId)).withFixedDelay(delay)));
+		stubFor(get(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateDeploymentIdJson(name, deploymentId)).withFixedDelay(delay)));
+		stubFor(post(urlEqualTo("/repository")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateUploadedPackageJson(versionId, UUID.randomUUID().toString())).withFixedDelay(delay)));
+
+		File file = File.createTempFile("prefetch", ".zip");
+		file.deleteOnExit();
+		MuleRest cachingMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		cachingMuleRest.setCacheInventory(true);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			long start = System.currentTimeMillis();
+			cachingMuleRest.prefetch(executor, MmcInventory.SERVERS, MmcInventory.DEPLOYMENTS);
+			assertEquals(versionId, cachingMuleRest.restfullyUploadRepository(name, "1.0", file));
+			assertEquals(Collections.singleton(serverId), cachingMuleRest.restfullyGetServers(serverGroup));
+			assertEquals(deploymentId, cachingMuleRest.restfullyGetDeploymentIdByName(name));
+			long elapsed = System.currentTimeMillis() - start;
+
+			// the three calls one after the other take three times the delay
+			assertTrue("Took " + elapsed + " ms", elapsed < delay * 2);
+			verify(1, getRequestedFor(urlEqualTo("/servers")));
+			verify(1, getRequestedFor(urlEqualTo("/deployments")));
+		} finally {
+			executor.shutdownNow();
+			cachingMuleRest.close();
+		}
+	}
+
+	@Test
+	public void testServerSideFilteredServers() throws Exception {
+		String serverGroup = UUID.randomUUID().toString();
+		String serverGroupId = UUID.randomUUID().toString();
+		String serverId = UUID.randomUUID().toString();
+
+		stubFor(get(urlEqualTo("/serverGroups?name=" + serverGroup)).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateServerGroupIdJson(serverGroup, serverGroupId))));
+		stubFor(get(urlEqualTo("/servers?groupId=" + serverGroupId)).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(generateServersJson(serverGroup, serverId))));
+
+		MuleRest filteringMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		filteringMuleRest.setServerSideFiltering(true);
+		try {
+			assertEquals(Collections.singleton(serverId), filteringMuleRest.restfullyGetServers(serverGroup));
+		} finally {
+			filteringMuleRest.close();
+		}
+		verify(1, getRequestedFor(urlEqualTo("/servers?groupId=" + serverGroupId)));
+		verify(0, getRequestedFor(urlEqualTo("/servers")));
+	}
+
+	@Test
+	public void testServerSideFilteringIgnoredByServer() throws Exception {
+		String name = UUID.randomUUID().toString();
+		String id = UUID.randomUUID().toString();
+
+		// the whole collection, whatever the query
+		stubFor(get(urlMatching("/deployments.*")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":2,\"data\":[{\"name\":\"other\",\"id\":\"local$other\"},{\"name\":\"" + name + "\",\"id\":\"" + id + "\"}]}")));
+
+		MuleRest filteringMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		filteringMuleRest.setServerSideFiltering(true);
+		filteringMuleRest.setCacheInventory(true);
+		try {
+			assertEquals(id, filteringMuleRest.restfullyGetDeploymentIdByName(name));
+			assertNull(filteringMuleRest.restfullyGetDeploymentIdByName("other-" + name));
+			assertEquals(id, filteringMuleRest.restfullyGetDeploymentIdByName(name));
+		} finally {
+			filteringMuleRest.close();
+		}
+		verify(1, getRequestedFor(urlEqualTo("/deployments?name=" + name)));
+	}
+
+	@Test
+	public void testPagedLookupStopsAtResolvingPage() throws Exception {
+		String name = UUID.randomUUID().toString();
+		String id = UUID.randomUUID().toString();
+
+		stubFor(get(urlEqualTo("/deployments?offset=0&limit=2")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":9,\"data\":[{\"name\":\"a\",\"id\":\"local$a\"},{\"name\":\"b\",\"id\":\"local$b\"}]}")));
+		stubFor(get(urlEqualTo("/deployments?offset=2&limit=2")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":9,\"data\":[{\"name\":\"c\",\"id\":\"local$c\"},{\"name\":\"" + name + "\",\"id\":\"" + id + "\"}]}")));
+
+		MuleRest pagingMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		pagingMuleRest.setPageSize(2);
+		try {
+			assertEquals(id, pagingMuleRest.restfullyGetDeploymentIdByName(name));
+		} finally {
+			pagingMuleRest.close();
+		}
+		// the page after the resolving one may have been prefetched, no further
+		verify(0, getRequestedFor(urlEqualTo("/deployments?offset=6&limit=2")));
+	}
+
+	@Test
+	public void testPagedLookupReadsAllPages() throws Exception {
+		String serverGroup = UUID.randomUUID().toString();
+
+		stubFor(get(urlEqualTo("/servers?offset=0&limit=1")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":2,\"data\":[{\"id\":\"local$1\",\"groups\":[{\"name\":\"" + serverGroup + "\"}]}]}")));
+		stubFor(get(urlEqualTo("/servers?offset=1&limit=1")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"total\":2,\"data\":[{\"id\":\"local$2\",\"groups\":[{\"name\":\"" + serverGroup + "\"}]}]}")));
+
+		MuleRest pagingMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		pagingMuleRest.setPageSize(1);
+		try {
+			assertEquals(new TreeSet<String>(Arrays.asList("local$1", "local$2")), pagingMuleRest.restfullyGetServers(serverGroup));
+		} finally {
+			pagingMuleRest.close();
+		}
+		// the total is reached, no third page
+		verify(2, getRequestedFor(urlMatching("/servers.*")));
+	}
+
+	@Test
+	public void testPagingIgnoredByServer() throws Exception {
+		String serverGroup = UUID.randomUUID().toString();
+		String serverId = UUID.randomUUID().toString();
+
+		stubFor(get(urlMatching("/servers.*")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody("{\"data\":[{\"id\":\"local$other\",\"groups\":[]},{\"id\":\"" + serverId + "\",\"groups\":[{\"name\":\"" + serverGroup + "\"}]}]}")));
+
+		MuleRest pagingMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		pagingMuleRest.setPageSize(1);
+		try {
+			assertEquals(Collections.singleton(serverId), pagingMuleRest.restfullyGetServers(serverGroup));
+		} finally {
+			pagingMuleRest.close();
+		}
+		// more entries than asked for, the page was the whole collection
+		verify(1, getRequestedFor(urlMatching("/servers.*")));
+	}
+
+	private static File createTempDirectory() throws IOException {
+		File directory = File.createTempFile("metadata", "");
+		directory.delete();
+		directory.mkdirs();
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	@Test
+	public void testMetadataCacheSkipsDiscovery() throws Exception {
+		String serverGroup = UUID.randomUUID().toString();
+		String serverId = UUID.randomUUID().toString();
+		File directory = createTempDirectory();
+		URL url = new URL("http://0.0.0.0:12312");
+
+		stubFor(get(urlEqualTo("/servers")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withHeader("ETag", "\"v1\"").withBody(generateServersJson(serverGroup, serverId))));
+
+		for (int build = 0; build < 2; build++) {
+			MetadataCache metadataCache = MetadataCache.open(directory, url, MetadataCache.DEFAULT_TTL);
+			MuleRest cachingMuleRest = new MuleRest(url, "admin", "admin");
+			cachingMuleRest.setMetadataCache(metadataCache);
+			try {
+				assertEquals(Collections.singleton(serverId), cachingMuleRest.restfullyGetServers(serverGroup));
+			} finally {
+				cachingMuleRest.close();
+			}
+			metadataCache.store();
+		}
+		verify(1, getRequestedFor(urlEqualTo("/servers")));
+	}
+
+	@Test
+	public void testMetadataCacheRevalidation() throws Exception {
+		String clusterName = UUID.randomUUID().toString();
+		String clusterId = UUID.randomUUID().toString();
+
+		stubFor(get(urlEqualTo("/clusters")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withHeader("ETag", "\"v1\"").withBody(generateDeploymentIdJson(clusterName, clusterId))));
+		stubFor(get(urlEqualTo("/clusters")).withHeader("If-None-Match", equalTo("\"v1\"")).willReturn(aResponse().withStatus(304)));
+
+		// expired as soon as stored
+		MetadataCache metadataCache = MetadataCache.open(createTempDirectory(), new URL("http://0.0.0.0:12312"), 0);
+		MuleRest cachingMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		cachingMuleRest.setMetadataCache(metadataCache);
+		try {
+			assertEquals(Collections.singleton(clusterId), cachingMuleRest.restfullyGetClusters(clusterName));
+			assertEquals(Collections.singleton(clusterId), cachingMuleRest.restfullyGetClusters(clusterName));
+		} finally {
+			cachingMuleRest.close();
+		}
+		verify(2, getRequestedFor(urlEqualTo("/clusters")));
+		verify(1, getRequestedFor(urlEqualTo("/clusters")).withHeader("If-None-Match", equalTo("\"v1\"")));
+	}
+
+	@Test
+	public void testMetadataCacheRefreshedWhenChanged() throws Exception {
+		String serverGroup = UUID.randomUUID().toString();
+		String serverGroupId = UUID.randomUUID().toString();
+
+		stubFor(get(urlEqualTo("/serverGroups")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withHeader("ETag", "\"v2\"").withBody(generateServerGroupIdJson(serverGroup, serverGroupId))));
+
+		MetadataCache metadataCache = MetadataCache.open(createTempDirectory(), new URL("http://0.0.0.0:12312"), 0);
+		metadataCache.put(MmcInventory.SERVER_GROUPS, serverGroup, Collections.singleton("local$removed"), "\"v1\"");
+		MuleRest cachingMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		cachingMuleRest.setMetadataCache(metadataCache);
+		try {
+			assertEquals(serverGroupId, cachingMuleRest.restfullyGetServerGroupId(serverGroup));
+		} finally {
+			cachingMuleRest.close();
+		}
+		verify(getRequestedFor(urlEqualTo("/serverGroups")).withHeader("If-None-Match", equalTo("\"v1\"")));
+		MetadataCache.Entry entry = metadataCache.get(MmcInventory.SERVER_GROUPS, serverGroup);
+		assertEquals(Collections.singleton(serverGroupId), entry.getValues());
+		assertEquals("\"v2\"", entry.getEtag());
+	}
+
+	@Test
+	public void testRepeatedLookupsAreConditional() throws Exception {
+		String name = UUID.randomUUID().toString();
+		String id = UUID.randomUUID().toString();
+		StringBuilder json = new StringBuilder("{\"total\":1001,\"data\":[");
+		for (int i = 0; i < 1000; i++) {
+			json.append("{\"name\":\"deployment-").append(i).append("\",\"id\":\"local$").append(i).append("\"},");
+		}
+		json.append("{\"name\":\"").append(name).append("\",\"id\":\"").append(id).append("\"}]}");
+
+		stubFor(get(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withHeader("ETag", "\"v1\"").withBody(json.toString())));
+		stubFor(get(urlEqualTo("/deployments")).withHeader("If-None-Match", equalTo("\"v1\"")).willReturn(aResponse().withStatus(304)));
+
+		ConnectionCountingProxy proxy = new ConnectionCountingProxy(12312);
+		MuleRest proxiedMuleRest = new MuleRest(new URL("http://localhost:" + proxy.getPort()), "admin", "admin");
+		proxiedMuleRest.setResponseCacheSize(1024 * 1024);
+		try {
+			assertEquals(id, proxiedMuleRest.restfullyGetDeploymentIdByName(name));
+			long firstBytes = proxy.getResponseBytes();
+			assertEquals(id, proxiedMuleRest.restfullyGetDeploymentIdByName(name));
+			assertEquals(id, proxiedMuleRest.restfullyGetDeploymentIdByName(name));
+			long laterBytes = proxy.getResponseBytes() - firstBytes;
+
+			assertTrue("First lookup transferred " + firstBytes + " bytes", firstBytes > json.length());
+			// the headers of two 304 responses
+			assertTrue("Later lookups transferred " + laterBytes + " bytes", laterBytes < firstBytes / 50);
+		} finally {
+			proxiedMuleRest.close();
+			proxy.close();
+		}
+		verify(2, getRequestedFor(urlEqualTo("/deployments")).withHeader("If-None-Match", equalTo("\"v1\"")));
+	}
+
+	@Test
+	public void testGzipResponse() throws Exception {
+		String name = UUID.randomUUID().toString();
+		String id = UUID.randomUUID().toString();
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		GZIPOutputStream gzipOutputStream = new GZIPOutputStream(gzipped);
+		gzipOutputStream.write(generateDeploymentIdJson(name, id).getBytes("UTF-8"));
+		gzipOutputStream.close();
+
+		stubFor(get(urlEqualTo("/deployments")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json").withHeader("Content-Encoding", "gzip").withBody(gzipped.toByteArray())));
+
+		assertEquals(id, muleRest.restfullyGetDeploymentIdByName(name));
+		verify(getRequestedFor(urlEqualTo("/deployments")).withHeader("Accept-Encoding", equalTo("gzip")));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testPrefetchNeedsInventoryCache() throws Exception {
+		muleRest.prefetch(Executors.newSingleThreadExecutor(), MmcInventory.SERVERS);
+	}
+
+	@Test
+	public void testInventoryCache() throws Exception {
+		String name = UUID.randomUUID().toString();
+		String id = UUID.randomUUID().toString();
+		stubGetDeploymentIdByName(name, id);
+		stubDeleteDeploymentById(id);
+
+		MuleRest cachingMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		cachingMuleRest.setCacheInventory(true);
+		try {
+			assertEquals(id, cachingMuleRest.restfullyGetDeploymentIdByName(name));
+			assertEquals(id, cachingMuleRest.restfullyGetDeploymentIdByName(name));
+			assertNull(cachingMuleRest.restfullyGetDeploymentIdByName("unknown"));
+			verify(1, getRequestedFor(urlEqualTo("/deployments")));
+			assertEquals(2, cachingMuleRest.getInventory().getHits());
+			assertEquals(1, cachingMuleRest.getInventory().getMisses());
+
+			// deleting a deployment removes it from the cached deployments
+			cachingMuleRest.restfullyDeleteDeploymentById(id);
+			assertNull(cachingMuleRest.restfullyGetDeploymentIdByName(name));
+			verify(1, getRequestedFor(urlEqualTo("/deployments")));
+			assertEquals(1, cachingMuleRest.getInventory().getMisses());
+		} finally {
+			cachingMuleRest.close();
+		}
+	}
+
+	@Test
+	public void testInventoryUpdatedInPlaceByCreate() throws Exception {
+		String serverGroup = UUID.randomUUID().toString();
+		String serverId = UUID.randomUUID().toString();
+		String name = UUID.randomUUID().toString();
+		String id = UUID.randomUUID().toString();
+		stubGetServers(serverGroup, serverId);
+		stubGetDeploymentIdByName(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+		stubCreateDeployment(id);
+
+		MuleRest cachingMuleRest = new MuleRest(new URL("http://0.0.0.0:12312"), "admin", "admin");
+		cachingMuleRest.setCacheInventory(true);
+		try {
+			assertEquals(id, cachingMuleRest.restfullyCreateDeployment(serverGroup, name, null, UUID.randomUUID().toString()));
+			assertEquals(id, cachingMuleRest.restfullyGetDeploymentIdByName(name));
+			verify(1, getRequestedFor(urlEqualTo("/deployments")));
+
+			// without the id in the response, the deployments are read again
+			stubCreateDeployment("");
+			cachingMuleRest.restfullyCreateDeployment(serverGroup, "other", null, UUID.randomUUID().toString());
+			cachingMuleRest.restfullyGetDeploymentIdByName(name);
+			verify(2, getRequestedFor(urlEqualTo("/deployments")));
+		} finally {
+			cachingMuleRest.close();
+		}
+	}
+
+	@Test
+	public void testInventoryDropsIndexInvalidatedDuringFetch() throws Exception {
+		final AtomicInteger requests = new AtomicInteger();
+		final CountDownLatch fetching = new CountDownLatch(1);
+		final CountDownLatch invalidated = new CountDownLatch(1);
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/deployments", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (requests.incrementAndGet() == 1) {
+					fetching.countDown();
+					try {
+						invalidated.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				byte[] response = "{\"total\":0,\"data\":[]}".getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, response.length);
+				exchange.getResponseBody().write(response);
+				exchange.close();
+			}
+		});
+		server.start();
+
+		final MuleRest cachingMuleRest = new MuleRest(new URL("http://localhost:" + server.getAddress().getPort()), "admin", "admin");
+		cachingMuleRest.setCacheInventory(true);
+		try {
+			Thread lookup = new Thread() {
+				@Override
+				public void run() {
+					try {
+						cachingMuleRest.restfullyGetDeploymentIdByName("app");
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			};
+			lookup.start();
+			assertTrue(fetching.await(10, TimeUnit.SECONDS));
+			// a deployment created while the deployments are being read
+			cachingMuleRest.getInventory().invalidate(MmcInventory.DEPLOYMENTS);
+			invalidated.countDown();
+			lookup.join();
+
+			assertNull(cachingMuleRest.restfullyGetDeploymentIdByName("app"));
+			assertEquals(2, requests.get());
+		} finally {
+			cachingMuleRest.close();
+			server.stop(0);
+		}
+	}
+
 	@Test
 	public void testIsSnapshotVersion() {
 		assertTrue(muleRest.isSnapshotVersion("1.0-SNAPSHOT"));
@@ -411,8 +1272,8 @@ public class MuleRestTest {
 		assertFalse(muleRest.isSnapshotVersion("1.0"));
 	}
 
-	private void verifyCreateDeployment(String serverId, String name, String versionId) throws IOException {
-		verify(postRequestedFor(urlEqualTo("/deployments")).withHeader("Authorization", equalTo("Basic YWRtaW46YWRtaW4=")).withRequestBody(equalTo(generateDeploymentRequestJson(serverId, name, versionId))));
+	private void verifyCreateDeployment(String serverId, String name, String... versionIds) throws IOException {
+		verify(postRequestedFor(urlEqualTo("/deployments")).withHeader("Authorization", equalTo("Basic YWRtaW46YWRtaW4=")).withRequestBody(equalTo(generateDeploymentRequestJson(serverId, name, versionIds))));
 	}
 
 	private void verifyDeleteDeploymentById(String deploymentId) {
@@ -426,4 +1287,79 @@ public class MuleRestTest {
 	private void verifyGetServers() {
 		verify(getRequestedFor(urlMatching("/servers")).withHeader("Authorization", equalTo("Basic YWRtaW46YWRtaW4=")));
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Plain TCP relay in front of WireMock counting the connections opened by
+	 * the client and the bytes sent back to it, WireMock itself does not
+	 * expose them.
+	 */
+	static class ConnectionCountingProxy {
+		private final ServerSocket serverSocket;
+		private final AtomicInteger acceptedConnections = new AtomicInteger();
+		private final AtomicLong responseBytes = new AtomicLong();
+
+		ConnectionCountingProxy(final int targetPort) throws IOException {
+			serverSocket = new ServerSocket();
+			serverSocket.bind(new InetSocketAddress("localhost", 0));
+			Thread acceptor = new Thread(new Runnable() {
+				public void run() {
+					while (!serverSocket.isClosed()) {
+						try {
+							Socket client = serverSocket.accept();
+							acceptedConnections.incrementAndGet();
+							Socket target = new Socket("localhost", targetPort);
+							pipe(client.getInputStream(), target.getOutputStream(), new AtomicLong());
+							pipe(target.getInputStream(), client.getOutputStream(), responseBytes);
+						} catch (IOException e) {
+							// closed
+						}
+					}
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		private void pipe(final InputStream in, final OutputStream out, final AtomicLong bytes) {
+			Thread pipe = new Thread(new Runnable() {
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try {
+						int read;
+						while ((read = in.read(buffer)) != -1) {
+							bytes.addAndGet(read);
+							out.write(buffer, 0, read);
+							out.flush();
+						}
+					} catch (IOException e) {
+						// connection closed by one of the peers
+					} finally {
+						try {
+							out.close();
+						} catch (IOException e) {
+							// ignore
+						}
+					}
+				}
+			});
+			pipe.setDaemon(true);
+			pipe.start();
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		int getAcceptedConnections() {
+			return acceptedConnections.get();
+		}
+
+		long getResponseBytes() {
+			return responseBytes.get();
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package org.mule.tools.maven.rest;
+
+import static org.mockito.Mockito.*;
+
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PruneTest {
+	private static final long NOW = System.currentTimeMillis();
+
+	private Prune prune;
+
+	private MuleRest mockMuleRest;
+
+	@Before
+	public void setup() throws Exception {
+		prune = spy(new Prune());
+		mockMuleRest = mock(MuleRest.class);
+		when(prune.buildMuleRest()).thenReturn(mockMuleRest);
+
+		prune.setLog(new SystemStreamLog());
+		prune.muleApiUrl = new URL("http", "localhost", 8080, "");
+		prune.username = "muleuser1";
+		prune.password = "pwd1234";
+		prune.keepLast = 2;
+	}
+
+	private static List<ApplicationVersion> versions(String name, String... versions) {
+		List<ApplicationVersion> applicationVersions = new ArrayList<ApplicationVersion>();
+		for (String version : versions) {
+			applicationVersions.add(new ApplicationVersion(name, version, name + "$" + version));
+		}
+		return applicationVersions;
+	}
+
+	private static String daysAgo(int days) {
+		return new SimpleDateFormat(AbstractMuleMojo.VERSION_FORMAT).format(NOW - TimeUnit.DAYS.toMillis(days));
+	}
+
+	@Test
+	public void testKeepsLastVersionsOfEachApplication() {
+		List<ApplicationVersion> versions = versions("a", "1", "2", "3", "4");
+		versions.addAll(versions("b", "1", "2"));
+
+		List<ApplicationVersion> prunable = prune.selectPrunable(versions, Collections.<String> emptySet(), NOW);
+		Assert.assertEquals("[a 1, a 2]", prunable.toString());
+	}
+
+	@Test
+	public void testKeepsNewestVersionsWhateverTheListingOrder() {
+		String oldest = daysAgo(40);
+		String older = daysAgo(30);
+		String newer = daysAgo(20);
+		String newest = daysAgo(10);
+		List<ApplicationVersion> versions = versions("a", newest, oldest, newer, older);
+		versions.addAll(versions("b", "1.10", "1.9", "1.2.1", "2"));
+
+		List<ApplicationVersion> prunable = prune.selectPrunable(versions, Collections.<String> emptySet(), NOW);
+		Assert.assertEquals("[a " + oldest + ", a " + older + ", b 1.2.1, b 1.9]", prunable.toString());
+	}
+
+	@Test
+	public void testKeepsAllVersionsWhenTheyCannotBeOrdered() {
+		List<ApplicationVersion> versions = versions("a", "1.0-SNAPSHOT", "release", daysAgo(10));
+		versions.addAll(versions("b", "3", "1", "2"));
+
+		Assert.assertEquals("[b 1]", prune.selectPrunable(versions, Collections.<String> emptySet(), NOW).toString());
+	}
+
+	@Test
+	public void testKeepsDeployedVersions() {
+		List<ApplicationVersion> prunable = prune.selectPrunable(versions("a", "1", "2", "3", "4"), Collections.singleton("a$1"), NOW);
+		Assert.assertEquals("[a 2]", prunable.toString());
+	}
+
+	@Test
+	public void testKeepsYoungAndUndatedVersions() {
+		prune.maxAgeDays = 30;
+		prune.keepLast = 0;
+		String old = daysAgo(40);
+		String oldTagged = MuleRest.tagVersion(daysAgo(35), "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+		List<ApplicationVersion> prunable = prune.selectPrunable(versions("a", old, oldTagged, daysAgo(10), "1.0"), Collections.<String> emptySet(), NOW);
+		Assert.assertEquals("[a " + old + ", a " + oldTagged + "]", prunable.toString());
+	}
+
+	@Test
+	public void testOnlyNamedApplicationPruned() {
+		prune.name = "b";
+		List<ApplicationVersion> versions = versions("a", "1", "2", "3");
+		versions.addAll(versions("b", "1", "2", "3"));
+
+		Assert.assertEquals("[b 1]", prune.selectPrunable(versions, Collections.<String> emptySet(), NOW).toString());
+	}
+
+	@Test
+	public void testParseVersionTime() {
+		Assert.assertNotNull(Prune.parseVersionTime("01-31-2024-23:59:59"));
+		Assert.assertNotNull(Prune.parseVersionTime("01-31-2024-23:59:59-ba7816bf8f01cfea"));
+		Assert.assertNull(Prune.parseVersionTime("1.0-SNAPSHOT"));
+		Assert.assertNull(Prune.parseVersionTime("13-31-2024-23:59:59"));
+	}
+
+	@Test
+	public void testDeletesPrunableVersions() throws Exception {
+		when(mockMuleRest.restfullyGetApplicationVersions()).thenReturn(versions("a", "1", "2", "3", "4", "5"));
+		when(mockMuleRest.restfullyGetDeployedVersionIds()).thenReturn(new HashSet<String>(Arrays.asList("a$2")));
+
+		prune.execute();
+		verify(mockMuleRest).restfullyDeleteApplicationById("a$1");
+		verify(mockMuleRest).restfullyDeleteApplicationById("a$3");
+		verify(mockMuleRest, times(2)).restfullyDeleteApplicationById(anyString());
+	}
+
+	@Test
+	public void testDryRunDeletesNothing() throws Exception {
+		prune.dryRun = true;
+		when(mockMuleRest.restfullyGetApplicationVersions()).thenReturn(versions("a", "1", "2", "3", "4", "5"));
+		when(mockMuleRest.restfullyGetDeployedVersionIds()).thenReturn(Collections.<String> emptySet());
+
+		prune.execute();
+		verify(mockMuleRest, never()).restfullyDeleteApplicationById(anyString());
+	}
+
+	@Test
+	public void testFailedDeletionsReported() throws Exception {
+		when(mockMuleRest.restfullyGetApplicationVersions()).thenReturn(versions("a", "1", "2", "3", "4", "5"));
+		when(mockMuleRest.restfullyGetDeployedVersionIds()).thenReturn(Collections.<String> emptySet());
+		doThrow(new java.io.IOException("conflict")).when(mockMuleRest).restfullyDeleteApplicationById("a$2");
+
+		try {
+			prune.execute();
+			Assert.fail("Expected MojoFailureException");
+		} catch (MojoFailureException e) {
+			Assert.assertEquals("1 of the 3 versions could not be deleted", e.getMessage());
+		}
+		verify(mockMuleRest).restfullyDeleteApplicationById("a$1");
+		verify(mockMuleRest).restfullyDeleteApplicationById("a$3");
+	}
+}
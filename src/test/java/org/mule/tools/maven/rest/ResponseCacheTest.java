@@ -0,0 +1,76 @@
+package org.mule.tools.maven.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.cxf.helpers.IOUtils;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+	private static final String URL = "http://localhost:8080/mmc/api/deployments";
+
+	private static void readFully(InputStream inputStream) throws IOException {
+		IOUtils.copy(inputStream, new ByteArrayOutputStream());
+	}
+
+	@Test
+	public void testBodyCachedOnceRead() throws Exception {
+		ResponseCache cache = new ResponseCache(1024);
+		InputStream body = cache.record(URL, "\"v1\"", null, new ByteArrayInputStream("{\"data\":[]}".getBytes("UTF-8")));
+		assertNull(cache.get(URL));
+
+		readFully(body);
+		ResponseCache.CachedResponse cached = cache.get(URL);
+		assertNotNull(cached);
+		assertEquals("\"v1\"", cached.getEtag());
+		assertNull(cached.getLastModified());
+		assertArrayEquals("{\"data\":[]}".getBytes("UTF-8"), cached.getBody());
+	}
+
+	@Test
+	public void testBodyClosedNearItsEndCached() throws Exception {
+		ResponseCache cache = new ResponseCache(1024);
+		InputStream body = cache.record(URL, "\"v1\"", null, new ByteArrayInputStream(new byte[100]));
+		body.read(new byte[90]);
+		body.close();
+		assertEquals(100, cache.get(URL).getBody().length);
+	}
+
+	@Test
+	public void testBodyClosedEarlyNotCached() throws Exception {
+		ResponseCache cache = new ResponseCache(64 * 1024);
+		InputStream body = cache.record(URL, "\"v1\"", null, new ByteArrayInputStream(new byte[16 * 1024]));
+		body.read(new byte[10]);
+		body.close();
+		assertNull(cache.get(URL));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEvicted() throws Exception {
+		ResponseCache cache = new ResponseCache(250);
+		readFully(cache.record(URL + "/1", "1", null, new ByteArrayInputStream(new byte[100])));
+		readFully(cache.record(URL + "/2", "2", null, new ByteArrayInputStream(new byte[100])));
+		cache.get(URL + "/1");
+		readFully(cache.record(URL + "/3", "3", null, new ByteArrayInputStream(new byte[100])));
+
+		assertNotNull(cache.get(URL + "/1"));
+		assertNull(cache.get(URL + "/2"));
+		assertNotNull(cache.get(URL + "/3"));
+		assertEquals(200, cache.getSize());
+	}
+
+	@Test
+	public void testBodyLargerThanCacheNotKept() throws Exception {
+		ResponseCache cache = new ResponseCache(50);
+		readFully(cache.record(URL, "1", null, new ByteArrayInputStream(new byte[100])));
+		assertNull(cache.get(URL));
+		assertEquals(0, cache.getSize());
+	}
+}
@@ -0,0 +1,143 @@
+package org.mule.tools.maven.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	@Test
+	public void testBackoffDoublesUpToMaximum() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setMaxRetries(5);
+		policy.setInitialBackoff(100);
+		policy.setMaxBackoff(500);
+		policy.setJitter(0);
+
+		assertEquals(100, policy.nextDelay(0));
+		assertEquals(200, policy.nextDelay(1));
+		assertEquals(400, policy.nextDelay(2));
+		assertEquals(500, policy.nextDelay(3));
+		assertEquals(500, policy.nextDelay(4));
+		assertEquals(-1, policy.nextDelay(5));
+	}
+
+	@Test
+	public void testJitterShortensDelay() {
+		RetryPolicy policy = new RetryPolicy(new Random(42));
+		policy.setMaxRetries(1);
+		policy.setInitialBackoff(1000);
+		policy.setRetryBudget(-1);
+		policy.setJitter(0.5);
+
+		boolean varied = false;
+		long first = policy.nextDelay(0);
+		for (int i = 0; i < 100; i++) {
+			long delay = policy.nextDelay(0);
+			assertTrue("Delay " + delay, delay > 500 && delay <= 1000);
+			varied |= delay != first;
+		}
+		assertTrue(varied);
+	}
+
+	@Test
+	public void testBudgetSharedByCalls() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setRetryBudget(3);
+		policy.setInitialBackoff(1);
+
+		assertTrue(policy.nextDelay(0) >= 0);
+		assertTrue(policy.nextDelay(1) >= 0);
+		assertTrue(policy.nextDelay(0) >= 0);
+		assertEquals(-1, policy.nextDelay(0));
+		assertEquals(3, policy.getRetries());
+	}
+
+	@Test
+	public void testCircuitOpensAfterConsecutiveFailures() throws Exception {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setFailureThreshold(3);
+		policy.setOpenTime(60000);
+
+		policy.onFailure();
+		policy.onFailure();
+		policy.onSuccess();
+		policy.onFailure();
+		policy.onFailure();
+		policy.beforeCall("GET /deployments");
+		assertFalse(policy.isOpen());
+
+		policy.onFailure();
+		assertTrue(policy.isOpen());
+		assertEquals(-1, policy.nextDelay(0));
+		try {
+			policy.beforeCall("GET /deployments");
+			fail("Expected the circuit to be open");
+		} catch (CircuitOpenException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testHalfOpenCircuitLetsOneProbeThrough() throws Exception {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setFailureThreshold(1);
+		policy.setOpenTime(0);
+		policy.onFailure();
+
+		policy.beforeCall("GET /deployments");
+		try {
+			policy.beforeCall("GET /servers");
+			fail("Expected a single probe");
+		} catch (CircuitOpenException e) {
+			// expected
+		}
+		policy.onSuccess();
+		assertFalse(policy.isOpen());
+		policy.beforeCall("GET /servers");
+	}
+
+	@Test
+	public void testAbortedProbeLetsAnotherCallProbe() throws Exception {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setFailureThreshold(1);
+		policy.setOpenTime(0);
+		policy.onFailure();
+
+		policy.beforeCall("GET /deployments");
+		policy.onAbort();
+		assertTrue(policy.isOpen());
+		policy.beforeCall("GET /servers");
+		try {
+			policy.beforeCall("GET /clusters");
+			fail("Expected a single probe");
+		} catch (CircuitOpenException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFailedProbeReopensCircuit() throws Exception {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setFailureThreshold(5);
+		policy.setOpenTime(0);
+		for (int i = 0; i < 5; i++) {
+			policy.onFailure();
+		}
+
+		policy.setOpenTime(60000);
+		policy.beforeCall("GET /deployments");
+		policy.onFailure();
+		try {
+			policy.beforeCall("GET /deployments");
+			fail("Expected the circuit to be open again");
+		} catch (CircuitOpenException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package org.mule.tools.maven.rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.rules.MethodRule;
+import org.junit.runners.model.FrameworkMethod;
+import org.junit.runners.model.Statement;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+
+/**
+ * WireMock server started once per port and reset before every test. The
+ * WireMockRule restarts the server for every test, which leaves the
+ * keep-alive connections pooled by the JDK open on the stopped server and
+ * makes the next request reusing one of them hang until the read timeout.
+ */
+public class SharedWireMockRule implements MethodRule {
+	private static final Map<Integer, WireMockServer> SERVERS = new HashMap<Integer, WireMockServer>();
+
+	private final int port;
+
+	public SharedWireMockRule(int port) {
+		this.port = port;
+	}
+
+	public Statement apply(final Statement base, FrameworkMethod method, Object target) {
+		return new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				start(port);
+				WireMock.configureFor("localhost", port);
+				WireMock.reset();
+				WireMock.resetAllScenarios();
+				base.evaluate();
+			}
+		};
+	}
+
+	private static synchronized void start(int port) {
+		if (SERVERS.containsKey(port)) {
+			return;
+		}
+		final WireMockServer server = new WireMockServer(port);
+		server.start();
+		SERVERS.put(port, server);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.stop();
+			}
+		});
+	}
+}